@@ -0,0 +1,299 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps.utils;
+
+import com.keypoint.PngEncoder;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import uk.ac.rdg.resc.basemaps.ArrayBackedImage;
+import uk.ac.rdg.resc.basemaps.FileBackedImageMosaic;
+import uk.ac.rdg.resc.basemaps.GeoreferencedImage;
+import uk.ac.rdg.resc.basemaps.Image;
+import uk.ac.rdg.resc.basemaps.JpegEncoder;
+import uk.ac.rdg.resc.basemaps.Projection2;
+import uk.ac.rdg.resc.basemaps.TileCodec;
+import uk.ac.rdg.resc.basemaps.cache.SubImageCache;
+
+/**
+ * <p>Offline micro-benchmarks of the GetMap hot path, so that we can compare
+ * numbers before each deployment without needing a live server.  The source
+ * image is a synthetic mosaic the size of the Blue Marble (5400x2700, with
+ * overviews), written as .tile files in the same layout as
+ * {@link ImageMosaicGenerator} produces.</p>
+ * <p>Each benchmark is warmed up until the JIT has settled, then timed for
+ * a number of iterations.  The sub-image cache is large enough to hold the
+ * whole mosaic, so the numbers are for a warm server instance.</p>
+ * <p>Usage: GetMapBenchmark [fixtureDirectory [iterations]].  The fixture
+ * files are written if they do not already exist.</p>
+ * @author Jon
+ */
+public final class GetMapBenchmark {
+
+    private static final int WIDTH = 5400;
+    private static final int HEIGHT = 2700;
+    private static final int TILE_SIZE = 500;
+    private static final String ID = "synthetic";
+
+    /** Bounding boxes that cover most of the world in each CRS */
+    private static final Object[][] REQUESTS = {
+        {Projection2.LONLAT, new double[]{-180.0, -90.0, 180.0, 90.0}},
+        {Projection2.LONLAT, new double[]{-10.0, 40.0, 10.0, 60.0}},
+        {Projection2.NORTH_POLAR_STEREOGRAPHIC, new double[]{-2000000, -2000000, 6000000, 6000000}},
+        {Projection2.SOUTH_POLAR_STEREOGRAPHIC, new double[]{-2000000, -2000000, 6000000, 6000000}}
+    };
+
+    private static final int[] SIZES = {256, 512};
+
+    private static final long WARMUP_NANOS = 2000000000L;
+
+    /** Results are accumulated here so that the JIT can't discard the work */
+    private static volatile long blackhole = 0;
+
+    private GetMapBenchmark() { throw new AssertionError(); }
+
+    public static void main(String[] args) throws Exception {
+        File dir = new File(args.length > 0 ? args[0] : "benchmark-fixtures");
+        int iterations = args.length > 1 ? Integer.parseInt(args[1]) : 50;
+
+        writeFixture(dir);
+        final FileBackedImageMosaic mosaic = new FileBackedImageMosaic(ID, WIDTH, HEIGHT, dir, true);
+        mosaic.loadOverviews();
+        mosaic.setSubImageCache(new SubImageCache(256L * 1024 * 1024));
+        final GeoreferencedImage source = new GeoreferencedImage(mosaic);
+
+        List<Benchmark> benchmarks = new ArrayList<Benchmark>();
+
+        // Coordinate transformations, 10000 points per operation
+        final Random random = new Random(42);
+        final double[] lons = new double[10000];
+        final double[] lats = new double[10000];
+        for (int n = 0; n < lons.length; n++) {
+            lons[n] = random.nextDouble() * 360.0 - 180.0;
+            lats[n] = random.nextDouble() * 80.0 + 5.0;
+        }
+        for (final Projection2 proj : Projection2.values()) {
+            // Points in the southern hemisphere for the south polar projection
+            final double[] projLats = new double[lats.length];
+            final double[] xs = new double[lons.length];
+            final double[] ys = new double[lons.length];
+            for (int n = 0; n < lons.length; n++) {
+                projLats[n] = proj == Projection2.SOUTH_POLAR_STEREOGRAPHIC ? -lats[n] : lats[n];
+                double[] xy = proj.lonLatToProj(lons[n], projLats[n]);
+                xs[n] = xy[0];
+                ys[n] = xy[1];
+            }
+            benchmarks.add(new Benchmark(proj + ".lonLatToProj x10000") {
+                @Override long run() {
+                    long sum = 0;
+                    for (int n = 0; n < lons.length; n++) {
+                        sum += (long) proj.lonLatToProj(lons[n], projLats[n])[0];
+                    }
+                    return sum;
+                }
+            });
+            benchmarks.add(new Benchmark(proj + ".projToLonLat x10000") {
+                @Override long run() {
+                    long sum = 0;
+                    for (int n = 0; n < xs.length; n++) {
+                        sum += (long) proj.projToLonLat(xs[n], ys[n])[0];
+                    }
+                    return sum;
+                }
+            });
+        }
+
+        // Gathering scattered pixels from the mosaic
+        final int[] is = new int[65536];
+        final int[] js = new int[65536];
+        for (int n = 0; n < is.length; n++) {
+            is[n] = random.nextInt(WIDTH);
+            js[n] = random.nextInt(HEIGHT);
+        }
+        final int[] gathered = new int[is.length];
+        benchmarks.add(new Benchmark("ImageMosaic.getPixels x65536 scattered") {
+            @Override long run() throws IOException {
+                mosaic.getPixels(is, js, gathered);
+                return gathered[gathered.length - 1];
+            }
+        });
+        final int[] row = new int[WIDTH];
+        benchmarks.add(new Benchmark("ImageMosaic.getRowSpan x" + WIDTH) {
+            @Override long run() throws IOException {
+                mosaic.getRowSpan(HEIGHT / 2, 0, WIDTH, row, 0);
+                return row[0];
+            }
+        });
+
+        for (Object[] request : REQUESTS) {
+            final Projection2 proj = (Projection2) request[0];
+            final double[] bbox = (double[]) request[1];
+            for (final int size : SIZES) {
+                String label = proj + " " + Arrays.toString(bbox) + " " + size + "px";
+                final Image target = new ArrayBackedImage(size, size);
+                final GeoreferencedImage geoTarget = new GeoreferencedImage(target, bbox, proj);
+                benchmarks.add(new Benchmark("getNearestPixels " + label) {
+                    @Override long run() throws IOException {
+                        source.getNearestPixels(geoTarget, target.getPixels());
+                        return target.getPixels()[0];
+                    }
+                });
+                benchmarks.add(new Benchmark("render+PNG " + label) {
+                    @Override long run() throws IOException {
+                        return render(source, proj, bbox, size, false).length;
+                    }
+                });
+                benchmarks.add(new Benchmark("render+JPEG " + label) {
+                    @Override long run() throws IOException {
+                        return render(source, proj, bbox, size, true).length;
+                    }
+                });
+            }
+        }
+
+        // Encoding alone, of a whole-world image
+        final ExecutorService pngExecutor = Executors.newFixedThreadPool(
+                Runtime.getRuntime().availableProcessors());
+        for (final int size : SIZES) {
+            final Image image = new ArrayBackedImage(size, size);
+            source.getNearestPixels(new GeoreferencedImage(image), image.getPixels());
+            benchmarks.add(new Benchmark("PngEncoder adaptive level 6 " + size + "px") {
+                @Override long run() {
+                    return new PngEncoder(image, false, PngEncoder.FILTER_ADAPTIVE, 6).pngEncode().length;
+                }
+            });
+            benchmarks.add(new Benchmark("PngEncoder adaptive level 6 parallel " + size + "px") {
+                @Override long run() {
+                    PngEncoder encoder = new PngEncoder(image, false, PngEncoder.FILTER_ADAPTIVE, 6);
+                    encoder.setExecutor(pngExecutor);
+                    return encoder.pngEncode().length;
+                }
+            });
+            benchmarks.add(new Benchmark("PngEncoder none level 9 " + size + "px") {
+                @Override long run() {
+                    return new PngEncoder(image, false, PngEncoder.FILTER_NONE, 9).pngEncode().length;
+                }
+            });
+            benchmarks.add(new Benchmark("JpegEncoder quality " + JpegEncoder.DEFAULT_QUALITY + " " + size + "px") {
+                @Override long run() throws IOException {
+                    return new JpegEncoder(image, JpegEncoder.DEFAULT_QUALITY).jpegEncode().length;
+                }
+            });
+        }
+
+        System.out.printf("%-75s %10s %10s %10s %10s%n", "Benchmark", "mean(ms)", "p50(ms)", "p90(ms)", "max(ms)");
+        for (Benchmark benchmark : benchmarks) {
+            benchmark.measure(iterations);
+        }
+        pngExecutor.shutdown();
+        mosaic.dispose();
+    }
+
+    /**
+     * Renders and encodes an image in the same way as a GetMap request that
+     * misses the cache.
+     */
+    private static byte[] render(GeoreferencedImage source, Projection2 proj,
+            double[] bbox, int size, boolean jpeg) throws IOException {
+        Image im = new ArrayBackedImage(size, size);
+        source.getNearestPixels(new GeoreferencedImage(im, bbox, proj), im.getPixels());
+        ByteArrayOutputStream out = new ByteArrayOutputStream(16384);
+        if (jpeg) {
+            new JpegEncoder(im, JpegEncoder.DEFAULT_QUALITY).jpegEncode(out);
+        } else {
+            new PngEncoder(im, false, PngEncoder.FILTER_ADAPTIVE, 6).pngEncode(out);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Writes the tiles of the synthetic mosaic and its overviews, unless
+     * they already exist.  The pixels are smooth gradients with some noise,
+     * so that they compress a bit like a photograph.
+     */
+    private static void writeFixture(File dir) throws IOException {
+        dir.mkdirs();
+        for (int factor = 1; ; factor *= 2) {
+            int width = (WIDTH + factor - 1) / factor;
+            int height = (HEIGHT + factor - 1) / factor;
+            for (int y = 0; y < height; y += TILE_SIZE) {
+                for (int x = 0; x < width; x += TILE_SIZE) {
+                    int tileWidth = Math.min(TILE_SIZE, width - x);
+                    int tileHeight = Math.min(TILE_SIZE, height - y);
+                    String filename = String.format("%s_%d_%d_%d_%d_%d_%d.tile",
+                        ID, width, height, x, y, tileWidth, tileHeight);
+                    File file = new File(dir, filename);
+                    // Tiles in the old raw format can be read too
+                    if (file.length() > 0) continue;
+                    int[] pixels = new int[tileWidth * tileHeight];
+                    for (int j = 0; j < tileHeight; j++) {
+                        for (int i = 0; i < tileWidth; i++) {
+                            pixels[j * tileWidth + i] =
+                                syntheticPixel((x + i) * factor, (y + j) * factor);
+                        }
+                    }
+                    FileOutputStream out = new FileOutputStream(file);
+                    try {
+                        out.write(TileCodec.encode(pixels, tileWidth, tileHeight));
+                    } finally {
+                        out.close();
+                    }
+                }
+            }
+            if (width <= TILE_SIZE && height <= TILE_SIZE) break;
+        }
+    }
+
+    private static int syntheticPixel(int i, int j) {
+        int noise = ((i * 7919) ^ (j * 104729)) & 0x0f;
+        int red = (i * 255 / WIDTH + noise) & 0xff;
+        int green = (j * 255 / HEIGHT + noise) & 0xff;
+        int blue = (int) (128 + 100 * Math.sin(i * 0.01) * Math.cos(j * 0.013)) & 0xff;
+        return 0xff000000 | (red << 16) | (green << 8) | blue;
+    }
+
+    /** A named operation that can be timed */
+    private static abstract class Benchmark {
+        private final String name;
+
+        public Benchmark(String name) {
+            this.name = name;
+        }
+
+        /** Performs the operation once, returning something derived from the result */
+        abstract long run() throws Exception;
+
+        /** Warms up, then times the given number of iterations and prints the results */
+        public void measure(int iterations) throws Exception {
+            long warmupEnd = System.nanoTime() + WARMUP_NANOS;
+            while (System.nanoTime() < warmupEnd) {
+                blackhole += this.run();
+            }
+            long[] times = new long[iterations];
+            for (int n = 0; n < iterations; n++) {
+                long start = System.nanoTime();
+                blackhole += this.run();
+                times[n] = System.nanoTime() - start;
+            }
+            Arrays.sort(times);
+            long total = 0;
+            for (long time : times) total += time;
+            System.out.printf("%-75s %10.3f %10.3f %10.3f %10.3f%n", this.name,
+                    total / 1e6 / iterations,
+                    times[iterations / 2] / 1e6,
+                    times[(int) (iterations * 0.9)] / 1e6,
+                    times[iterations - 1] / 1e6);
+        }
+    }
+
+}
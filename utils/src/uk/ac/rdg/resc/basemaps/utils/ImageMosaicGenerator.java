@@ -10,22 +10,25 @@ import java.awt.image.BufferedImage;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
-import java.nio.channels.FileChannel;
 import java.util.Iterator;
 import javax.imageio.ImageIO;
 import javax.imageio.ImageReadParam;
 import javax.imageio.ImageReader;
 import javax.imageio.stream.ImageInputStream;
+import uk.ac.rdg.resc.basemaps.TileCodec;
 
 /**
  * <p>Takes a large image and splits it into sub-images of &lt;1MB, so that they
  * can be stored in Google App Engine's persistent store and memcache.  In practice
  * this means that the images must be no more than ~500x500 if they are 4 bytes
- * per pixel (500*500*4 = 1 million bytes).</p>
+ * per pixel (500*500*4 = 1 million bytes).  The tiles are written in the
+ * compressed format of {@link TileCodec}, which is usually much smaller.</p>
  * <p>The names of the tile files are a kind of primary key:
- * "<i>parentImageName</i>_<i>parentImageWidth</i>_<i>parentImageHeight</i>_<i>topLeftTileX</i>_<i>topLeftTileY</i>_<i>tileWidth</i>_<i>tileHeight</i>.pixels".</p>
+ * "<i>parentImageName</i>_<i>parentImageWidth</i>_<i>parentImageHeight</i>_<i>topLeftTileX</i>_<i>topLeftTileY</i>_<i>tileWidth</i>_<i>tileHeight</i>.tile".</p>
+ * <p>Overviews of the image are also written, in the same layout: the overview
+ * with factor f (2, 4, 8...) takes every f'th pixel of the image in each
+ * direction, so its "parent image" is of size ceil(width/f) x ceil(height/f).
+ * Overviews are written until the whole overview fits in a single tile.</p>
  * <p>This code cannot be run on Google App Engine itself: it must be run
  * separately, then the files uploaded.</p>
  * @author Jon
@@ -73,81 +76,15 @@ public final class ImageMosaicGenerator {
             int height = imageReader.getHeight(0);
             System.out.println(inFile + ": " + width + "x" + height);
 
-            // The indices of the tiles (i in the horizontal, j in the vertical)
-            int i = 0;
-            int j = 0;
-            boolean done = false;
-
-            while (!done) {
-                // Assume we're not in the last row or column unless we find otherwise
-                boolean lastRow = false;
-                boolean lastCol = false;
-
-                // Find the top-left corner of this tile
-                final int topLeftX = i * MAX_IMAGE_SIZE;
-                final int topLeftY = j * MAX_IMAGE_SIZE;
-
-                // Find the width and height of this tile
-                final int tileWidth;
-                final int tileHeight;
-                if (topLeftX + MAX_IMAGE_SIZE >= width) {
-                    // We are in the last column of tiles
-                    lastCol = true;
-                    tileWidth = width - topLeftX;
-                } else {
-                    tileWidth = MAX_IMAGE_SIZE;
-                }
-                if (topLeftY + MAX_IMAGE_SIZE >= height) {
-                    // We are in the last row of tiles
-                    lastRow = true;
-                    tileHeight = height - topLeftY;
-                } else {
-                    tileHeight = MAX_IMAGE_SIZE;
-                }
-
-                // Extract the tile from the source image
-                // Set the source rectangle
-                Rectangle sourceRect = new Rectangle(topLeftX, topLeftY, tileWidth, tileHeight);
-                imageReadParam.setSourceRegion(sourceRect);
-
-                // Read the required region of the source data
-                BufferedImage im = imageReader.read(0, imageReadParam);
-                int[] pixels = new int[im.getWidth() * im.getHeight()];
-                int n = 0;
-                for (int y = 0; y < im.getHeight(); y++) {
-                    for (int x = 0; x < im.getWidth(); x++) {
-                        pixels[n] = im.getRGB(x, y);
-                        n++;
-                    }
-                }
-                
-                // Create a filename.  The name is a parseable unique identifier
-                String filename = String.format("%s_%d_%d_%d_%d_%d_%d.tile",
-                     fileStem, width, height, topLeftX, topLeftY, tileWidth, tileHeight);
-
-                // Output the pixels as raw ARGB integers
-                File outFile = new File(outFileDir, filename);
-                ByteBuffer bb = ByteBuffer.allocateDirect(pixels.length*4);
-                IntBuffer ib = bb.asIntBuffer();
-                ib.put(pixels);
-                FileChannel fc = new FileOutputStream(outFile).getChannel();
-                fc.write(bb);
-                fc.close();
-                System.out.println(outFile + " written.");
-
-                if (lastCol) {
-                    if (lastRow) {
-                        // We've done the last tile.  Time to stop.
-                        done = true;
-                    } else {
-                        // Move to the next row
-                        i = 0;
-                        j++;
-                    }
-                } else {
-                    // Move to the next column
-                    i++;
-                }
+            // Write the full-resolution image, then the overviews
+            int factor = 1;
+            while (true) {
+                int levelWidth = (width + factor - 1) / factor;
+                int levelHeight = (height + factor - 1) / factor;
+                writeTiles(imageReader, imageReadParam, factor, fileStem,
+                        levelWidth, levelHeight, outFileDir);
+                if (levelWidth <= MAX_IMAGE_SIZE && levelHeight <= MAX_IMAGE_SIZE) break;
+                factor *= 2;
             }
         } catch(IOException ioe) {
             ioe.printStackTrace();
@@ -161,6 +98,103 @@ public final class ImageMosaicGenerator {
         System.out.println("Success.");
     }
 
+    /**
+     * Writes the tiles of one level of the image: the image itself if the
+     * factor is 1, otherwise the overview with the given factor.
+     * @param width The width of this level
+     * @param height The height of this level
+     */
+    private static void writeTiles(ImageReader imageReader, ImageReadParam imageReadParam,
+            int factor, String fileStem, int width, int height, File outFileDir)
+            throws IOException {
+        // Take every factor'th pixel of the source image
+        imageReadParam.setSourceSubsampling(factor, factor, 0, 0);
+        int sourceWidth = imageReader.getWidth(0);
+        int sourceHeight = imageReader.getHeight(0);
+
+        // The indices of the tiles (i in the horizontal, j in the vertical)
+        int i = 0;
+        int j = 0;
+        boolean done = false;
+
+        while (!done) {
+            // Assume we're not in the last row or column unless we find otherwise
+            boolean lastRow = false;
+            boolean lastCol = false;
+
+            // Find the top-left corner of this tile
+            final int topLeftX = i * MAX_IMAGE_SIZE;
+            final int topLeftY = j * MAX_IMAGE_SIZE;
+
+            // Find the width and height of this tile
+            final int tileWidth;
+            final int tileHeight;
+            if (topLeftX + MAX_IMAGE_SIZE >= width) {
+                // We are in the last column of tiles
+                lastCol = true;
+                tileWidth = width - topLeftX;
+            } else {
+                tileWidth = MAX_IMAGE_SIZE;
+            }
+            if (topLeftY + MAX_IMAGE_SIZE >= height) {
+                // We are in the last row of tiles
+                lastRow = true;
+                tileHeight = height - topLeftY;
+            } else {
+                tileHeight = MAX_IMAGE_SIZE;
+            }
+
+            // Extract the tile from the source image
+            // Set the source rectangle, in the coordinates of the source image
+            int sourceX = topLeftX * factor;
+            int sourceY = topLeftY * factor;
+            Rectangle sourceRect = new Rectangle(sourceX, sourceY,
+                    Math.min(tileWidth * factor, sourceWidth - sourceX),
+                    Math.min(tileHeight * factor, sourceHeight - sourceY));
+            imageReadParam.setSourceRegion(sourceRect);
+
+            // Read the required region of the source data
+            BufferedImage im = imageReader.read(0, imageReadParam);
+            int[] pixels = new int[im.getWidth() * im.getHeight()];
+            int n = 0;
+            for (int y = 0; y < im.getHeight(); y++) {
+                for (int x = 0; x < im.getWidth(); x++) {
+                    pixels[n] = im.getRGB(x, y);
+                    n++;
+                }
+            }
+            
+            // Create a filename.  The name is a parseable unique identifier
+            String filename = String.format("%s_%d_%d_%d_%d_%d_%d.tile",
+                 fileStem, width, height, topLeftX, topLeftY, tileWidth, tileHeight);
+
+            // Output the encoded pixels
+            File outFile = new File(outFileDir, filename);
+            byte[] data = TileCodec.encode(pixels, tileWidth, tileHeight);
+            FileOutputStream out = new FileOutputStream(outFile);
+            try {
+                out.write(data);
+            } finally {
+                out.close();
+            }
+            System.out.println(outFile + " written (" + data.length + " bytes).");
+
+            if (lastCol) {
+                if (lastRow) {
+                    // We've done the last tile.  Time to stop.
+                    done = true;
+                } else {
+                    // Move to the next row
+                    i = 0;
+                    j++;
+                }
+            } else {
+                // Move to the next column
+                i++;
+            }
+        }
+    }
+
     private static String getFileStem(String filename) {
         int lastPeriodIndex = filename.lastIndexOf(".");
         return filename.substring(0, lastPeriodIndex);
@@ -186,6 +186,54 @@ public abstract class Projection implements Cloneable {
 	 */
 	protected abstract double[] project(double lam, double phi);
 
+	/**
+	 * Project n lat/long points (in degrees), producing results in metres.  The points are
+	 * stored as lon,lat pairs in srcLonLat and the results as x,y pairs in dstXY, which may
+	 * be the same array.  Points which can't be projected, or which are NaN, give NaN.
+	 */
+	public void transform( double[] srcLonLat, double[] dstXY, int n ) {
+		for ( int i = 0; i < 2*n; i += 2 ) {
+			double lonRad = srcLonLat[i] * DTR;
+			if ( projectionLongitude != 0 && !Double.isNaN( lonRad ) )
+				lonRad = MapMath.normalizeLongitude( lonRad-projectionLongitude );
+			dstXY[i+1] = srcLonLat[i+1] * DTR;
+			dstXY[i] = lonRad;
+		}
+		project( dstXY, dstXY, n );
+		for ( int i = 0; i < 2*n; i += 2 ) {
+			dstXY[i] = totalScale * dstXY[i] + totalFalseEasting;
+			dstXY[i+1] = totalScale * dstXY[i+1] + totalFalseNorthing;
+		}
+	}
+
+	/**
+	 * Project n lam,phi pairs (in radians) from src into x,y pairs in dst, which may be the same
+	 * array.  Points which can't be projected give NaN.
+	 */
+	protected void project( double[] src, double[] dst, int n ) {
+		for ( int i = 0; i < 2*n; i += 2 ) {
+			try {
+				if ( Double.isNaN( src[i] ) || Double.isNaN( src[i+1] ) )
+					dst[i] = dst[i+1] = Double.NaN;
+				else
+					project( src[i], src[i+1], dst, i );
+			}
+			catch ( ProjectionException e ) {
+				dst[i] = dst[i+1] = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Project a single point, writing x and y into dst at off and off+1.  Projections should
+	 * override this so that bulk transforms don't allocate an array for every point.
+	 */
+	protected void project( double lam, double phi, double[] dst, int off ) {
+		double[] xy = project( lam, phi );
+		dst[off] = xy[0];
+		dst[off+1] = xy[1];
+	}
+
 	/**
 	 * Inverse-project a point (in metres), producing a lat/long result in degrees
 	 */
@@ -208,6 +256,59 @@ public abstract class Projection implements Cloneable {
 	 * The method which actually does the inverse projection. This should be overridden for all projections.
 	 */
 	protected abstract double[] projectInverse(double x, double y);
+
+	/**
+	 * Inverse-project n points (in metres), producing lat/long results in degrees.  The points
+	 * are stored as x,y pairs in srcXY and the results as lon,lat pairs in dstLonLat, which may
+	 * be the same array.  Points which can't be inverse-projected, or which are NaN, give NaN.
+	 */
+	public void inverseTransform(double[] srcXY, double[] dstLonLat, int n) {
+		for (int i = 0; i < 2*n; i += 2) {
+			dstLonLat[i] = (srcXY[i] - totalFalseEasting) / totalScale;
+			dstLonLat[i+1] = (srcXY[i+1] - totalFalseNorthing) / totalScale;
+		}
+		projectInverse(dstLonLat, dstLonLat, n);
+		for (int i = 0; i < 2*n; i += 2) {
+			double lon = dstLonLat[i];
+			if (lon < -Math.PI)
+				lon = -Math.PI;
+			else if (lon > Math.PI)
+				lon = Math.PI;
+			if (projectionLongitude != 0 && !Double.isNaN(lon))
+				lon = MapMath.normalizeLongitude(lon+projectionLongitude);
+			dstLonLat[i] = lon * RTD;
+			dstLonLat[i+1] *= RTD;
+		}
+	}
+
+	/**
+	 * Inverse-project n x,y pairs from src into lam,phi pairs (in radians) in dst, which may be
+	 * the same array.  Points which can't be inverse-projected give NaN.
+	 */
+	protected void projectInverse(double[] src, double[] dst, int n) {
+		for (int i = 0; i < 2*n; i += 2) {
+			try {
+				if (Double.isNaN(src[i]) || Double.isNaN(src[i+1]))
+					dst[i] = dst[i+1] = Double.NaN;
+				else
+					projectInverse(src[i], src[i+1], dst, i);
+			}
+			catch (ProjectionException e) {
+				dst[i] = dst[i+1] = Double.NaN;
+			}
+		}
+	}
+
+	/**
+	 * Inverse-project a single point, writing lam and phi into dst at off and off+1.
+	 * Projections should override this so that bulk transforms don't allocate an array for
+	 * every point.
+	 */
+	protected void projectInverse(double x, double y, double[] dst, int off) {
+		double[] lonLat = projectInverse(x, y);
+		dst[off] = lonLat[0];
+		dst[off+1] = lonLat[1];
+	}
 	
 	
 	/**
@@ -102,6 +102,12 @@ public class StereographicAzimuthalProjection extends AzimuthalProjection {
 	}
 
 	public double[] project(double lam, double phi) {
+		double[] xy = new double[2];
+		project(lam, phi, xy, 0);
+		return xy;
+	}
+
+	protected void project(double lam, double phi, double[] dst, int off) {
 		double coslam = Math.cos(lam);
 		double sinlam = Math.sin(lam);
 		double sinphi = Math.sin(phi);
@@ -165,10 +171,17 @@ public class StereographicAzimuthalProjection extends AzimuthalProjection {
 			}
 			x = x * sinlam;
 		}
-		return new double[]{x,y};
+		dst[off] = x;
+		dst[off+1] = y;
 	}
 
 	@Override public double[] projectInverse(double x, double y) {
+		double[] lonLat = new double[2];
+		projectInverse(x, y, lonLat, 0);
+		return lonLat;
+	}
+
+	@Override protected void projectInverse(double x, double y, double[] dst, int off) {
                 double lon = 0;
                 double lat = 0;
 		if (spherical) {
@@ -236,12 +249,15 @@ public class StereographicAzimuthalProjection extends AzimuthalProjection {
 					if (mode == SOUTH_POLE)
 						lat = -lat;
 					lon = (x == 0. && y == 0.) ? 0. : Math.atan2(x, y);
-					return new double[]{lon, lat};
+					dst[off] = lon;
+					dst[off+1] = lat;
+					return;
 				}
 			}
 			throw new RuntimeException("Iteration didn't converge");
 		}
-		return new double[]{lon, lat};
+		dst[off] = lon;
+		dst[off+1] = lat;
 	}
 	
 	/**
@@ -112,6 +112,12 @@ public class TransverseMercatorProjection extends CylindricalProjection {
 	}
 
 	@Override public double[] project(double lplam, double lpphi) {
+		double[] xy = new double[2];
+		project(lplam, lpphi, xy, 0);
+		return xy;
+	}
+
+	@Override protected void project(double lplam, double lpphi, double[] dst, int off) {
                 double x, y;
 		if (spherical) {
 			double cosphi = Math.cos(lpphi);
@@ -145,10 +151,17 @@ public class TransverseMercatorProjection extends CylindricalProjection {
 				+ FC8 * als * (1385. + t * ( t * (543. - t) - 3111.) )
 			))));
 		}
-		return new double[]{x,y};
+		dst[off] = x;
+		dst[off+1] = y;
 	}
 
 	@Override public double[] projectInverse(double x, double y) {
+		double[] lonLat = new double[2];
+		projectInverse(x, y, lonLat, 0);
+		return lonLat;
+	}
+
+	@Override protected void projectInverse(double x, double y, double[] dst, int off) {
                 double lon, lat;
 		if (spherical) {
 			double h = Math.exp(x / scaleFactor);
@@ -187,7 +200,8 @@ public class TransverseMercatorProjection extends CylindricalProjection {
 				))) / cosphi;
 			}
 		}
-		return new double[]{lon, lat};
+		dst[off] = lon;
+		dst[off+1] = lat;
 	}
 
 	public boolean hasInverse() {
@@ -2,10 +2,20 @@ package com.keypoint;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.zip.Adler32;
 import java.util.zip.CRC32;
 import java.util.zip.Deflater;
-import java.util.zip.DeflaterOutputStream;
 import uk.ac.rdg.resc.basemaps.Image;
+import uk.ac.rdg.resc.basemaps.RenderContext;
 
 /**
  * PngEncoder takes an array of pixels and creates a byte string which can be saved as a PNG file.
@@ -51,6 +61,16 @@ import uk.ac.rdg.resc.basemaps.Image;
  * 14-Sep-2009 : Jon Blower (j.d.blower@reading.ac.uk) : removed dependencies on
  *                   classes that are not supported on Google App Engine
  *                   (Image, PixelGrabber, ImageObserver)
+ * 18-Oct-2026 : Added pngEncode(OutputStream), which streams the chunks to
+ *                   the output as they are compressed instead of building up
+ *                   the whole file in a growing array.  The "up" filter now
+ *                   uses the true prior row across IDAT blocks.
+ * 18-Oct-2026 : Added the "average" and "paeth" filters and adaptive
+ *                   (per-row) filter selection.
+ * 18-Oct-2026 : Added setExecutor(), which filters and compresses blocks of
+ *                   rows in parallel, pigz-style.
+ * 18-Oct-2026 : Row buffers and Deflaters are borrowed from the thread's
+ *                   RenderContext instead of being allocated for each image.
  */
 
 public class PngEncoder extends Object {
@@ -70,9 +90,25 @@ public class PngEncoder extends Object {
     /** Constants for filter (UP) */
     public static final int FILTER_UP = 2;
 
+    /** Constants for filter (AVERAGE) */
+    public static final int FILTER_AVERAGE = 3;
+
+    /** Constants for filter (PAETH) */
+    public static final int FILTER_PAETH = 4;
+
+    /**
+     * Constant specifying that the filter should be chosen for each row:
+     * the one giving the smallest sum of absolute differences is used.
+     * This is the heuristic recommended by the PNG specification.
+     */
+    public static final int FILTER_ADAPTIVE = 5;
+
     /** Constants for filter (LAST) */
-    public static final int FILTER_LAST = 2;
+    public static final int FILTER_LAST = FILTER_ADAPTIVE;
     
+    /** PNG file signature. */
+    protected static final byte PNG_ID[] = {-119, 80, 78, 71, 13, 10, 26, 10};
+
     /** IHDR tag. */
     protected static final byte IHDR[] = {73, 72, 68, 82};
     
@@ -82,26 +118,29 @@ public class PngEncoder extends Object {
     /** IEND tag. */
     protected static final byte IEND[] = {73, 69, 78, 68};
 
-    /** The png bytes. */
-    protected byte[] pngBytes;
+    /** Maximum number of compressed bytes written in a single IDAT chunk. */
+    protected static final int IDAT_CHUNK_SIZE = 32768;
 
-    /** The prior row. */
-    protected byte[] priorRow;
+    /**
+     * Approximate number of uncompressed bytes in each block that is
+     * compressed separately when encoding in parallel.
+     */
+    protected static final int PARALLEL_BLOCK_SIZE = 131072;
 
-    /** The left bytes. */
-    protected byte[] leftBytes;
+    /** Size of the deflate window, which is the most dictionary we can use. */
+    protected static final int DEFLATE_WINDOW_SIZE = 32768;
+
+    /** The prior row (unfiltered), used by the "up" filter. */
+    protected byte[] priorRow;
 
     /** The image pixels (24-bit, one int per pixel) */
     protected Image image;
 
-    /** The byte position. */
-    protected int bytePos, maxPos;
-
     /** CRC. */
     protected CRC32 crc = new CRC32();
 
-    /** The CRC value. */
-    protected long crcValue;
+    /** Scratch space for writing four-byte integers. */
+    protected final byte[] int4 = new byte[4];
 
     /** Encode alpha? */
     protected boolean encodeAlpha;
@@ -115,6 +154,9 @@ public class PngEncoder extends Object {
     /** The compression level. */
     protected int compressionLevel;
 
+    /** Executor for parallel encoding, or null to encode on the calling thread. */
+    protected ExecutorService executor;
+
     /**
      * Class constructor
      */
@@ -152,7 +194,7 @@ public class PngEncoder extends Object {
      *
      * @param image The image to encode
      * @param encodeAlpha Encode the alpha channel? false=no; true=yes
-     * @param whichFilter 0=none, 1=sub, 2=up
+     * @param whichFilter 0=none, 1=sub, 2=up, 3=average, 4=paeth, 5=adaptive
      * @throws NullPointerException if pixels == null
      * @throws IllegalArgumentException if (pixels.length != width * height) or
      * if width or height are less than 0
@@ -168,7 +210,7 @@ public class PngEncoder extends Object {
      *
      * @param image The image to encode
      * @param encodeAlpha Encode the alpha channel? false=no; true=yes
-     * @param whichFilter 0=none, 1=sub, 2=up
+     * @param whichFilter 0=none, 1=sub, 2=up, 3=average, 4=paeth, 5=adaptive
      * @param compLevel 0..9
      * @throws NullPointerException if pixels == null
      * @throws IllegalArgumentException if (pixels.length != width * height) or
@@ -193,7 +235,6 @@ public class PngEncoder extends Object {
      */
     public void setImage(Image image) {
         this.image = image;
-        pngBytes = null;
     }
 
     /**
@@ -204,35 +245,20 @@ public class PngEncoder extends Object {
      * @return an array of bytes, or null if there was a problem
      */
     public byte[] pngEncode(boolean encodeAlpha) {
-        byte[]  pngIdBytes = {-119, 80, 78, 71, 13, 10, 26, 10};
-
         if (this.image == null) {
             return null;
         }
-
-        /*
-         * start with an array that is big enough to hold all the pixels
-         * (plus filter bytes), and an extra 200 bytes for header info
-         */
-        pngBytes = new byte[((this.image.getWidth() + 1) * this.image.getHeight() * 3) + 200];
-
-        /*
-         * keep track of largest byte written to the array
-         */
-        maxPos = 0;
-
-        bytePos = writeBytes(pngIdBytes, 0);
-        //hdrPos = bytePos;
-        writeHeader();
-        //dataPos = bytePos;
-        if (writeImageData()) {
-            writeEnd();
-            pngBytes = resizeByteArray(pngBytes, maxPos);
+        this.encodeAlpha = encodeAlpha;
+        ByteArrayOutputStream pngBytes = new ByteArrayOutputStream(
+                this.image.getWidth() * this.image.getHeight() + 200);
+        try {
+            pngEncode(pngBytes);
+            return pngBytes.toByteArray();
         }
-        else {
-            pngBytes = null;
+        catch (IOException e) {
+            System.err.println(e.toString());
+            return null;
         }
-        return pngBytes;
     }
 
     /**
@@ -245,6 +271,28 @@ public class PngEncoder extends Object {
         return pngEncode(encodeAlpha);
     }
 
+    /**
+     * Writes the PNG equivalent of the current image to the given stream.
+     * Each IDAT chunk is written as soon as it has been compressed, so the
+     * whole file is never held in memory.  The stream is not closed.
+     * Alpha encoding is determined by its setting in the constructor.
+     *
+     * @param out The stream to which the PNG will be written
+     * @throws IOException if there was an error writing to the stream or
+     * reading the image
+     * @throws IllegalStateException if no image has been set
+     */
+    public void pngEncode(OutputStream out) throws IOException {
+        if (this.image == null) {
+            throw new IllegalStateException("No image to encode");
+        }
+        out.write(PNG_ID);
+        writeHeader(out);
+        writeImageData(out);
+        writeEnd(out);
+        out.flush();
+    }
+
     /**
      * Set the alpha encoding on or off.
      *
@@ -270,7 +318,7 @@ public class PngEncoder extends Object {
      */
     public void setFilter(int whichFilter) {
         this.filter = FILTER_NONE;
-        if (whichFilter <= FILTER_LAST) {
+        if (whichFilter >= FILTER_NONE && whichFilter <= FILTER_LAST) {
             this.filter = whichFilter;
         }
     }
@@ -305,289 +353,576 @@ public class PngEncoder extends Object {
     }
 
     /**
-     * Increase or decrease the length of a byte array.
+     * Set the executor used to filter and compress the image data in
+     * parallel.  The data are split into blocks of about
+     * {@link #PARALLEL_BLOCK_SIZE} bytes, each of which is compressed
+     * separately, using the end of the previous block as a preset
+     * dictionary so that little compression is lost.  Images with only one
+     * block are always encoded on the calling thread.
      *
-     * @param array The original array.
-     * @param newLength The length you wish the new array to have.
-     * @return Array of newly desired length. If shorter than the
-     *         original, the trailing elements are truncated.
+     * @param executor The executor, or null to encode on the calling thread
      */
-    protected byte[] resizeByteArray(byte[] array, int newLength) {
-        byte[]  newArray = new byte[newLength];
-        int     oldLength = array.length;
+    public void setExecutor(ExecutorService executor) {
+        this.executor = executor;
+    }
 
-        System.arraycopy(array, 0, newArray, 0, Math.min(oldLength, newLength));
-        return newArray;
+    /**
+     * Retrieve the executor used for parallel encoding
+     *
+     * @return the executor, or null if encoding is done on the calling thread
+     */
+    public ExecutorService getExecutor() {
+        return executor;
     }
 
     /**
-     * Write an array of bytes into the pngBytes array.
-     * Note: This routine has the side effect of updating
-     * maxPos, the largest element written in the array.
-     * The array is resized by 1000 bytes or the length
-     * of the data to be written, whichever is larger.
+     * Write a four-byte integer to the output stream.
      *
-     * @param data The data to be written into pngBytes.
-     * @param offset The starting point to write to.
-     * @return The next place to be written to in the pngBytes array.
+     * @param out The stream to write to.
+     * @param n The integer to be written.
      */
-    protected int writeBytes(byte[] data, int offset) {
-        maxPos = Math.max(maxPos, offset + data.length);
-        if (data.length + offset > pngBytes.length) {
-            pngBytes = resizeByteArray(pngBytes, pngBytes.length + Math.max(1000, data.length));
-        }
-        System.arraycopy(data, 0, pngBytes, offset, data.length);
-        return offset + data.length;
+    protected void writeInt4(OutputStream out, int n) throws IOException {
+        int4[0] = (byte) ((n >> 24) & 0xff);
+        int4[1] = (byte) ((n >> 16) & 0xff);
+        int4[2] = (byte) ((n >> 8) & 0xff);
+        int4[3] = (byte) (n & 0xff);
+        out.write(int4);
+    }
+
+    /**
+     * Write a complete chunk (length, type, data and CRC) to the output stream.
+     *
+     * @param out The stream to write to.
+     * @param type The four-byte chunk type.
+     * @param data Array holding the chunk data.
+     * @param nBytes The number of bytes of data in the chunk.
+     */
+    protected void writeChunk(OutputStream out, byte[] type, byte[] data, int nBytes)
+            throws IOException {
+        writeInt4(out, nBytes);
+        out.write(type);
+        out.write(data, 0, nBytes);
+        crc.reset();
+        crc.update(type);
+        crc.update(data, 0, nBytes);
+        writeInt4(out, (int) crc.getValue());
+    }
+
+    /**
+     * Write a PNG "IHDR" chunk to the output stream.
+     */
+    protected void writeHeader(OutputStream out) throws IOException {
+        int width = this.image.getWidth();
+        int height = this.image.getHeight();
+        byte[] header = {
+            (byte) ((width >> 24) & 0xff), (byte) ((width >> 16) & 0xff),
+            (byte) ((width >> 8) & 0xff), (byte) (width & 0xff),
+            (byte) ((height >> 24) & 0xff), (byte) ((height >> 16) & 0xff),
+            (byte) ((height >> 8) & 0xff), (byte) (height & 0xff),
+            8, // bit depth
+            (byte) ((encodeAlpha) ? 6 : 2), // direct model
+            0, // compression method
+            0, // filter method
+            0  // no interlace
+        };
+        writeChunk(out, IHDR, header, header.length);
     }
 
     /**
-     * Write an array of bytes into the pngBytes array, specifying number of bytes to write.
-     * Note: This routine has the side effect of updating
-     * maxPos, the largest element written in the array.
-     * The array is resized by 1000 bytes or the length
-     * of the data to be written, whichever is larger.
+     * Perform "sub" filtering on the given row.
      *
-     * @param data The data to be written into pngBytes.
-     * @param nBytes The number of bytes to be written.
-     * @param offset The starting point to write to.
-     * @return The next place to be written to in the pngBytes array.
+     * @param row The unfiltered row
+     * @param filtered Array into which the filtered row is written, starting
+     * at index 1 (index 0 holds the filter type byte)
+     * @param nBytes Length of the row in bytes.
      */
-    protected int writeBytes(byte[] data, int nBytes, int offset) {
-        maxPos = Math.max(maxPos, offset + nBytes);
-        if (nBytes + offset > pngBytes.length) {
-            pngBytes = resizeByteArray(pngBytes, pngBytes.length + Math.max(1000, nBytes));
+    protected void filterSub(byte[] row, byte[] filtered, int nBytes) {
+        for (int i = 0; i < bytesPerPixel; i++) {
+            filtered[i + 1] = row[i];
+        }
+        for (int i = bytesPerPixel; i < nBytes; i++) {
+            filtered[i + 1] = (byte) (row[i] - row[i - bytesPerPixel]);
         }
-        System.arraycopy(data, 0, pngBytes, offset, nBytes);
-        return offset + nBytes;
     }
 
     /**
-     * Write a two-byte integer into the pngBytes array at a given position.
+     * Perform "up" filtering on the given row.
      *
-     * @param n The integer to be written into pngBytes.
-     * @param offset The starting point to write to.
-     * @return The next place to be written to in the pngBytes array.
+     * @param row The unfiltered row
+     * @param prior The unfiltered prior row (all zeros for the first row)
+     * @param filtered Array into which the filtered row is written, starting
+     * at index 1 (index 0 holds the filter type byte)
+     * @param nBytes Length of the row in bytes.
      */
-    protected int writeInt2(int n, int offset) {
-        byte[] temp = {(byte) ((n >> 8) & 0xff), (byte) (n & 0xff)};
-        return writeBytes(temp, offset);
+    protected void filterUp(byte[] row, byte[] prior, byte[] filtered, int nBytes) {
+        for (int i = 0; i < nBytes; i++) {
+            filtered[i + 1] = (byte) (row[i] - prior[i]);
+        }
     }
 
     /**
-     * Write a four-byte integer into the pngBytes array at a given position.
+     * Perform "average" filtering on the given row.
      *
-     * @param n The integer to be written into pngBytes.
-     * @param offset The starting point to write to.
-     * @return The next place to be written to in the pngBytes array.
+     * @param row The unfiltered row
+     * @param prior The unfiltered prior row (all zeros for the first row)
+     * @param filtered Array into which the filtered row is written, starting
+     * at index 1 (index 0 holds the filter type byte)
+     * @param nBytes Length of the row in bytes.
      */
-    protected int writeInt4(int n, int offset) {
-        byte[] temp = {(byte) ((n >> 24) & 0xff),
-                       (byte) ((n >> 16) & 0xff),
-                       (byte) ((n >> 8) & 0xff),
-                       (byte) (n & 0xff)};
-        return writeBytes(temp, offset);
+    protected void filterAverage(byte[] row, byte[] prior, byte[] filtered, int nBytes) {
+        for (int i = 0; i < bytesPerPixel; i++) {
+            filtered[i + 1] = (byte) (row[i] - ((prior[i] & 0xff) >> 1));
+        }
+        for (int i = bytesPerPixel; i < nBytes; i++) {
+            int left = row[i - bytesPerPixel] & 0xff;
+            int up = prior[i] & 0xff;
+            filtered[i + 1] = (byte) (row[i] - ((left + up) >> 1));
+        }
     }
 
     /**
-     * Write a single byte into the pngBytes array at a given position.
+     * Perform "paeth" filtering on the given row.
      *
-     * @param b The integer to be written into pngBytes.
-     * @param offset The starting point to write to.
-     * @return The next place to be written to in the pngBytes array.
+     * @param row The unfiltered row
+     * @param prior The unfiltered prior row (all zeros for the first row)
+     * @param filtered Array into which the filtered row is written, starting
+     * at index 1 (index 0 holds the filter type byte)
+     * @param nBytes Length of the row in bytes.
      */
-    protected int writeByte(int b, int offset) {
-        byte[] temp = {(byte) b};
-        return writeBytes(temp, offset);
+    protected void filterPaeth(byte[] row, byte[] prior, byte[] filtered, int nBytes) {
+        for (int i = 0; i < bytesPerPixel; i++) {
+            // With no pixel to the left the predictor is the pixel above
+            filtered[i + 1] = (byte) (row[i] - prior[i]);
+        }
+        for (int i = bytesPerPixel; i < nBytes; i++) {
+            int a = row[i - bytesPerPixel] & 0xff;  // left
+            int b = prior[i] & 0xff;                // above
+            int c = prior[i - bytesPerPixel] & 0xff; // above left
+            int p = a + b - c;
+            int pa = Math.abs(p - a);
+            int pb = Math.abs(p - b);
+            int pc = Math.abs(p - c);
+            int predictor;
+            if (pa <= pb && pa <= pc) {
+                predictor = a;
+            } else if (pb <= pc) {
+                predictor = b;
+            } else {
+                predictor = c;
+            }
+            filtered[i + 1] = (byte) (row[i] - predictor);
+        }
     }
 
     /**
-     * Write a PNG "IHDR" chunk into the pngBytes array.
+     * Filter the given row with the given filter type, which must not be
+     * {@link #FILTER_ADAPTIVE}.
      */
-    protected void writeHeader() {
-        int startPos;
+    protected void filterRow(int type, byte[] row, byte[] prior, byte[] filtered, int nBytes) {
+        filtered[0] = (byte) type;
+        switch (type) {
+            case FILTER_SUB:     filterSub(row, filtered, nBytes); break;
+            case FILTER_UP:      filterUp(row, prior, filtered, nBytes); break;
+            case FILTER_AVERAGE: filterAverage(row, prior, filtered, nBytes); break;
+            case FILTER_PAETH:   filterPaeth(row, prior, filtered, nBytes); break;
+            default:             System.arraycopy(row, 0, filtered, 1, nBytes);
+        }
+    }
 
-        startPos = bytePos = writeInt4(13, bytePos);
-        bytePos = writeBytes(IHDR, bytePos);
-        bytePos = writeInt4(this.image.getWidth(), bytePos);
-        bytePos = writeInt4(this.image.getHeight(), bytePos);
-        bytePos = writeByte(8, bytePos); // bit depth
-        bytePos = writeByte((encodeAlpha) ? 6 : 2, bytePos); // direct model
-        bytePos = writeByte(0, bytePos); // compression method
-        bytePos = writeByte(0, bytePos); // filter method
-        bytePos = writeByte(0, bytePos); // no interlace
-        crc.reset();
-        crc.update(pngBytes, startPos, bytePos - startPos);
-        crcValue = crc.getValue();
-        bytePos = writeInt4((int) crcValue, bytePos);
+    /**
+     * Convert a row of ARGB pixels to RGB or RGBA bytes.
+     */
+    protected void packRow(int[] rowPixels, byte[] row, int width) {
+        int pos = 0;
+        for (int i = 0; i < width; i++) {
+            int argb = rowPixels[i];
+            row[pos++] = (byte) ((argb >> 16) & 0xff);
+            row[pos++] = (byte) ((argb >>  8) & 0xff);
+            row[pos++] = (byte) (argb & 0xff);
+            if (encodeAlpha) {
+                row[pos++] = (byte) ((argb >> 24) & 0xff);
+            }
+        }
     }
 
     /**
-     * Perform "sub" filtering on the given row.
-     * Uses temporary array leftBytes to store the original values
-     * of the previous pixels.  The array is 16 bytes long, which
-     * will easily hold two-byte samples plus two-byte alpha.
+     * Filter the given row with the current filter.  For adaptive filtering
+     * each filter is tried, using "candidate" as scratch space.
      *
-     * @param pixels The array holding the scan lines being built
-     * @param startPos Starting position within pixels of bytes to be filtered.
-     * @param width Width of a scanline in pixels.
-     */
-    protected void filterSub(byte[] pixels, int startPos, int width) {
-        int i;
-        int offset = bytesPerPixel;
-        int actualStart = startPos + offset;
-        int nBytes = width * bytesPerPixel;
-        int leftInsert = offset;
-        int leftExtract = 0;
+     * @return whichever of "filtered" and "candidate" holds the filtered row
+     */
+    protected byte[] filterRow(byte[] row, byte[] prior, byte[] filtered,
+            byte[] candidate, int nBytes) {
+        if (filter != FILTER_ADAPTIVE) {
+            filterRow(filter, row, prior, filtered, nBytes);
+            return filtered;
+        }
+        // Try each filter, keeping the best in "filtered"
+        filterRow(FILTER_NONE, row, prior, filtered, nBytes);
+        int best = sumAbs(filtered, nBytes);
+        for (int type = FILTER_SUB; type <= FILTER_PAETH; type++) {
+            filterRow(type, row, prior, candidate, nBytes);
+            int sum = sumAbs(candidate, nBytes);
+            if (sum < best) {
+                best = sum;
+                byte[] temp = filtered;
+                filtered = candidate;
+                candidate = temp;
+            }
+        }
+        return filtered;
+    }
 
-        for (i = actualStart; i < startPos + nBytes; i++) {
-            leftBytes[leftInsert] =  pixels[i];
-            pixels[i] = (byte) ((pixels[i] - leftBytes[leftExtract]) % 256);
-            leftInsert = (leftInsert + 1) % 0x0f;
-            leftExtract = (leftExtract + 1) % 0x0f;
+    /**
+     * Sum of the absolute values of the filtered bytes, treated as signed.
+     * Smaller sums generally compress better.
+     */
+    private static int sumAbs(byte[] filtered, int nBytes) {
+        int sum = 0;
+        for (int i = 1; i <= nBytes; i++) {
+            sum += Math.abs(filtered[i]);
         }
+        return sum;
     }
 
     /**
-     * Perform "up" filtering on the given row.
-     * Side effect: refills the prior row with current row
-     *
-     * @param pixels The array holding the scan lines being built
-     * @param startPos Starting position within pixels of bytes to be filtered.
-     * @param width Width of a scanline in pixels.
+     * Write the image data to the output stream as one or more PNG "IDAT"
+     * chunks.  Rows are filtered and compressed one at a time and each chunk
+     * is written as soon as {@link #IDAT_CHUNK_SIZE} compressed bytes are
+     * ready, so memory use does not depend on the size of the image.  If an
+     * executor has been set the work is done in parallel instead.
      */
-    protected void filterUp(byte[] pixels, int startPos, int width) {
-        int     i, nBytes;
-        byte    currentByte;
+    protected void writeImageData(OutputStream out) throws IOException {
+        int width = this.image.getWidth();
+        int height = this.image.getHeight();
 
-        nBytes = width * bytesPerPixel;
+        bytesPerPixel = (encodeAlpha) ? 4 : 3;
+        int nBytes = width * bytesPerPixel;
 
-        for (i = 0; i < nBytes; i++) {
-            currentByte = pixels[startPos + i];
-            pixels[startPos + i] = (byte) ((pixels[startPos  + i] - priorRow[i]) % 256);
-            priorRow[i] = currentByte;
+        int blockRows = Math.max(1, PARALLEL_BLOCK_SIZE / (nBytes + 1));
+        if (executor != null && height > blockRows) {
+            writeImageDataParallel(out, blockRows);
+            return;
+        }
+
+        RenderContext context = RenderContext.get();
+        int[] rowPixels = context.getInts(RenderContext.ROW_PIXELS, width);
+        // the current row, unfiltered
+        byte[] row = context.getBytes(RenderContext.PNG_ROW, nBytes);
+        // starts as zeros, as per the PNG spec
+        priorRow = context.getBytes(RenderContext.PNG_PRIOR_ROW, nBytes);
+        Arrays.fill(priorRow, 0, nBytes, (byte) 0);
+        // filter type byte plus filtered row
+        byte[] filtered = context.getBytes(RenderContext.PNG_FILTERED, nBytes + 1);
+        byte[] candidate = context.getBytes(RenderContext.PNG_CANDIDATE, nBytes + 1);
+        byte[] compressed = context.getBytes(RenderContext.PNG_COMPRESSED, IDAT_CHUNK_SIZE);
+        int nCompressed = 0;
+
+        // The Deflater belongs to the context, which will reset it when it
+        // is next used, so we don't end() it
+        Deflater scrunch = context.getDeflater(compressionLevel, false);
+        for (int j = 0; j < height; j++) {
+            this.image.getRowSpan(j, 0, width, rowPixels, 0);
+            packRow(rowPixels, row, width);
+            byte[] result = filterRow(row, priorRow, filtered, candidate, nBytes);
+            if (result != filtered) {
+                candidate = filtered;
+                filtered = result;
+            }
+            // Swap the buffers: this row becomes the prior row
+            byte[] temp = priorRow;
+            priorRow = row;
+            row = temp;
+
+            scrunch.setInput(filtered, 0, nBytes + 1);
+            while (!scrunch.needsInput()) {
+                nCompressed = deflate(scrunch, out, compressed, nCompressed);
+            }
+        }
+        scrunch.finish();
+        while (!scrunch.finished()) {
+            nCompressed = deflate(scrunch, out, compressed, nCompressed);
+        }
+        if (nCompressed > 0) {
+            writeChunk(out, IDAT, compressed, nCompressed);
         }
     }
 
     /**
-     * Write the image data into the pngBytes array.
-     * This will write one or more PNG "IDAT" chunks. In order
-     * to conserve memory, this method grabs as many rows as will
-     * fit into 32K bytes, or the whole image; whichever is less.
-     *
+     * Write the image data as IDAT chunks, filtering and compressing blocks
+     * of rows in parallel on the executor.  Each block is compressed as raw
+     * deflate data ending on a byte boundary (the last block ends the
+     * stream), with the last 32K of the previous block as a preset
+     * dictionary.  The blocks are then joined, between a zlib header and
+     * the Adler-32 checksum of the whole, to make a single zlib stream.
      *
-     * @return true if no errors; false if error grabbing pixels
+     * @param blockRows The number of rows in each block
      */
-    protected boolean writeImageData() {
-        int rowsLeft = this.image.getHeight();  // number of rows remaining to write
-        int startRow = 0;       // starting row to process this time through
-        int nRows;              // how many rows to grab at a time
-
-        byte[] scanLines;       // the scan lines to be compressed
-        int scanPos;            // where we are in the scan lines
-        int startPos;           // where this line's actual pixels start (used for filtering)
+    protected void writeImageDataParallel(OutputStream out, int blockRows)
+            throws IOException {
+        int height = this.image.getHeight();
+        int nBlocks = (height + blockRows - 1) / blockRows;
+
+        // First filter all the blocks...
+        List<Future<byte[]>> filterFutures = new ArrayList<Future<byte[]>>(nBlocks);
+        byte[][] blocks = new byte[nBlocks][];
+        try {
+            for (int b = 0; b < nBlocks; b++) {
+                filterFutures.add(executor.submit(new FilterTask(b * blockRows,
+                        Math.min(height, (b + 1) * blockRows))));
+            }
+            for (int b = 0; b < nBlocks; b++) {
+                blocks[b] = getResult(filterFutures.get(b));
+            }
+        } finally {
+            cancelAll(filterFutures);
+        }
 
-        byte[] compressedLines; // the resultant compressed lines
-        int nCompressed;        // how big is the compressed area?
+        // ...then compress them
+        List<Future<byte[]>> deflateFutures = new ArrayList<Future<byte[]>>(nBlocks);
+        List<DeflateTask> deflateTasks = new ArrayList<DeflateTask>(nBlocks);
+        try {
+            for (int b = 0; b < nBlocks; b++) {
+                DeflateTask task = new DeflateTask(b == 0 ? null : blocks[b - 1],
+                        blocks[b], b == nBlocks - 1);
+                deflateTasks.add(task);
+                deflateFutures.add(executor.submit(task));
+            }
 
-        //int depth;              // color depth ( handle only 8 or 32 )
+            byte[] compressed = RenderContext.get().getBytes(RenderContext.PNG_COMPRESSED,
+                    IDAT_CHUNK_SIZE);
+            int nCompressed = appendIdat(out, compressed, 0, zlibHeader(), 0, 2);
+            long adler = 1;
+            for (int b = 0; b < nBlocks; b++) {
+                byte[] deflated = getResult(deflateFutures.get(b));
+                nCompressed = appendIdat(out, compressed, nCompressed, deflated, 0, deflated.length);
+                adler = combineAdler32(adler, deflateTasks.get(b).adler, blocks[b].length);
+                blocks[b] = null; // no longer needed
+            }
+            byte[] trailer = {
+                (byte) ((adler >> 24) & 0xff), (byte) ((adler >> 16) & 0xff),
+                (byte) ((adler >> 8) & 0xff), (byte) (adler & 0xff)
+            };
+            nCompressed = appendIdat(out, compressed, nCompressed, trailer, 0, 4);
+            if (nCompressed > 0) {
+                writeChunk(out, IDAT, compressed, nCompressed);
+            }
+        } finally {
+            cancelAll(deflateFutures);
+        }
+    }
 
-        bytesPerPixel = (encodeAlpha) ? 4 : 3;
+    /**
+     * Filters a block of rows, returning the filtered bytes (including the
+     * filter type byte at the start of each row).
+     */
+    private final class FilterTask implements Callable<byte[]> {
+        private final int jStart;
+        private final int jEnd;
 
-        Deflater scrunch = new Deflater(compressionLevel);
-        ByteArrayOutputStream outBytes = new ByteArrayOutputStream(1024);
+        FilterTask(int jStart, int jEnd) {
+            this.jStart = jStart;
+            this.jEnd = jEnd;
+        }
 
-        DeflaterOutputStream compBytes = new DeflaterOutputStream(outBytes, scrunch);
-        try {
-            while (rowsLeft > 0) {
-                nRows = Math.min(32767 / (this.image.getWidth() * (bytesPerPixel + 1)), rowsLeft);
-                nRows = Math.max( nRows, 1 );
+        public byte[] call() throws IOException {
+            int width = image.getWidth();
+            int nBytes = width * bytesPerPixel;
+            RenderContext context = RenderContext.get();
+            int[] rowPixels = context.getInts(RenderContext.ROW_PIXELS, width);
+            byte[] row = context.getBytes(RenderContext.PNG_ROW, nBytes);
+            byte[] prior = context.getBytes(RenderContext.PNG_PRIOR_ROW, nBytes);
+            byte[] filtered = context.getBytes(RenderContext.PNG_FILTERED, nBytes + 1);
+            byte[] candidate = context.getBytes(RenderContext.PNG_CANDIDATE, nBytes + 1);
+            // The block is kept until all the blocks have been compressed,
+            // so it can't be borrowed from the context
+            byte[] block = new byte[(jEnd - jStart) * (nBytes + 1)];
+            if (jStart > 0) {
+                // The filters need the last row of the previous block
+                image.getRowSpan(jStart - 1, 0, width, rowPixels, 0);
+                packRow(rowPixels, prior, width);
+            } else {
+                Arrays.fill(prior, 0, nBytes, (byte) 0);
+            }
+            for (int j = jStart; j < jEnd; j++) {
+                image.getRowSpan(j, 0, width, rowPixels, 0);
+                packRow(rowPixels, row, width);
+                byte[] result = filterRow(row, prior, filtered, candidate, nBytes);
+                System.arraycopy(result, 0, block, (j - jStart) * (nBytes + 1), nBytes + 1);
+                byte[] temp = prior;
+                prior = row;
+                row = temp;
+            }
+            return block;
+        }
+    }
 
-                int[] destPixels = new int[this.image.getWidth() * nRows];
+    /**
+     * Compresses a block of filtered data as raw deflate data, and calculates
+     * its Adler-32 checksum.
+     */
+    private final class DeflateTask implements Callable<byte[]> {
+        private final byte[] previous;
+        private final byte[] block;
+        private final boolean last;
+        /** Set when the task has been run */
+        int adler;
+
+        /**
+         * @param previous The previous block, or null if this is the first
+         * @param block The block to compress
+         * @param last true if this is the last block in the stream
+         */
+        DeflateTask(byte[] previous, byte[] block, boolean last) {
+            this.previous = previous;
+            this.block = block;
+            this.last = last;
+        }
 
-                // We now grab nRows of pixels from the source image
-                int startOffset = startRow * this.image.getWidth();
-                System.arraycopy(this.image.getPixels(), startOffset, destPixels, 0, this.image.getWidth()*nRows);
+        public byte[] call() {
+            Adler32 checksum = new Adler32();
+            checksum.update(block, 0, block.length);
+            adler = (int) checksum.getValue();
+
+            ByteArrayOutputStream deflated = new ByteArrayOutputStream(block.length / 2 + 64);
+            RenderContext context = RenderContext.get();
+            byte[] buf = context.getBytes(RenderContext.PNG_DEFLATED, IDAT_CHUNK_SIZE);
+            Deflater scrunch = context.getDeflater(compressionLevel, true);
+            if (previous != null) {
+                int dictLength = Math.min(DEFLATE_WINDOW_SIZE, previous.length);
+                scrunch.setDictionary(previous, previous.length - dictLength, dictLength);
+            }
+            scrunch.setInput(block, 0, block.length);
+            if (last) {
+                scrunch.finish();
+                while (!scrunch.finished()) {
+                    deflated.write(buf, 0, scrunch.deflate(buf));
+                }
+            } else {
+                // Keep going until the flush is complete, i.e. until
+                // the output doesn't fill the buffer
+                int n;
+                do {
+                    n = scrunch.deflate(buf, 0, buf.length, Deflater.SYNC_FLUSH);
+                    deflated.write(buf, 0, n);
+                } while (n == buf.length);
+            }
+            return deflated.toByteArray();
+        }
+    }
 
-                /*
-                 * Create a data chunk. scanLines adds "nRows" for
-                 * the filter bytes.
-                 */
-                scanLines = new byte[this.image.getWidth() * nRows * bytesPerPixel +  nRows];
+    /**
+     * Gets the result of a task, rethrowing any exception that it threw.
+     */
+    private static byte[] getResult(Future<byte[]> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while encoding PNG");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
+        }
+    }
 
-                if (filter == FILTER_SUB) {
-                    leftBytes = new byte[16];
-                }
-                if (filter == FILTER_UP) {
-                    priorRow = new byte[this.image.getWidth() * bytesPerPixel];
-                }
+    /** Cancels any tasks that are still outstanding, e.g. after an error. */
+    private static void cancelAll(List<Future<byte[]>> futures) {
+        for (Future<byte[]> future : futures) {
+            future.cancel(false);
+        }
+    }
 
-                scanPos = 0;
-                startPos = 1;
-                for (int i = 0; i < this.image.getWidth() * nRows; i++) {
-                    if (i % this.image.getWidth() == 0) {
-                        scanLines[scanPos++] = (byte) filter;
-                        startPos = scanPos;
-                    }
-                    scanLines[scanPos++] = (byte) ((destPixels[i] >> 16) & 0xff);
-                    scanLines[scanPos++] = (byte) ((destPixels[i] >>  8) & 0xff);
-                    scanLines[scanPos++] = (byte) ((destPixels[i]) & 0xff);
-                    if (encodeAlpha) {
-                        scanLines[scanPos++] = (byte) ((destPixels[i] >> 24) & 0xff);
-                    }
-                    if ((i % this.image.getWidth() == this.image.getWidth() - 1) && (filter != FILTER_NONE)) {
-                        if (filter == FILTER_SUB) {
-                            filterSub(scanLines, startPos, this.image.getWidth());
-                        }
-                        if (filter == FILTER_UP) {
-                            filterUp(scanLines, startPos, this.image.getWidth());
-                        }
-                    }
-                }
+    /**
+     * Gets the two-byte zlib header for deflate data with a 32K window,
+     * with the level hint set from the compression level.
+     */
+    protected byte[] zlibHeader() {
+        int cmf = 0x78;
+        int level;
+        if (compressionLevel < 2) {
+            level = 0;
+        } else if (compressionLevel < 6) {
+            level = 1;
+        } else if (compressionLevel == 6) {
+            level = 2;
+        } else {
+            level = 3;
+        }
+        int flg = level << 6;
+        flg += (31 - (cmf * 256 + flg) % 31) % 31;
+        return new byte[] {(byte) cmf, (byte) flg};
+    }
 
-                /*
-                 * Write these lines to the output area
-                 */
-                compBytes.write(scanLines, 0, scanPos);
+    /**
+     * Combines the Adler-32 checksums of two consecutive pieces of data into
+     * the checksum of the whole (as adler32_combine() in zlib).
+     *
+     * @param adler1 Checksum of the first piece
+     * @param adler2 Checksum of the second piece
+     * @param length2 Length of the second piece in bytes
+     */
+    protected static long combineAdler32(long adler1, long adler2, long length2) {
+        final long base = 65521;
+        long rem = length2 % base;
+        long sum1 = adler1 & 0xffff;
+        long sum2 = (rem * sum1) % base;
+        sum1 += (adler2 & 0xffff) + base - 1;
+        sum2 += ((adler1 >> 16) & 0xffff) + ((adler2 >> 16) & 0xffff) + base - rem;
+        if (sum1 >= base) sum1 -= base;
+        if (sum1 >= base) sum1 -= base;
+        if (sum2 >= (base << 1)) sum2 -= (base << 1);
+        if (sum2 >= base) sum2 -= base;
+        return sum1 | (sum2 << 16);
+    }
 
-                startRow += nRows;
-                rowsLeft -= nRows;
+    /**
+     * Appends compressed data to the buffer, writing an IDAT chunk each time
+     * the buffer becomes full.
+     *
+     * @return the number of bytes now held in the buffer
+     */
+    private int appendIdat(OutputStream out, byte[] compressed, int nCompressed,
+            byte[] data, int offset, int length) throws IOException {
+        while (length > 0) {
+            int n = Math.min(length, compressed.length - nCompressed);
+            System.arraycopy(data, offset, compressed, nCompressed, n);
+            nCompressed += n;
+            offset += n;
+            length -= n;
+            if (nCompressed == compressed.length) {
+                writeChunk(out, IDAT, compressed, nCompressed);
+                nCompressed = 0;
             }
-            compBytes.close();
-
-            /*
-             * Write the compressed bytes
-             */
-            compressedLines = outBytes.toByteArray();
-            nCompressed = compressedLines.length;
-
-            crc.reset();
-            bytePos = writeInt4(nCompressed, bytePos);
-            bytePos = writeBytes(IDAT, bytePos);
-            crc.update(IDAT);
-            bytePos = writeBytes(compressedLines, nCompressed, bytePos);
-            crc.update(compressedLines, 0, nCompressed);
-
-            crcValue = crc.getValue();
-            bytePos = writeInt4((int) crcValue, bytePos);
-            scrunch.finish();
-            return true;
         }
-        catch (IOException e) {
-            System.err.println(e.toString());
-            return false;
+        return nCompressed;
+    }
+
+    /**
+     * Compresses as much data as will fit into the remainder of the given
+     * buffer, writing an IDAT chunk if the buffer becomes full.
+     *
+     * @return the number of bytes now held in the buffer
+     */
+    private int deflate(Deflater scrunch, OutputStream out, byte[] compressed,
+            int nCompressed) throws IOException {
+        nCompressed += scrunch.deflate(compressed, nCompressed,
+                compressed.length - nCompressed);
+        if (nCompressed == compressed.length) {
+            writeChunk(out, IDAT, compressed, nCompressed);
+            return 0;
         }
+        return nCompressed;
     }
 
     /**
-     * Write a PNG "IEND" chunk into the pngBytes array.
+     * Write a PNG "IEND" chunk to the output stream.
      */
-    protected void writeEnd() {
-        bytePos = writeInt4(0, bytePos);
-        bytePos = writeBytes(IEND, bytePos);
-        crc.reset();
-        crc.update(IEND);
-        crcValue = crc.getValue();
-        bytePos = writeInt4((int) crcValue, bytePos);
+    protected void writeEnd(OutputStream out) throws IOException {
+        writeChunk(out, IEND, int4, 0);
     }
 
 }
@@ -41,30 +41,96 @@ public abstract class AbstractImage implements Image {
     
     @Override public int getHeight() { return this.height; }
 
+    /** Checks the arrays passed to {@link #getPixels(int[], int[], int[], int)} */
+    protected static void checkCoordArrays(int[] is, int[] js, int[] pixels, int n) {
+        if (is == null || js == null || pixels == null) throw new NullPointerException();
+        if (n < 0 || is.length < n || js.length < n || pixels.length < n) {
+            throw new IllegalArgumentException("is, js and pixels must have at least n elements");
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
-     * This implementation simply calls {@link #getPixel(int, int)} for each
-     * i-j pair in the coords list.
-     * @throws IOException if one of the calls to {@link #getPixel(int, int)}
-     * throws an IOException
+     * This implementation converts the list to arrays of i and j indices
+     * and calls {@link #getPixels(int[], int[], int[])}.
      */
     @Override
     public int[] getPixels(List<int[]> coordsList) throws IOException {
         if (coordsList == null) throw new NullPointerException("coordsList");
-        int[] pixels = new int[coordsList.size()];
+        int[] is = new int[coordsList.size()];
+        int[] js = new int[coordsList.size()];
         for (int i = 0; i < coordsList.size(); i++) {
             int[] coords = coordsList.get(i);
-            // Skip any out-of-range coordinates
-            if (coords == null) continue;
+            // Null coordinates are out of range
+            if (coords == null) {
+                is[i] = -1;
+                continue;
+            }
             if (coords.length != 2) {
                 throw new IllegalArgumentException("coords.length must be 2");
             }
-            pixels[i] = this.getPixel(coords[0], coords[1]);
+            is[i] = coords[0];
+            js[i] = coords[1];
         }
+        int[] pixels = new int[coordsList.size()];
+        this.getPixels(is, js, pixels);
         return pixels;
     }
 
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation calls {@link #getPixels(int[], int[], int[], int)}
+     * for all the elements of is.
+     */
+    @Override
+    public final void getPixels(int[] is, int[] js, int[] pixels) throws IOException {
+        if (is == null) throw new NullPointerException();
+        this.getPixels(is, js, pixels, is.length);
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation simply calls {@link #getPixel(int, int)} for each
+     * i-j pair.
+     * @throws IOException if one of the calls to {@link #getPixel(int, int)}
+     * throws an IOException
+     */
+    @Override
+    public void getPixels(int[] is, int[] js, int[] pixels, int n) throws IOException {
+        checkCoordArrays(is, js, pixels, n);
+        for (int m = 0; m < n; m++) {
+            // Skip any out-of-range coordinates
+            pixels[m] = is[m] < 0 ? 0 : this.getPixel(is[m], js[m]);
+        }
+    }
+
+    /** Checks the arguments passed to {@link #getRowSpan(int, int, int, int[], int)} */
+    protected void checkRowSpan(int j, int iStart, int length, int[] pixels, int offset) {
+        if (length < 0 || iStart < 0 || iStart + length > this.getWidth() ||
+            j < 0 || j >= this.getHeight() ||
+            offset < 0 || offset + length > pixels.length) {
+            throw new IndexOutOfBoundsException();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     *
+     * This implementation simply calls {@link #getPixel(int, int)} for each
+     * pixel in the span.
+     */
+    @Override
+    public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset)
+            throws IOException {
+        this.checkRowSpan(j, iStart, length, pixels, offset);
+        for (int n = 0; n < length; n++) {
+            pixels[offset + n] = this.getPixel(iStart + n, j);
+        }
+    }
+
     /**
      * {@inheritDoc}
      *
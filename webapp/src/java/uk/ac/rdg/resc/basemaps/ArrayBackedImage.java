@@ -61,6 +61,20 @@ public final class ArrayBackedImage extends AbstractImage implements Serializabl
         return this.pixels[getIndex(i, j)];
     }
 
+    /** Reads the pixels directly from the array */
+    @Override public void getPixels(int[] is, int[] js, int[] pixels, int n) {
+        checkCoordArrays(is, js, pixels, n);
+        for (int m = 0; m < n; m++) {
+            pixels[m] = is[m] < 0 ? 0 : this.pixels[getIndex(is[m], js[m])];
+        }
+    }
+
+    /** Copies the span directly from the array */
+    @Override public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset) {
+        this.checkRowSpan(j, iStart, length, pixels, offset);
+        System.arraycopy(this.pixels, iStart + (j * this.getWidth()), pixels, offset, length);
+    }
+
     /**
      * Sets the given pixel to the given ARGB colour.
      * @throws IndexOutOfBoundsException if the point is outside the bounds of
@@ -7,8 +7,10 @@ package uk.ac.rdg.resc.basemaps;
 
 import java.io.IOException;
 import java.io.Serializable;
+import java.util.ArrayList;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.logging.Logger;
 import javax.cache.Cache;
@@ -68,6 +70,9 @@ public final class CachingImageMosaic extends ImageMosaic {
         this.tileStore = tileStore;
     }
 
+    @Override
+    public String getId() { return this.id; }
+
     @Override
     public int getMaxSubImageWidth() { return SUB_IMAGE_SIZE; }
 
@@ -82,23 +87,15 @@ public final class CachingImageMosaic extends ImageMosaic {
         // Get the width and height of the subimage
         int subImageWidth = this.getSubImageWidth(subImageIIndex);
         int subImageHeight = this.getSubImageHeight(subImageJIndex);
-        
-        // Get the top-left coordinates of the subimage in the parent image
-        int topLeftTileX = subImageIIndex * this.getMaxSubImageWidth();
-        int topLeftTileY = subImageJIndex * this.getMaxSubImageHeight();
 
         // Create a unique key for this subimage
-        TileStore.Key key = new TileStore.Key(
-            this.id, this.getWidth(), this.getHeight(),
-            topLeftTileX, topLeftTileY,
-            subImageWidth, subImageHeight
-        );
+        TileStore.Key key = this.createTileKey(subImageIIndex, subImageJIndex);
 
         // First look for the tile in the memcache
         // We use the string representation of the key as the memcache key - 
         // TODO revisit this
         String memcacheKey = key.toString();
-        int[] pixels = (int[])MEMCACHE.get(memcacheKey);
+        int[] pixels = fromMemcache(key, MEMCACHE.get(memcacheKey));
         if (pixels != null) {
             log.fine("Subimage " + subImageIIndex + ", " + subImageJIndex +
                     " found in memcache.");
@@ -106,15 +103,17 @@ public final class CachingImageMosaic extends ImageMosaic {
         }
 
         // Then look for the tile in the persistent store
-        pixels = this.tileStore.getPixels(key);
+        byte[] data = this.tileStore.getTileData(key);
+        pixels = data == null ? null : TileStore.decode(key, data);
         if (pixels != null) {
             log.fine("Subimage " + subImageIIndex + ", " + subImageJIndex +
                     " found in persistent store.");
-            // Put it in the memcache for later reference
-            log.fine("Putting " + pixels.length + " into memcache (key length = "
+            // Put it in the memcache for later reference.  We store the
+            // encoded tile, which is much smaller than the pixels.
+            log.fine("Putting " + data.length + " bytes into memcache (key length = "
                     + memcacheKey.length() + ")");
             try {
-                MEMCACHE.put(memcacheKey, pixels);
+                MEMCACHE.put(memcacheKey, data);
             } catch(Exception e) {
                 // During stress testing, we often see errors in the put request:
                 // http://groups.google.co.uk/group/google-appengine-java/browse_thread/thread/7491cb06d6708150?hl=en
@@ -129,6 +128,101 @@ public final class CachingImageMosaic extends ImageMosaic {
         return new EmptyImage(subImageWidth, subImageHeight);
     }
 
+    /**
+     * Gets several sub-images with one call to the memcache and (for the
+     * sub-images that aren't in the memcache) one call to the persistent
+     * store, rather than two round-trips per sub-image.
+     */
+    @Override
+    protected Image[] getSubImages(int[] subImageIIndices, int[] subImageJIndices, int n)
+    {
+        log.fine("Getting " + n + " subimages");
+        TileStore.Key[] keys = new TileStore.Key[n];
+        List<String> memcacheKeys = new ArrayList<String>(n);
+        for (int k = 0; k < n; k++) {
+            keys[k] = this.createTileKey(subImageIIndices[k], subImageJIndices[k]);
+            memcacheKeys.add(keys[k].toString());
+        }
+
+        // First look for the tiles in the memcache
+        Map<?, ?> found;
+        try {
+            found = MEMCACHE.getAll(memcacheKeys);
+        } catch (CacheException ce) {
+            // We can still get the tiles from the persistent store
+            log.warning("Error getting pixels from memcache: " + ce.toString());
+            found = Collections.emptyMap();
+        }
+        int[][] pixels = new int[n][];
+        List<TileStore.Key> misses = new ArrayList<TileStore.Key>();
+        for (int k = 0; k < n; k++) {
+            pixels[k] = fromMemcache(keys[k], found.get(memcacheKeys.get(k)));
+            if (pixels[k] == null) misses.add(keys[k]);
+        }
+        log.fine((n - misses.size()) + " of " + n + " subimages found in memcache.");
+
+        // Then look for the rest in the persistent store
+        if (!misses.isEmpty()) {
+            Map<TileStore.Key, byte[]> stored = this.tileStore.getTileData(misses);
+            log.fine(stored.size() + " of " + misses.size() +
+                    " subimages found in persistent store.");
+            Map<String, byte[]> toMemcache = new HashMap<String, byte[]>(stored.size() * 2);
+            for (int k = 0; k < n; k++) {
+                if (pixels[k] != null) continue;
+                byte[] data = stored.get(keys[k]);
+                if (data == null) continue;
+                pixels[k] = TileStore.decode(keys[k], data);
+                if (pixels[k] != null) toMemcache.put(memcacheKeys.get(k), data);
+            }
+            if (!toMemcache.isEmpty()) {
+                try {
+                    putAllInMemcache(toMemcache);
+                } catch(Exception e) {
+                    // See the comment in getSubImage()
+                    log.warning("Error putting pixels in memcache: " + e.toString());
+                }
+            }
+        }
+
+        Image[] subImages = new Image[n];
+        for (int k = 0; k < n; k++) {
+            int subImageWidth = this.getSubImageWidth(subImageIIndices[k]);
+            int subImageHeight = this.getSubImageHeight(subImageJIndices[k]);
+            subImages[k] = pixels[k] == null
+                ? new EmptyImage(subImageWidth, subImageHeight)
+                : new ArrayBackedImage(subImageWidth, subImageHeight, pixels[k]);
+        }
+        return subImages;
+    }
+
+    /** Puts the given entries in memcache, which is a raw Map */
+    @SuppressWarnings("unchecked")
+    private static void putAllInMemcache(Map<String, byte[]> entries) {
+        MEMCACHE.putAll(entries);
+    }
+
+    /**
+     * Gets the pixels from a value in the memcache, which is the encoded tile
+     * (or the array of pixels, in entries written by older versions).
+     * @return the pixels, or null if the value is null or can't be decoded
+     */
+    private static int[] fromMemcache(TileStore.Key key, Object value) {
+        if (value instanceof byte[]) return TileStore.decode(key, (byte[])value);
+        if (value instanceof int[]) return (int[])value;
+        return null;
+    }
+
+    /** Creates the key that identifies the given sub-image in the stores */
+    private TileStore.Key createTileKey(int subImageIIndex, int subImageJIndex) {
+        return new TileStore.Key(
+            this.id, this.getWidth(), this.getHeight(),
+            subImageIIndex * this.getMaxSubImageWidth(),
+            subImageJIndex * this.getMaxSubImageHeight(),
+            this.getSubImageWidth(subImageIIndex),
+            this.getSubImageHeight(subImageJIndex)
+        );
+    }
+
     /*public void testCache() {
         int numSubImagesIDirection = this.getWidth() / this.getMaxSubImageWidth();
         if (this.getWidth() > numSubImagesIDirection * this.getMaxSubImageWidth()) {
@@ -5,17 +5,30 @@
 
 package uk.ac.rdg.resc.basemaps;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.nio.ByteBuffer;
 import java.nio.channels.FileChannel;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Logger;
 import uk.ac.rdg.resc.basemaps.persistent.TileStore;
 
 /**
- * An image mosaic that is backed by a set of files on the local disk.
+ * <p>An image mosaic that is backed by a set of files on the local disk.
+ * The tile files are normally encoded with {@link TileCodec} and are decoded
+ * into memory when they are read; raw tile files in the old format are read
+ * directly.</p>
+ * <p>If the mosaic is created in memory-mapped mode, each tile file is
+ * mapped read-only the first time it is needed and the mapping is shared
+ * between all subsequent requests.  Encoded tiles are decoded straight from
+ * the mapping, and the pixels of raw tiles are served straight from the page
+ * cache without copying.  Otherwise each call to
+ * {@link #getSubImage(int, int)} reads the whole tile file.  Decoded tiles
+ * are not kept here: use a {@link uk.ac.rdg.resc.basemaps.cache.SubImageCache}
+ * to avoid decoding the same tile repeatedly.</p>
  * @author Jon
  */
 public class FileBackedImageMosaic extends ImageMosaic {
@@ -32,11 +45,62 @@ public class FileBackedImageMosaic extends ImageMosaic {
     
     /** The directory in which the files are stored */
     private final File directory;
+
+    /** True if the tile files are to be memory-mapped rather than read */
+    private final boolean memoryMapped;
+
+    /** Read-only mappings of the tile files, keyed by filename.  Only used
+     * in memory-mapped mode. */
+    private final ConcurrentHashMap<String, ByteBuffer> mappedTiles =
+            new ConcurrentHashMap<String, ByteBuffer>();
     
     public FileBackedImageMosaic(String id, int width, int height, File directory) {
+        this(id, width, height, directory, false);
+    }
+
+    /**
+     * Creates a mosaic from the tile files in the given directory.
+     * @param memoryMapped if true, each tile file will be mapped into memory
+     * once and the mapping shared between requests.
+     */
+    public FileBackedImageMosaic(String id, int width, int height, File directory,
+            boolean memoryMapped) {
         super(width, height);
         this.id = id;
         this.directory = directory;
+        this.memoryMapped = memoryMapped;
+    }
+
+    @Override
+    public String getId() {
+        return this.id;
+    }
+
+    /**
+     * Looks in this mosaic's directory for overviews, as written by
+     * ImageMosaicGenerator, and adds each one that is found.  The overview
+     * with factor f is a mosaic of size ceil(width/f) x ceil(height/f) with
+     * the same id, stored in tiles of the same layout.  Factors are powers
+     * of two.
+     * @return the number of overviews found
+     */
+    public int loadOverviews() {
+        int numOverviews = 0;
+        for (int factor = 2; factor < 2 * Math.max(this.getWidth(), this.getHeight()); factor *= 2) {
+            int width = (this.getWidth() + factor - 1) / factor;
+            int height = (this.getHeight() + factor - 1) / factor;
+            // Look for the top-left tile of the overview
+            TileStore.Key key = new TileStore.Key(this.id, width, height, 0, 0,
+                    Math.min(width, SUB_IMAGE_SIZE), Math.min(height, SUB_IMAGE_SIZE));
+            if (new File(this.directory, key.toString() + ".tile").exists()) {
+                log.info("Found overview of " + this.id + " with factor " + factor
+                        + " (" + width + "x" + height + ")");
+                this.addOverview(factor, new FileBackedImageMosaic(
+                        this.id, width, height, this.directory, this.memoryMapped));
+                numOverviews++;
+            }
+        }
+        return numOverviews;
     }
 
     @Override
@@ -68,22 +132,89 @@ public class FileBackedImageMosaic extends ImageMosaic {
     }
     
     private Image getImage(String filename, int subImageWidth, int subImageHeight) throws IOException {
-        File imageFile = new File(this.directory, filename);
-        int length = (int)imageFile.length();
-        if (length == 0) throw new FileNotFoundException(imageFile.getPath());
-        if (length != subImageWidth * subImageHeight * 4) {
-            throw new IllegalStateException("Unexpected file length");
+        ByteBuffer buf = this.memoryMapped ? this.mappedTiles.get(filename) : null;
+        if (buf == null) {
+            File imageFile = new File(this.directory, filename);
+            int length = (int)imageFile.length();
+            if (length == 0) throw new FileNotFoundException(imageFile.getPath());
+            buf = this.memoryMapped ? this.mapFile(imageFile, length) : null;
+            if (buf != null) {
+                // If another thread has mapped the same file in the meantime
+                // we use its mapping and let ours be garbage-collected
+                ByteBuffer existing = this.mappedTiles.putIfAbsent(filename, buf);
+                if (existing != null) buf = existing;
+            } else if (length != subImageWidth * subImageHeight * 4) {
+                // An encoded tile, which we decode into memory
+                log.fine("Decoding image data from " + filename);
+                byte[] data = RenderContext.get().getBytes(RenderContext.TILE_DATA, length);
+                readFile(imageFile, data, length);
+                return new ArrayBackedImage(subImageWidth, subImageHeight,
+                        TileCodec.decode(data, 0, length, subImageWidth, subImageHeight));
+            } else {
+                // Probably a raw tile in the old format
+                log.fine("Reading image data from " + filename);
+                buf = readFile(imageFile, length);
+            }
+        }
+        // Encoded tiles are decoded straight from the mapping (or buffer).
+        // We don't keep the decoded pixels: that's the job of the sub-image cache.
+        if (TileCodec.hasMagic(buf)) {
+            return new ArrayBackedImage(subImageWidth, subImageHeight,
+                    TileCodec.decode(buf, subImageWidth, subImageHeight));
+        }
+        return new ByteBufferBackedImage(subImageWidth, subImageHeight, buf);
+    }
+
+    /**
+     * Maps the given file into memory, returning null if the platform does not
+     * support memory-mapping, in which case the caller should read the file.
+     */
+    private ByteBuffer mapFile(File imageFile, int length) throws IOException {
+        log.fine("Mapping image data from " + imageFile.getName());
+        FileChannel chan = new FileInputStream(imageFile).getChannel();
+        try {
+            // The mapping remains valid after the channel is closed
+            return chan.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException ioe) {
+            log.warning("Could not map " + imageFile.getName() + ": " + ioe);
+            return null;
+        } catch (UnsupportedOperationException uoe) {
+            log.warning("Could not map " + imageFile.getName() + ": " + uoe);
+            return null;
+        } finally {
+            chan.close();
+        }
+    }
+
+    private static void readFile(File imageFile, byte[] data, int length) throws IOException {
+        FileInputStream in = new FileInputStream(imageFile);
+        try {
+            int pos = 0;
+            while (pos < length) {
+                int n = in.read(data, pos, length - pos);
+                if (n < 0) throw new EOFException(imageFile.getName() + " is truncated");
+                pos += n;
+            }
+        } finally {
+            in.close();
         }
-        log.fine("Reading image data from " + filename);
+    }
+
+    private static ByteBuffer readFile(File imageFile, int length) throws IOException {
         ByteBuffer buf = ByteBuffer.allocateDirect(length);
         FileChannel chan = new FileInputStream(imageFile).getChannel();
-        chan.read(buf);
-        chan.close();
-        return new ByteBufferBackedImage(subImageWidth, subImageHeight, buf);
+        try {
+            while (buf.hasRemaining()) {
+                if (chan.read(buf) < 0) break;
+            }
+        } finally {
+            chan.close();
+        }
+        return buf;
     }
     
-    /** Image that's backed by a byte buffer */
-    private static final class ByteBufferBackedImage extends AbstractImage {
+    /** Image that's backed by a byte buffer, which may be a memory mapping */
+    public static final class ByteBufferBackedImage extends AbstractImage {
         private final ByteBuffer buf;
         
         public ByteBufferBackedImage(int width, int height, ByteBuffer buf) {
@@ -93,21 +224,32 @@ public class FileBackedImageMosaic extends ImageMosaic {
 
         public int getPixel(int i, int j) {
             int pos = 4 * ((j * this.getWidth()) + i);
-            // We read the bytes one at a time to avoid the need to set the
-            // position of the byte buffer, which would require synchronization
-            // between threads
-            byte b1 = this.buf.get(pos);
-            byte b2 = this.buf.get(pos+1);
-            byte b3 = this.buf.get(pos+2);
-            byte b4 = this.buf.get(pos+3);
-            
-            // Convert these bytes to an int and return
-            return (b1 << 24) + (b2 << 16) + (b3 << 8) + b4;
+            // We use an absolute get to avoid the need to set the position of
+            // the byte buffer, which would require synchronization between
+            // threads (the buffer may be a mapping shared between requests)
+            return this.buf.getInt(pos);
+        }
+
+        /** Reads the span in one bulk operation from a view of the buffer */
+        @Override
+        public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset) {
+            this.checkRowSpan(j, iStart, length, pixels, offset);
+            // We work on a duplicate so that we don't disturb the position
+            // of the shared buffer
+            ByteBuffer view = this.buf.duplicate();
+            view.position(4 * ((j * this.getWidth()) + iStart));
+            view.asIntBuffer().get(pixels, offset, length);
         }
 
         public int[] getPixels() throws IOException {
             throw new UnsupportedOperationException("Not supported.");
         }
+
+        /** Gets the number of bytes of heap that the pixels occupy: zero if
+         * the buffer is a memory mapping */
+        public long getHeapBytes() {
+            return this.buf.isDirect() ? 0 : this.buf.capacity();
+        }
     }
 
     @Override
@@ -124,4 +266,11 @@ public class FileBackedImageMosaic extends ImageMosaic {
         throw new UnsupportedOperationException("Not supported yet.");
     }
 
+    /** Releases the mappings of the tile files */
+    @Override
+    public void dispose() {
+        this.mappedTiles.clear();
+        super.dispose();
+    }
+
 }
@@ -7,8 +7,9 @@ package uk.ac.rdg.resc.basemaps;
 
 import java.io.IOException;
 import java.util.AbstractList;
-import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.List;
+import uk.ac.rdg.resc.basemaps.metrics.Stage;
 
 /**
  * An image whose boundaries are mapped in lat-lon space
@@ -96,19 +97,112 @@ public class GeoreferencedImage {
      */
     public int[] getNearestIndices(double lon, double lat) {
         double[] xy = this.projection.lonLatToProj(lon, lat);
-        double x = xy[0];
-        double y = xy[1];
-        if (x < this.minX || x > this.maxX ||
-            y < this.minY || y > this.maxY) {
-            return null;
-        }
-        double nx = (x - this.startX) / this.dx;
-        double ny = (y - this.startY) / this.dy;
+        int i = this.getNearestIIndex(xy[0]);
+        int j = this.getNearestJIndex(xy[1]);
+        if (i < 0 || j < 0) return null;
+        return new int[] {i, j};
+    }
+
+    /**
+     * Gets the nearest i index to the given x coordinate, or -1 if x is outside
+     * the bounds of the image
+     */
+    private int getNearestIIndex(double x) {
+        return this.getNearestIIndexFromFraction((x - this.startX) / this.dx);
+    }
+
+    /**
+     * Gets the nearest j index to the given y coordinate, or -1 if y is outside
+     * the bounds of the image
+     */
+    private int getNearestJIndex(double y) {
+        return this.getNearestJIndexFromFraction((y - this.startY) / this.dy);
+    }
+
+    /**
+     * Gets the nearest i index to the given fractional i index (in which the
+     * centre of the first column is at zero), or -1 if it is outside the bounds
+     * of the image.
+     */
+    int getNearestIIndexFromFraction(double nx) {
+        // This test also excludes NaNs
+        if (!(nx >= -0.5 && nx <= this.image.getWidth() - 0.5)) return -1;
+        // Points on the right-hand boundary belong to the last column
+        return Math.min((int)Math.round(nx), this.image.getWidth() - 1);
+    }
+
+    /**
+     * Gets the nearest j index to the given fractional index along the y axis
+     * (in which the centre of the bottom row is at zero), or -1 if it is
+     * outside the bounds of the image.
+     */
+    int getNearestJIndexFromFraction(double ny) {
+        if (!(ny >= -0.5 && ny <= this.image.getHeight() - 0.5)) return -1;
+        int j = Math.min((int)Math.round(ny), this.image.getHeight() - 1);
         // We flip the j axis
-        return new int[] {
-            (int)Math.round(nx),
-            this.image.getHeight() - 1 - (int)Math.round(ny)
-        };
+        return this.image.getHeight() - 1 - j;
+    }
+
+    /**
+     * Finds the position in this image of the centre of the given pixel in
+     * the target image, as fractional indices along the x and y axes of this
+     * image.  These can be passed to {@link #getNearestIIndexFromFraction(double)}
+     * and {@link #getNearestJIndexFromFraction(double)}.
+     * @param nxy Two-element array into which the fractional indices are written
+     * @return false if the point could not be projected
+     */
+    boolean getFractionalIndices(GeoreferencedImage target, int i, int j, double[] nxy) {
+        nxy[0] = i;
+        nxy[1] = j;
+        this.getFractionalIndices(target, nxy, 1);
+        return !Double.isNaN(nxy[0]) && !Double.isNaN(nxy[1]);
+    }
+
+    /**
+     * Finds the position in this image of the centres of n pixels in the
+     * target image, projecting them all in one pass.  On entry, ijs holds the
+     * [i,j] indices of each target pixel as a pair; these are replaced by the
+     * fractional indices of the pixel in this image, or by NaNs if the pixel
+     * could not be projected.
+     * @see #getFractionalIndices(GeoreferencedImage, int, int, double[])
+     */
+    void getFractionalIndices(GeoreferencedImage target, double[] ijs, int n) {
+        int targetHeight = target.image.getHeight();
+        for (int p = 0; p < 2 * n; p += 2) {
+            ijs[p] = target.startX + ijs[p] * target.dx;
+            // We must flip the j axis
+            ijs[p + 1] = target.startY + (targetHeight - 1 - ijs[p + 1]) * target.dy;
+        }
+        target.projection.projToLonLat(ijs, ijs, n);
+        this.projection.lonLatToProj(ijs, ijs, n);
+        for (int p = 0; p < 2 * n; p += 2) {
+            ijs[p] = (ijs[p] - this.startX) / this.dx;
+            ijs[p + 1] = (ijs[p + 1] - this.startY) / this.dy;
+        }
+    }
+
+    /**
+     * Gets the nearest [i,j] index to each of the given longitude-latitude
+     * points, writing the indices to the given arrays.  Points outside the
+     * bounds of the image are given an i index of -1.
+     */
+    public void getNearestIndices(double[] lons, double[] lats, int[] is, int[] js) {
+        double[] xys = RenderContext.get().getDoubles(RenderContext.COORDINATES, 2 * lons.length);
+        for (int n = 0; n < lons.length; n++) {
+            xys[2 * n] = lons[n];
+            xys[2 * n + 1] = lats[n];
+        }
+        this.projection.lonLatToProj(xys, xys, lons.length);
+        for (int n = 0; n < lons.length; n++) {
+            int i = this.getNearestIIndex(xys[2 * n]);
+            int j = this.getNearestJIndex(xys[2 * n + 1]);
+            if (i < 0 || j < 0) {
+                is[n] = -1;
+            } else {
+                is[n] = i;
+                js[n] = j;
+            }
+        }
     }
 
     /**
@@ -126,13 +220,238 @@ public class GeoreferencedImage {
      * in this image, or null if the point is outside the bounds of the image
      */
     public int[] getNearestPixels(List<double[]> lonLats) throws IOException {
-        List<int[]> coordsList = new ArrayList<int[]>(lonLats.size());
-        for (double[] lonLat : lonLats) {
+        double[] lons = new double[lonLats.size()];
+        double[] lats = new double[lonLats.size()];
+        for (int n = 0; n < lons.length; n++) {
+            double[] lonLat = lonLats.get(n);
             if (lonLat == null) throw new NullPointerException();
             if (lonLat.length != 2) throw new IllegalArgumentException("Invalid lon-lat");
-            coordsList.add(this.getNearestIndices(lonLat[0], lonLat[1]));
+            lons[n] = lonLat[0];
+            lats[n] = lonLat[1];
+        }
+        int[] pixels = new int[lons.length];
+        this.getNearestPixels(lons, lats, pixels);
+        return pixels;
+    }
+
+    /**
+     * Gets the nearest ARGB pixel to each of the given longitude-latitude
+     * points in this image, writing them into the given array.  Pixels for
+     * points outside the bounds of the image are set to zero.
+     */
+    public void getNearestPixels(double[] lons, double[] lats, int[] pixels)
+            throws IOException {
+        int[] is = new int[lons.length];
+        int[] js = new int[lons.length];
+        this.getNearestIndices(lons, lats, is, js);
+        this.image.getPixels(is, js, pixels);
+    }
+
+    /**
+     * For each pixel in the given target image, finds the nearest pixel in
+     * this image, writing the results into the given array.  The first pixel
+     * in the array is the top left-hand corner of the target image.
+     * @param target The image whose pixels are to be filled in
+     * @param pixels Array of at least width*height elements in which the
+     * pixels of the target image will be placed
+     */
+    public void getNearestPixels(GeoreferencedImage target, int[] pixels)
+            throws IOException {
+        // If we are zoomed out we can read from a lower-resolution overview
+        GeoreferencedImage overview = this.getOverviewFor(target);
+        if (overview != this) {
+            overview.getNearestPixels(target, pixels);
+            return;
+        }
+        // Large images may be rendered in bands on several threads
+        if (!ParallelRenderer.render(this, target, pixels)) {
+            this.renderSerially(target, pixels, 0);
+        }
+    }
+
+    /**
+     * Renders the target image on the current thread, without looking for
+     * an overview.
+     * @param offset The position in the pixels array of the top left-hand
+     * corner of the target image (e.g. of a band within a larger image)
+     * @see #getNearestPixels(GeoreferencedImage, int[])
+     */
+    void renderSerially(GeoreferencedImage target, int[] pixels, int offset)
+            throws IOException {
+        if (this.projection.isSeparable() && target.projection.isSeparable()) {
+            this.getNearestPixelsSeparable(target, pixels, offset);
+            return;
+        }
+        // Projecting every pixel is expensive, so we project a sparse grid
+        // of points and interpolate in between
+        int numPixels = target.image.getWidth() * target.image.getHeight();
+        RenderContext context = RenderContext.get();
+        int[] is = context.getInts(RenderContext.SOURCE_IS, numPixels);
+        int[] js = context.getInts(RenderContext.SOURCE_JS, numPixels);
+        long start = System.nanoTime();
+        new GridReprojection(this, target).getNearestIndices(is, js);
+        Stage.COORDINATES.recordSince(start);
+        if (offset == 0) {
+            this.image.getPixels(is, js, pixels, numPixels);
+        } else {
+            // Image.getPixels() always writes from the start of the array
+            int[] band = context.getInts(RenderContext.BAND_PIXELS, numPixels);
+            this.image.getPixels(is, js, band, numPixels);
+            System.arraycopy(band, 0, pixels, offset, numPixels);
+        }
+    }
+
+    /**
+     * Gets a new image that covers rows jStart (inclusive) to jEnd (exclusive)
+     * of this image, in the same projection and with the same pixel size.
+     * The new image has no pixels of its own: it only describes the band, as
+     * a target for {@link #renderSerially(GeoreferencedImage, int[], int)}.
+     */
+    GeoreferencedImage getRowBand(int jStart, int jEnd) {
+        double[] bbox = {
+            this.minX,
+            this.maxY - jEnd * this.dy,
+            this.maxX,
+            this.maxY - jStart * this.dy
+        };
+        return new GeoreferencedImage(new CachingImageMosaic.EmptyImage(this.image.getWidth(),
+                jEnd - jStart), bbox, this.projection);
+    }
+
+    /**
+     * If this image is a mosaic with overviews, gets the coarsest overview
+     * that still has at least one pixel for each pixel of the target image,
+     * georeferenced in the same way as this image.  Otherwise returns this
+     * image.
+     */
+    private GeoreferencedImage getOverviewFor(GeoreferencedImage target) {
+        if (!(this.image instanceof ImageMosaic)) return this;
+        ImageMosaic mosaic = (ImageMosaic) this.image;
+        int factor = mosaic.getOverviewFactor(this.getScale(target));
+        if (factor == 1) return this;
+        ImageMosaic overview = mosaic.getOverview(factor);
+        // Each pixel of the overview is the top-left pixel of a block of
+        // factor x factor pixels in this image.  We shift the bounding box so
+        // that the centres of these pixels are in the same place.
+        double left = this.minX - (factor - 1) * this.dx / 2.0;
+        double top = this.maxY + (factor - 1) * this.dy / 2.0;
+        double[] bbox = {
+            left,
+            top - overview.getHeight() * factor * this.dy,
+            left + overview.getWidth() * factor * this.dx,
+            top
+        };
+        return new GeoreferencedImage(overview, bbox, this.projection);
+    }
+
+    /**
+     * Estimates the number of pixels in this image that correspond with the
+     * width of one pixel in the target image, by projecting the centre and
+     * corners of the target.  We take the smallest value so that we don't
+     * lose detail anywhere in the target image.
+     * @return the scale, or 1 if it could not be estimated
+     */
+    private double getScale(GeoreferencedImage target) {
+        int width = target.image.getWidth();
+        int height = target.image.getHeight();
+        if (width < 2 || height < 2) return 1.0;
+        int[] is = {width / 2, 0, width - 2, 0, width - 2};
+        int[] js = {height / 2, 0, 0, height - 2, height - 2};
+        double[] nxy = new double[2];
+        double[] nxyRight = new double[2];
+        double[] nxyBelow = new double[2];
+        double scale = Double.POSITIVE_INFINITY;
+        for (int n = 0; n < is.length; n++) {
+            if (this.getFractionalIndices(target, is[n], js[n], nxy) &&
+                this.getFractionalIndices(target, is[n] + 1, js[n], nxyRight) &&
+                this.getFractionalIndices(target, is[n], js[n] + 1, nxyBelow)) {
+                double iScale = Math.hypot(nxyRight[0] - nxy[0], nxyRight[1] - nxy[1]);
+                double jScale = Math.hypot(nxyBelow[0] - nxy[0], nxyBelow[1] - nxy[1]);
+                scale = Math.min(scale, Math.min(iScale, jScale));
+            }
+        }
+        return Double.isInfinite(scale) ? 1.0 : scale;
+    }
+
+    /**
+     * Implementation of {@link #getNearestPixels(GeoreferencedImage, int[])}
+     * for the case in which both images are in separable projections.  In
+     * this case each column of the target image maps to a single column of
+     * this image, and each row to a single row, so we only need to project
+     * one row and one column.  Each required row of this image is then read
+     * once and copied into all the target rows that need it.
+     */
+    private void getNearestPixelsSeparable(GeoreferencedImage target, int[] pixels,
+            int offset) throws IOException {
+        int width = target.image.getWidth();
+        int height = target.image.getHeight();
+
+        // Find the i index in this image of each column in the target image,
+        // and the range of i indices that we need
+        RenderContext context = RenderContext.get();
+        long start = System.nanoTime();
+        int[] sourceIs = context.getInts(RenderContext.SOURCE_IS, width);
+        double[] coords = context.getDoubles(RenderContext.COORDINATES, 2 * Math.max(width, height));
+        for (int i = 0; i < width; i++) {
+            coords[2 * i] = target.startX + i * target.dx;
+            coords[2 * i + 1] = target.startY;
+        }
+        target.projection.projToLonLat(coords, coords, width);
+        for (int i = 0; i < width; i++) {
+            coords[2 * i + 1] = 0.0;
+        }
+        this.projection.lonLatToProj(coords, coords, width);
+        int minI = Integer.MAX_VALUE;
+        int maxI = -1;
+        for (int i = 0; i < width; i++) {
+            sourceIs[i] = this.getNearestIIndex(coords[2 * i]);
+            if (sourceIs[i] >= 0) {
+                minI = Math.min(minI, sourceIs[i]);
+                maxI = Math.max(maxI, sourceIs[i]);
+            }
+        }
+
+        // Now find the y coordinate in this image of each row in the target
+        // image.  We must flip the j axis.
+        for (int j = 0; j < height; j++) {
+            coords[2 * j] = target.startX;
+            coords[2 * j + 1] = target.startY + (height - 1 - j) * target.dy;
+        }
+        target.projection.projToLonLat(coords, coords, height);
+        for (int j = 0; j < height; j++) {
+            coords[2 * j] = 0.0;
+        }
+        this.projection.lonLatToProj(coords, coords, height);
+        Stage.COORDINATES.recordSince(start);
+        int spanLength = maxI - minI + 1;
+        // If we are zoomed out the target only needs a small fraction of
+        // each source row: in this case it's cheaper to read the individual
+        // pixels than the whole span
+        boolean readSpans = spanLength <= 2 * width;
+        int[] rowPixels = context.getInts(RenderContext.ROW_PIXELS, Math.max(spanLength, width));
+        int[] rowJs = context.getInts(RenderContext.SOURCE_JS, width);
+
+        int prevSourceJ = -1;
+        for (int j = 0; j < height; j++) {
+            int rowStart = offset + j * width;
+            int sourceJ = maxI < 0 ? -1 : this.getNearestJIndex(coords[2 * j + 1]);
+            if (sourceJ < 0) {
+                Arrays.fill(pixels, rowStart, rowStart + width, 0);
+            } else if (sourceJ == prevSourceJ) {
+                // This row is the same as the one above
+                System.arraycopy(pixels, rowStart - width, pixels, rowStart, width);
+            } else if (readSpans) {
+                this.image.getRowSpan(sourceJ, minI, spanLength, rowPixels, 0);
+                for (int i = 0; i < width; i++) {
+                    pixels[rowStart + i] = sourceIs[i] < 0 ? 0 : rowPixels[sourceIs[i] - minI];
+                }
+            } else {
+                Arrays.fill(rowJs, 0, width, sourceJ);
+                this.image.getPixels(sourceIs, rowJs, rowPixels, width);
+                System.arraycopy(rowPixels, 0, pixels, rowStart, width);
+            }
+            prevSourceJ = sourceJ;
         }
-        return this.image.getPixels(coordsList);
     }
 
     /** Does nothing if lon,lat is outside the bounds of this image */
@@ -0,0 +1,343 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps;
+
+/**
+ * <p>Finds the nearest pixel in a source image for every pixel in a target
+ * image, without projecting every target pixel.  The exact transformation is
+ * only calculated on a sparse grid of control points (every
+ * {@value #DEFAULT_GRID_STEP} pixels by default); the source indices of the
+ * pixels in between are interpolated bilinearly.</p>
+ * <p>Each grid cell is checked by calculating the exact transformation at the
+ * centre and the midpoint of each edge.  If the interpolation is out by more
+ * than the tolerance, the cell is split into four and each quarter is checked
+ * in turn.  The tolerance is {@value #DEFAULT_TOLERANCE} of a pixel by default,
+ * measured in source pixels or target pixels, whichever is larger (when the
+ * target is zoomed out, each target pixel samples several source pixels and
+ * an error of one source pixel is not visible).
+ * Cells that straddle a discontinuity (e.g. the date line) or contain points
+ * that can't be projected are split until they are small enough to be
+ * projected pixel by pixel.</p>
+ * <p>The grid spacing and tolerance can be changed with the system properties
+ * {@value #GRID_STEP_PROPERTY} and {@value #TOLERANCE_PROPERTY}.</p>
+ * <p>Instances of this class are not thread-safe.</p>
+ * @author Jon
+ */
+final class GridReprojection {
+
+    /** System property that sets the spacing of the control points in pixels */
+    static final String GRID_STEP_PROPERTY = "basemaps.reprojection.gridStep";
+
+    /** System property that sets the maximum interpolation error in pixels */
+    static final String TOLERANCE_PROPERTY = "basemaps.reprojection.tolerance";
+
+    static final int DEFAULT_GRID_STEP = 16;
+
+    static final double DEFAULT_TOLERANCE = 0.125;
+
+    private static final int GRID_STEP = Math.max(2,
+            Integer.getInteger(GRID_STEP_PROPERTY, DEFAULT_GRID_STEP));
+
+    private static final double TOLERANCE = getTolerance();
+
+    private static final int SMALL_CELL_SIZE = 4;
+
+    private final GeoreferencedImage source;
+    private final GeoreferencedImage target;
+    private final int width;
+    private final int height;
+
+    /** Scratch space for the results of exact transformations */
+    private final double[] nxy = new double[2];
+
+    /** Scratch space for the midpoints of the cell being checked.  Cells are
+     * split recursively, so these are copied to local variables before the
+     * quarters are filled in. */
+    private final int[] midIs = new int[5];
+    private final int[] midJs = new int[5];
+    private final double[] mid = new double[10];
+    private final boolean[] midValid = new boolean[5];
+
+    // The output arrays
+    private int[] is;
+    private int[] js;
+
+    /**
+     * @param source The image from which pixels will be read
+     * @param target The image whose pixels are to be filled in
+     */
+    public GridReprojection(GeoreferencedImage source, GeoreferencedImage target) {
+        this.source = source;
+        this.target = target;
+        this.width = target.getImage().getWidth();
+        this.height = target.getImage().getHeight();
+    }
+
+    private static double getTolerance() {
+        String tolerance = System.getProperty(TOLERANCE_PROPERTY);
+        if (tolerance == null) return DEFAULT_TOLERANCE;
+        try {
+            return Double.parseDouble(tolerance);
+        } catch (NumberFormatException nfe) {
+            return DEFAULT_TOLERANCE;
+        }
+    }
+
+    /**
+     * Finds the nearest [i,j] index in the source image to each pixel in the
+     * target image.  The first element of each array corresponds with the
+     * top-left pixel of the target image.  Pixels that fall outside the
+     * source image are given an i index of -1.
+     * @param is Array of width*height elements for the i indices
+     * @param js Array of width*height elements for the j indices
+     */
+    public void getNearestIndices(int[] is, int[] js) {
+        this.is = is;
+        this.js = js;
+        if (this.width < 2 || this.height < 2) {
+            this.projectExactly(0, 0, this.width - 1, this.height - 1);
+            return;
+        }
+
+        // Calculate the positions of the control points, making sure that we
+        // include the last row and column
+        int[] gridIs = gridPositions(this.width);
+        int[] gridJs = gridPositions(this.height);
+
+        // Calculate the exact transformation at the control points, all in
+        // one pass
+        int numGridPoints = gridIs.length * gridJs.length;
+        double[] grid = new double[2 * numGridPoints];
+        int n = 0;
+        for (int gj = 0; gj < gridJs.length; gj++) {
+            for (int gi = 0; gi < gridIs.length; gi++) {
+                grid[n++] = gridIs[gi];
+                grid[n++] = gridJs[gj];
+            }
+        }
+        this.source.getFractionalIndices(this.target, grid, numGridPoints);
+        boolean[] valid = new boolean[numGridPoints];
+        for (n = 0; n < numGridPoints; n++) {
+            valid[n] = isValid(grid, 2 * n);
+        }
+
+        // Now fill in each cell of the grid
+        for (int gj = 0; gj < gridJs.length - 1; gj++) {
+            for (int gi = 0; gi < gridIs.length - 1; gi++) {
+                int n00 = gj * gridIs.length + gi;
+                int n10 = n00 + 1;
+                int n01 = n00 + gridIs.length;
+                int n11 = n01 + 1;
+                this.fillCell(gridIs[gi], gridJs[gj], gridIs[gi + 1], gridJs[gj + 1],
+                    valid[n00] && valid[n10] && valid[n01] && valid[n11],
+                    grid[2 * n00], grid[2 * n00 + 1], grid[2 * n10], grid[2 * n10 + 1],
+                    grid[2 * n01], grid[2 * n01 + 1], grid[2 * n11], grid[2 * n11 + 1]);
+            }
+        }
+    }
+
+    /** Gets the positions of the control points along an axis of the given size */
+    private static int[] gridPositions(int size) {
+        int numPositions = (size - 1 + GRID_STEP - 1) / GRID_STEP + 1;
+        int[] positions = new int[numPositions];
+        for (int p = 0; p < numPositions - 1; p++) {
+            positions[p] = p * GRID_STEP;
+        }
+        positions[numPositions - 1] = size - 1;
+        return positions;
+    }
+
+    /**
+     * Fills in the indices for the cell with the given corners, subdividing
+     * if the interpolation is not accurate enough.  A cell covers the pixels
+     * from its top-left corner up to, but not including, its right-hand and
+     * bottom edges (which belong to the neighbouring cells) unless those edges
+     * are at the edge of the target image.
+     */
+    private void fillCell(int i0, int j0, int i1, int j1, boolean allValid,
+            double x00, double y00, double x10, double y10,
+            double x01, double y01, double x11, double y11) {
+        // Splitting small cells costs more than projecting all their pixels
+        boolean small = i1 - i0 <= SMALL_CELL_SIZE && j1 - j0 <= SMALL_CELL_SIZE;
+        if (small && !allValid) {
+            this.projectCell(i0, j0, i1, j1);
+            return;
+        }
+
+        int im = (i0 + i1) / 2;
+        int jm = (j0 + j1) / 2;
+        boolean split = !allValid;
+        // Points in the source image that are more than half the width of the
+        // image apart are on either side of a discontinuity: we can't
+        // interpolate between them
+        double maxSpread = 0.5 * this.source.getImage().getWidth();
+        if (!split) {
+            double minX = Math.min(Math.min(x00, x10), Math.min(x01, x11));
+            double maxX = Math.max(Math.max(x00, x10), Math.max(x01, x11));
+            split = maxX - minX > maxSpread;
+        }
+
+        // The tolerance in each direction is scaled by the number of source
+        // pixels per target pixel, if this is larger than one
+        double cellWidth = Math.max(1, i1 - i0);
+        double cellHeight = Math.max(1, j1 - j0);
+        double toleranceX = TOLERANCE * Math.max(1.0, Math.max(
+                Math.abs(x10 - x00) / cellWidth, Math.abs(x01 - x00) / cellHeight));
+        double toleranceY = TOLERANCE * Math.max(1.0, Math.max(
+                Math.abs(y10 - y00) / cellWidth, Math.abs(y01 - y00) / cellHeight));
+
+        // Check the interpolation at the centre of the cell and the midpoints
+        // of the edges.  We'll need these points anyway if we split the cell.
+        int[] midIs = this.midIs;
+        int[] midJs = this.midJs;
+        double[] mid = this.mid;
+        boolean[] midValid = this.midValid;
+        midIs[0] = im; midJs[0] = jm;
+        midIs[1] = i0; midJs[1] = jm;
+        midIs[2] = i1; midJs[2] = jm;
+        midIs[3] = im; midJs[3] = j0;
+        midIs[4] = im; midJs[4] = j1;
+        for (int p = 0; p < 5; p++) {
+            mid[2 * p] = midIs[p];
+            mid[2 * p + 1] = midJs[p];
+        }
+        this.source.getFractionalIndices(this.target, mid, 5);
+        for (int p = 0; p < 5; p++) {
+            midValid[p] = isValid(mid, 2 * p);
+            if (!split) {
+                split = !midValid[p] ||
+                    error(i0, j0, i1, j1, midIs[p], midJs[p], x00, x10, x01, x11, mid[2 * p]) > toleranceX ||
+                    error(i0, j0, i1, j1, midIs[p], midJs[p], y00, y10, y01, y11, mid[2 * p + 1]) > toleranceY;
+            }
+        }
+
+        if (!split) {
+            this.interpolateCell(i0, j0, i1, j1, x00, y00, x10, y10, x01, y01, x11, y11);
+        } else if (small) {
+            this.projectCell(i0, j0, i1, j1);
+        } else {
+            boolean v00 = allValid, v10 = allValid, v01 = allValid, v11 = allValid;
+            if (!allValid) {
+                // We don't know which corners are invalid: recalculate them
+                v00 = this.project(i0, j0); x00 = this.nxy[0]; y00 = this.nxy[1];
+                v10 = this.project(i1, j0); x10 = this.nxy[0]; y10 = this.nxy[1];
+                v01 = this.project(i0, j1); x01 = this.nxy[0]; y01 = this.nxy[1];
+                v11 = this.project(i1, j1); x11 = this.nxy[0]; y11 = this.nxy[1];
+            }
+            // Centre, left, right, top, bottom
+            double xc = mid[0], yc = mid[1], xl = mid[2], yl = mid[3],
+                   xr = mid[4], yr = mid[5], xt = mid[6], yt = mid[7],
+                   xb = mid[8], yb = mid[9];
+            boolean vc = midValid[0], vl = midValid[1], vr = midValid[2],
+                    vt = midValid[3], vb = midValid[4];
+            if (im > i0 && jm > j0) {
+                this.fillCell(i0, j0, im, jm, v00 && vt && vl && vc,
+                        x00, y00, xt, yt, xl, yl, xc, yc);
+            }
+            if (jm > j0) {
+                this.fillCell(im, j0, i1, jm, vt && v10 && vc && vr,
+                        xt, yt, x10, y10, xc, yc, xr, yr);
+            }
+            if (im > i0) {
+                this.fillCell(i0, jm, im, j1, vl && vc && v01 && vb,
+                        xl, yl, xc, yc, x01, y01, xb, yb);
+            }
+            this.fillCell(im, jm, i1, j1, vc && vr && vb && v11,
+                    xc, yc, xr, yr, xb, yb, x11, y11);
+        }
+    }
+
+    /** Returns the difference between the exact and interpolated value at [i,j] */
+    private static double error(int i0, int j0, int i1, int j1, int i, int j,
+            double v00, double v10, double v01, double v11, double exact) {
+        return Math.abs(interpolate(i0, j0, i1, j1, i, j, v00, v10, v01, v11) - exact);
+    }
+
+    /** Bilinear interpolation of the values at the corners of a cell */
+    private static double interpolate(int i0, int j0, int i1, int j1, int i, int j,
+            double v00, double v10, double v01, double v11) {
+        double s = i1 == i0 ? 0.0 : (double)(i - i0) / (i1 - i0);
+        double t = j1 == j0 ? 0.0 : (double)(j - j0) / (j1 - j0);
+        double top = v00 + s * (v10 - v00);
+        double bottom = v01 + s * (v11 - v01);
+        return top + t * (bottom - top);
+    }
+
+    /** Fills in the pixels of a cell by interpolation */
+    private void interpolateCell(int i0, int j0, int i1, int j1,
+            double x00, double y00, double x10, double y10,
+            double x01, double y01, double x11, double y11) {
+        int iEnd = this.lastPixel(i1, this.width);
+        int jEnd = this.lastPixel(j1, this.height);
+        for (int j = j0; j <= jEnd; j++) {
+            for (int i = i0; i <= iEnd; i++) {
+                this.setIndices(i, j,
+                    interpolate(i0, j0, i1, j1, i, j, x00, x10, x01, x11),
+                    interpolate(i0, j0, i1, j1, i, j, y00, y10, y01, y11));
+            }
+        }
+    }
+
+    /** Fills in the pixels of a cell by projecting each one */
+    private void projectCell(int i0, int j0, int i1, int j1) {
+        this.projectExactly(i0, j0, this.lastPixel(i1, this.width),
+                this.lastPixel(j1, this.height));
+    }
+
+    /** Projects each pixel in the given inclusive range, a row at a time */
+    private void projectExactly(int i0, int j0, int iEnd, int jEnd) {
+        int rowLength = iEnd - i0 + 1;
+        if (rowLength <= 0) return;
+        double[] row = RenderContext.get().getDoubles(RenderContext.COORDINATES, 2 * rowLength);
+        for (int j = j0; j <= jEnd; j++) {
+            for (int i = i0; i <= iEnd; i++) {
+                row[2 * (i - i0)] = i;
+                row[2 * (i - i0) + 1] = j;
+            }
+            this.source.getFractionalIndices(this.target, row, rowLength);
+            for (int i = i0; i <= iEnd; i++) {
+                int p = 2 * (i - i0);
+                if (isValid(row, p)) {
+                    this.setIndices(i, j, row[p], row[p + 1]);
+                } else {
+                    this.is[j * this.width + i] = -1;
+                }
+            }
+        }
+    }
+
+    /**
+     * Gets the last pixel (inclusive) covered by a cell that ends at the given
+     * index: cells don't include their far edge, unless it's the edge of the image.
+     */
+    private int lastPixel(int end, int size) {
+        return end == size - 1 ? end : end - 1;
+    }
+
+    /** Sets the output indices for the given target pixel */
+    private void setIndices(int i, int j, double nx, double ny) {
+        int n = j * this.width + i;
+        int sourceI = this.source.getNearestIIndexFromFraction(nx);
+        int sourceJ = this.source.getNearestJIndexFromFraction(ny);
+        if (sourceI < 0 || sourceJ < 0) {
+            this.is[n] = -1;
+        } else {
+            this.is[n] = sourceI;
+            this.js[n] = sourceJ;
+        }
+    }
+
+    /** Returns true if the point at the given offset could be projected */
+    private static boolean isValid(double[] nxys, int offset) {
+        return !Double.isNaN(nxys[offset]) && !Double.isNaN(nxys[offset + 1]);
+    }
+
+    /** Calculates the exact position of the given target pixel in this.nxy */
+    private boolean project(int i, int j) {
+        return this.source.getFractionalIndices(this.target, i, j, this.nxy);
+    }
+
+}
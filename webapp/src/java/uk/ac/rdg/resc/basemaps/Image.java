@@ -55,6 +55,46 @@ public interface Image {
      */
     public int[] getPixels(List<int[]> coordsList) throws IOException;
 
+    /**
+     * Gets all the pixels at the [i,j] coordinates given in the provided arrays,
+     * writing them into the given array of pixels.  Unlike
+     * {@link #getPixels(java.util.List)} this does not require an object to be
+     * created for each coordinate pair.  A negative i index signifies an
+     * out-of-range coordinate: the corresponding pixel will be set to zero.
+     * @param is The i indices of the required pixels
+     * @param js The j indices of the required pixels
+     * @param pixels Array into which the pixel values will be written: pixels[n]
+     * will contain the pixel at [is[n], js[n]]
+     * @throws IOException if there was an error reading from the underlying image
+     * @throws NullPointerException if any of the arrays is null
+     * @throws IllegalArgumentException if js or pixels is shorter than is
+     * @throws IndexOutOfBoundsException if any of the coordinate values is
+     * out of range for this image.
+     */
+    public void getPixels(int[] is, int[] js, int[] pixels) throws IOException;
+
+    /**
+     * As {@link #getPixels(int[], int[], int[])}, but reads only the first
+     * n pixels, so that the arrays can be longer than needed (e.g. buffers
+     * that are reused between requests).
+     * @throws IllegalArgumentException if any of the arrays is shorter than n
+     */
+    public void getPixels(int[] is, int[] js, int[] pixels, int n) throws IOException;
+
+    /**
+     * Reads a contiguous span of pixels from a single row of the image.
+     * @param j The j index of the row
+     * @param iStart The i index of the first pixel in the span
+     * @param length The number of pixels to read
+     * @param pixels Array into which the pixels will be written
+     * @param offset The position in the array of the first pixel in the span
+     * @throws IOException if there was an error reading from the underlying image
+     * @throws IndexOutOfBoundsException if any part of the span is outside
+     * the bounds of the image, or won't fit in the array
+     */
+    public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset)
+            throws IOException;
+
     /**
      * Sets the given pixel to the given ARGB colour.
      * @throws IndexOutOfBoundsException if the point is outside the bounds of
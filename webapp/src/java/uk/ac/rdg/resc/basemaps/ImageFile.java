@@ -5,16 +5,24 @@
 
 package uk.ac.rdg.resc.basemaps;
 
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
 import java.util.logging.Logger;
 
 /**
  * <p>An {@link Image} whose pixels are stored as 4-byte argb integers in a
  * headerless file as a plain array, with the i dimension varying fastest.</p>
- * <p>This class is internally synchronized and therefore thread-safe.</p>
+ * <p>The file is mapped read-only into memory when the ImageFile is
+ * created, and pixels are read from the mapping with absolute gets, so
+ * they come straight from the page cache.  If the file can't be mapped,
+ * pixels are read with positional reads on the file's channel.  Neither
+ * changes any shared position, so this class is thread-safe without taking
+ * any locks, and concurrent requests don't wait for each other.</p>
  * @author Jon
  */
 public final class ImageFile extends AbstractImage {
@@ -22,14 +30,37 @@ public final class ImageFile extends AbstractImage {
     private static final Logger log = Logger.getLogger(ImageFile.class.getName());
 
     private final File file;
-    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    /** Read-only mapping of the whole file, or null if it couldn't be mapped */
+    private final ByteBuffer mapping;
 
     /** Creates an ImageFile, opening the underlying file */
     public ImageFile(File file, int width, int height) throws FileNotFoundException {
         super(width, height);
         this.file = file;
-        this.raf = new RandomAccessFile(file, "r");
-        log.fine("Created ImageFile from " + file.getName());
+        this.channel = new RandomAccessFile(file, "r").getChannel();
+        this.mapping = this.map();
+        log.fine("Created ImageFile from " + file.getName() +
+                (this.mapping == null ? "" : " (memory-mapped)"));
+    }
+
+    /**
+     * Maps the file into memory, returning null if it can't be mapped, in
+     * which case we use positional reads instead.
+     */
+    private ByteBuffer map() {
+        long length = 4L * this.getWidth() * this.getHeight();
+        if (length > Integer.MAX_VALUE) return null;
+        try {
+            return this.channel.map(FileChannel.MapMode.READ_ONLY, 0, length);
+        } catch (IOException ioe) {
+            log.warning("Could not map " + this.file.getName() + ": " + ioe);
+            return null;
+        } catch (UnsupportedOperationException uoe) {
+            log.warning("Could not map " + this.file.getName() + ": " + uoe);
+            return null;
+        }
     }
 
     /** Reads a single pixel from the underlying file */
@@ -37,44 +68,112 @@ public final class ImageFile extends AbstractImage {
     public int getPixel(int i, int j) throws IOException {
         // Check for out-of-bound indices
         this.checkIndices(i, j);
-        int pos = (j * this.getWidth() + i) * 4;
-        synchronized(this.raf) {
-            this.raf.seek(pos);
-            return this.raf.readInt();
+        // The offset can exceed 2GB in files that are too large to be mapped
+        long pos = (j * (long) this.getWidth() + i) * 4L;
+        if (this.mapping != null) {
+            return this.mapping.getInt((int) pos);
+        }
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        this.readFully(buf, pos);
+        return buf.getInt(0);
+    }
+
+    /**
+     * Reads many pixels, from the mapping if there is one.  Otherwise the
+     * pixels are grouped by row with a {@link PixelMap}, and each row that
+     * is needed is read with a single positional read.
+     */
+    @Override
+    public void getPixels(int[] is, int[] js, int[] pixels, int n) throws IOException {
+        checkCoordArrays(is, js, pixels, n);
+        PixelMap pixelMap = this.mapping == null ? new PixelMap(n) : null;
+        for (int m = 0; m < n; m++) {
+            // Skip any out-of-range coordinates
+            if (is[m] < 0) {
+                pixels[m] = 0;
+                continue;
+            }
+            this.checkIndices(is[m], js[m]);
+            if (pixelMap == null) {
+                pixels[m] = this.mapping.getInt((js[m] * this.getWidth() + is[m]) * 4);
+            } else {
+                pixelMap.put(is[m], js[m], m);
+            }
+        }
+        if (pixelMap != null) pixelMap.readPixels(this, pixels);
+    }
+
+    /** Reads the span with one bulk get from the mapping or one positional read */
+    @Override
+    public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset)
+            throws IOException {
+        this.checkRowSpan(j, iStart, length, pixels, offset);
+        long pos = (j * (long) this.getWidth() + iStart) * 4L;
+        ByteBuffer buf;
+        if (this.mapping != null) {
+            // We work on a duplicate so that we don't disturb the position
+            // of the shared mapping
+            buf = this.mapping.duplicate();
+            buf.position((int) pos);
+        } else {
+            byte[] bytes = RenderContext.get().getBytes(RenderContext.IMAGE_FILE_ROW, length * 4);
+            buf = ByteBuffer.wrap(bytes, 0, length * 4);
+            this.readFully(buf, pos);
+            buf.flip();
         }
+        buf.asIntBuffer().get(pixels, offset, length);
     }
 
-    /** Reads all the pixels from the underlying file */
+    /**
+     * Reads all the pixels from the underlying file.
+     * @throws IOException if the image is too large to be read into a single
+     * array (i.e. larger than 2GB)
+     */
     @Override
     public int[] getPixels() throws IOException {
-        int numPixels = this.getWidth() * this.getHeight();
-        byte[] bytes = new byte[numPixels * 4];
-        synchronized(this.raf) {
-            this.raf.seek(0);
-            this.raf.read(bytes);
+        long numBytes = 4L * this.getWidth() * this.getHeight();
+        if (numBytes > Integer.MAX_VALUE) {
+            throw new IOException(this.file.getName() + " is too large to be read whole ("
+                    + numBytes + " bytes)");
         }
-        // Convert the array of bytes to integer pixels
-        int[] pixels = new int[numPixels];
-        for (int i = 0; i < pixels.length; i++) {
-            byte b1 = bytes[i*4];
-            byte b2 = bytes[i*4 + 1];
-            byte b3 = bytes[i*4 + 2];
-            byte b4 = bytes[i*4 + 3];
-            pixels[i] = (b1 << 24) | (b2 << 16) + (b3 << 8) + b4;
+        int numPixels = (int) (numBytes / 4);
+        ByteBuffer buf;
+        if (this.mapping != null) {
+            buf = this.mapping.duplicate();
+            buf.clear();
+        } else {
+            buf = ByteBuffer.allocate((int) numBytes);
+            this.readFully(buf, 0);
+            buf.flip();
         }
+        int[] pixels = new int[numPixels];
+        buf.asIntBuffer().get(pixels);
         return pixels;
     }
 
-    /** Closes the underlying file */
+    /**
+     * Fills the remainder of the given buffer from the file, starting at the
+     * given position in the file.
+     */
+    private void readFully(ByteBuffer buf, long pos) throws IOException {
+        while (buf.hasRemaining()) {
+            int n = this.channel.read(buf, pos);
+            if (n < 0) throw new EOFException(this.file.getName() + " is truncated");
+            pos += n;
+        }
+    }
+
+    /**
+     * Closes the underlying file.  (A mapping stays valid until it is
+     * garbage-collected.)
+     */
     @Override
     public void dispose() {
         try {
             log.fine("Closing " + this.file.getPath());
-            synchronized(this.raf) {
-                this.raf.close();
-            }
+            this.channel.close();
         } catch (IOException ioe) {
-            // TODO: log this error
+            log.warning("Error closing " + this.file.getPath() + ": " + ioe);
         }
     }
 
@@ -13,7 +13,10 @@ import java.util.Arrays;
 import java.util.List;
 
 /**
- * An ImageMosaic made from a set of {@link ImageFile}s.
+ * An ImageMosaic made from a set of {@link ImageFile}s, each of which is a
+ * strip of rows across the whole width of the image.  The strips are read
+ * without locks (see {@link ImageFile}), so concurrent requests can read the
+ * same strip at once.
  * @author Jon
  */
 public class ImageFileMosaic extends ImageMosaic {
@@ -24,6 +27,9 @@ public class ImageFileMosaic extends ImageMosaic {
         }
     };
 
+    /** An identifier for this image, taken from the name of its directory */
+    private final String id;
+
     /** The individual files that make up this mosaic */
     private final List<ImageFile> subImages = new ArrayList<ImageFile>();
     
@@ -42,6 +48,7 @@ public class ImageFileMosaic extends ImageMosaic {
             throws FileNotFoundException, MosaicException
     {
         super(width, height);
+        this.id = directory.getName();
 
         File[] imageFiles = directory.listFiles(FILENAME_FILTER);
         if (imageFiles == null || imageFiles.length == 0) {
@@ -87,6 +94,9 @@ public class ImageFileMosaic extends ImageMosaic {
         }
     }
 
+    @Override
+    public String getId() { return this.id; }
+
     @Override
     public int getMaxSubImageWidth() { return this.getWidth(); }
 
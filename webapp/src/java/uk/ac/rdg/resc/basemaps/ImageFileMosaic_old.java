@@ -188,45 +188,26 @@ public final class ImageFileMosaic_old implements Image {
             try {
                 // Open a file channel for fast reading from this file
                 chan = new FileInputStream(file).getChannel();
-                // Create a ByteBuffer for reading 4 bytes at a time
-                ByteBuffer buf = ByteBuffer.allocateDirect(4);
-
-                for (int j : pixelMap.getJIndices()) {
-                    for (int i : pixelMap.getIIndices(j)) {
-                        // Read the data point
-                        chan.position((j * width + i) * 4);
-                        chan.read(buf);
-                        buf.rewind();
-                        int argb = buf.asIntBuffer().get();
-                        for (int pos : pixelMap.getPixelIndices(i, j)) {
-                            pixels[pos] = argb;
-                        }
-                    }
 
-                    /*
+                for (int row = 0; row < pixelMap.getNumRows(); row++) {
+                    int j = pixelMap.getRowJIndex(row);
                     // Get the extremes of the scanline
-                    int minI = pixelMap.getMinIIndexInRow(j);
-                    int maxI = pixelMap.getMaxIIndexInRow(j);
-                    
+                    int minI = pixelMap.getRowMinIIndex(row);
+                    int maxI = pixelMap.getRowMaxIIndex(row);
+
                     // Read the scanline in a single i/o operation
-                    int[] scanline = new int[maxI - minI + 1];
-                    chan.position((j * width + minI) * 4);
-                    ByteBuffer buf = ByteBuffer.allocateDirect(scanline.length * 4);
-                    chan.read(buf);
-                    buf.rewind(); // set the buffer back to the start
-                    // Copy the data to an array of ints
-                    // TODO: could avoid this operation and convert bytes to
-                    // argb pixels one at a time
-                    buf.asIntBuffer().get(scanline);
-                    
+                    ByteBuffer buf = ByteBuffer.allocate((maxI - minI + 1) * 4);
+                    long pos = (j * (long) width + minI) * 4;
+                    while (buf.hasRemaining()) {
+                        int n = chan.read(buf, pos + buf.position());
+                        if (n < 0) throw new IOException(file + " is truncated");
+                    }
+                    buf.flip();
+
                     // Copy the data from the scanline into the array of pixels
-                    for (int i : pixelMap.getIIndices(j)) {
-                        int argb = scanline[i - minI];
-                        for (int pos : pixelMap.getPixelIndices(i, j)) {
-                            pixels[pos] = argb;
-                        }
+                    for (int e = pixelMap.getRowStart(row); e < pixelMap.getRowEnd(row); e++) {
+                        pixels[pixelMap.getPixelIndex(e)] = buf.getInt((pixelMap.getIIndex(e) - minI) * 4);
                     }
-                    */
                 }
 
             } catch (IOException ioe) {
@@ -286,6 +267,24 @@ public final class ImageFileMosaic_old implements Image {
         throw new AssertionError();
     }
 
+    /** Reads the pixels one at a time using {@link #getPixel(int, int)} */
+    @Override public void getPixels(int[] is, int[] js, int[] pixels) {
+        this.getPixels(is, js, pixels, is.length);
+    }
+
+    @Override public void getPixels(int[] is, int[] js, int[] pixels, int n) {
+        for (int m = 0; m < n; m++) {
+            pixels[m] = is[m] < 0 ? 0 : this.getPixel(is[m], js[m]);
+        }
+    }
+
+    /** Reads the span one pixel at a time using {@link #getPixel(int, int)} */
+    @Override public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset) {
+        for (int n = 0; n < length; n++) {
+            pixels[offset + n] = this.getPixel(iStart + n, j);
+        }
+    }
+
     /** Currently not supported */
     @Override public int[] getPixels() {
         throw new UnsupportedOperationException("Not supported yet.");
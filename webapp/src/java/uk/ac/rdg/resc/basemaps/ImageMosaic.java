@@ -6,27 +6,109 @@
 package uk.ac.rdg.resc.basemaps;
 
 import java.io.IOException;
-import java.util.ArrayList;
 import java.util.Arrays;
-import java.util.HashMap;
-import java.util.List;
-import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.CountDownLatch;
 import java.util.logging.Logger;
+import uk.ac.rdg.resc.basemaps.CachingImageMosaic.SubImageKey;
+import uk.ac.rdg.resc.basemaps.cache.SubImageCache;
+import uk.ac.rdg.resc.basemaps.metrics.Stage;
 
 /**
  * An Image that is made up of a number of sub-images.  Each sub-image has a
  * certain maximum size (sub-images at the right and bottom of the parent image
  * may be smaller).  Sub-images tile to fill the parent image from the top-left.
+ * A mosaic may also have a number of overviews: lower-resolution versions of
+ * the same image, which can be used to render zoomed-out views without
+ * reading every sub-image.
  * @author Jon
  */
 public abstract class ImageMosaic extends AbstractImage {
 
     private static final Logger log = Logger.getLogger(ImageMosaic.class.getName());
 
+    /** Cache of sub-images, or null if sub-images are not to be cached */
+    private volatile SubImageCache subImageCache = null;
+
+    /** Loads of sub-images that are currently in progress.  Concurrent
+     * requests for the same sub-image wait for the load that is already
+     * running instead of reading the sub-image again. */
+    private final ConcurrentHashMap<SubImageKey, SubImageLoad> loadsInProgress =
+            new ConcurrentHashMap<SubImageKey, SubImageLoad>();
+
+    /** The id used in sub-image keys, created on first use */
+    private volatile String subImageKeyId = null;
+
+    /** Lower-resolution versions of this image, keyed by decimation factor */
+    private final ConcurrentSkipListMap<Integer, ImageMosaic> overviews =
+            new ConcurrentSkipListMap<Integer, ImageMosaic>();
+
     public ImageMosaic(int width, int height) {
         super(width, height);
     }
 
+    /** Gets an identifier for this image, unique on this server */
+    public abstract String getId();
+
+    /**
+     * Sets the cache in which sub-images will be kept between requests.  By
+     * default sub-images are not cached.
+     * @param subImageCache The cache to use, or null to turn off caching
+     */
+    public void setSubImageCache(SubImageCache subImageCache) {
+        this.subImageCache = subImageCache;
+        for (ImageMosaic overview : this.overviews.values()) {
+            overview.setSubImageCache(subImageCache);
+        }
+    }
+
+    /**
+     * Adds an overview of this image, made by taking every factor'th pixel
+     * in each direction, starting with the top-left pixel.  The overview
+     * will share this image's sub-image cache.
+     * @throws IllegalArgumentException if the factor is less than 2 or if
+     * the overview is not of size ceil(width/factor) x ceil(height/factor)
+     */
+    public void addOverview(int factor, ImageMosaic overview) {
+        if (factor < 2) {
+            throw new IllegalArgumentException("Overview factor must be at least 2");
+        }
+        if (overview.getWidth() != (this.getWidth() + factor - 1) / factor ||
+            overview.getHeight() != (this.getHeight() + factor - 1) / factor) {
+            throw new IllegalArgumentException("Overview is the wrong size for factor " + factor);
+        }
+        overview.setSubImageCache(this.subImageCache);
+        this.overviews.put(factor, overview);
+    }
+
+    /**
+     * Gets the decimation factor of the coarsest overview whose pixels are
+     * no bigger than the given number of pixels of this image, or 1 if there
+     * is no such overview (i.e. this image itself should be used).
+     * @param scale The number of pixels of this image that correspond with
+     * one pixel of the image being rendered
+     */
+    public int getOverviewFactor(double scale) {
+        if (!(scale >= 2.0)) return 1;
+        Integer factor = this.overviews.floorKey((int) Math.min(scale, Integer.MAX_VALUE));
+        return factor == null ? 1 : factor;
+    }
+
+    /**
+     * Gets the overview with the given decimation factor, or this image if the
+     * factor is 1.
+     * @throws IllegalArgumentException if there is no overview with this factor
+     */
+    public ImageMosaic getOverview(int factor) {
+        if (factor == 1) return this;
+        ImageMosaic overview = this.overviews.get(factor);
+        if (overview == null) {
+            throw new IllegalArgumentException("No overview with factor " + factor);
+        }
+        return overview;
+    }
+
     /** Gets the maximum width of each sub-image. */
     public abstract int getMaxSubImageWidth();
 
@@ -59,7 +141,7 @@ public abstract class ImageMosaic extends AbstractImage {
         int jIndexInSubImage = j % this.getMaxSubImageHeight();
 
         // Get the sub-image
-        Image subImage = this.getSubImage(subImageIIndex, subImageJIndex);
+        Image subImage = this.getCachedSubImage(subImageIIndex, subImageJIndex);
 
         // Return the correct pixel in the sub-image
         return subImage.getPixel(iIndexInSubImage, jIndexInSubImage);
@@ -67,118 +149,337 @@ public abstract class ImageMosaic extends AbstractImage {
 
     /**
      * Reads multiple pixels at once, minimizing the number of calls to
-     * {@link #getSubImage(int, int)}.
+     * {@link #getSubImage(int, int)}.  The pixels are sorted into buckets, one
+     * per sub-image, using only arrays of primitives.  The sub-images that
+     * aren't cached are loaded together with
+     * {@link #getSubImages(int[], int[], int)}, then each sub-image is
+     * read with a single call to {@link Image#getPixels(int[], int[], int[], int)}.
+     * The arrays are borrowed from the thread's {@link RenderContext}, so the
+     * sub-images must not themselves be mosaics.
      */
     @Override
-    public int[] getPixels(List<int[]> coordsList) throws IOException {
-        if (coordsList == null) throw new NullPointerException();
-
-        log.fine("Requested " + coordsList.size() + " pixels from mosaic.");
-        
-        // Maps sub-image indices to lists of coordinates within each subimage
-        Map<Coords, PixelDetails> pixelDetails = new HashMap<Coords, PixelDetails>();
-        
-        for (int i = 0; i < coordsList.size(); i++) {
-            
-            // Get and check the coordinates
-            int[] coords = coordsList.get(i);
-
-            // Skip any null coordinates (these represent out-of-range values)
-            if (coords == null) continue;
-
-            if (coords.length != 2) {
-                throw new IllegalArgumentException("Illegal coordinates");
-            }
-            
-            // Find out which sub image contains these coordinates
-            int subImageIIndex = coords[0] / this.getMaxSubImageWidth();
-            int subImageJIndex = coords[1] / this.getMaxSubImageHeight();
-            int[] subImageIndices = new int[]{subImageIIndex, subImageJIndex};
-            Coords subImageCoords = new Coords(subImageIndices);
-            PixelDetails details = pixelDetails.get(subImageCoords);
-            if (details == null) {
-                log.fine("Added new PixelDetails entry for subimage " +
-                        Arrays.toString(subImageIndices));
-                details = new PixelDetails();
-                pixelDetails.put(subImageCoords, details);
+    public void getPixels(int[] is, int[] js, int[] pixels, int numPixels) throws IOException {
+        checkCoordArrays(is, js, pixels, numPixels);
+        final int maxSubImageWidth = this.getMaxSubImageWidth();
+        final int maxSubImageHeight = this.getMaxSubImageHeight();
+        final int numSubImagesI = (this.getWidth() + maxSubImageWidth - 1) / maxSubImageWidth;
+        final int numSubImagesJ = (this.getHeight() + maxSubImageHeight - 1) / maxSubImageHeight;
+        final int numBuckets = numSubImagesI * numSubImagesJ;
+        final RenderContext context = RenderContext.get();
+
+        log.fine("Requested " + numPixels + " pixels from mosaic.");
+
+        // Find the sub-image that contains each pixel and count the number
+        // of pixels in each sub-image
+        int[] subImageOfPixel = context.getInts(RenderContext.MOSAIC_SUB_IMAGES, numPixels);
+        int[] bucketStarts = context.getInts(RenderContext.MOSAIC_BUCKET_STARTS, numBuckets + 1);
+        Arrays.fill(bucketStarts, 0, numBuckets + 1, 0);
+        for (int n = 0; n < numPixels; n++) {
+            // Skip any out-of-range coordinates
+            if (is[n] < 0) {
+                subImageOfPixel[n] = -1;
+                pixels[n] = 0;
+                continue;
             }
-            details.targetImageIndices.add(i);
-            // Add the coordinates of this point within the subimage
-            details.subImageIndices.add(new int[]{
-                 coords[0] % this.getMaxSubImageWidth(),
-                 coords[1] % this.getMaxSubImageHeight()
-            });
-        }
-        
+            this.checkIndices(is[n], js[n]);
+            int subImage = (js[n] / maxSubImageHeight) * numSubImagesI
+                         + (is[n] / maxSubImageWidth);
+            subImageOfPixel[n] = subImage;
+            bucketStarts[subImage + 1]++;
+        }
+        // Turn the counts into the positions of the start of each bucket
+        for (int b = 1; b <= numBuckets; b++) {
+            bucketStarts[b] += bucketStarts[b - 1];
+        }
+        // Put the index of each pixel in its bucket
+        int[] bucketFill = context.getInts(RenderContext.MOSAIC_BUCKET_FILL, numBuckets);
+        Arrays.fill(bucketFill, 0, numBuckets, 0);
+        int[] pixelIndices = context.getInts(RenderContext.MOSAIC_PIXEL_INDICES,
+                bucketStarts[numBuckets]);
+        int maxBucketSize = 0;
+        for (int n = 0; n < numPixels; n++) {
+            int subImage = subImageOfPixel[n];
+            if (subImage < 0) continue;
+            pixelIndices[bucketStarts[subImage] + bucketFill[subImage]] = n;
+            bucketFill[subImage]++;
+            maxBucketSize = Math.max(maxBucketSize, bucketFill[subImage]);
+        }
+        int[] subImageIs = context.getInts(RenderContext.MOSAIC_SUB_IMAGE_IS, maxBucketSize);
+        int[] subImageJs = context.getInts(RenderContext.MOSAIC_SUB_IMAGE_JS, maxBucketSize);
+        int[] subImagePixels = context.getInts(RenderContext.MOSAIC_SUB_IMAGE_PIXELS, maxBucketSize);
+
+        // Get all the sub-images we need at once, so that those that aren't
+        // in the cache can be loaded in a single batch
+        int numNeeded = 0;
+        for (int subImage = 0; subImage < numBuckets; subImage++) {
+            if (bucketFill[subImage] > 0) numNeeded++;
+        }
+        int[] neededIIndices = new int[numNeeded];
+        int[] neededJIndices = new int[numNeeded];
+        numNeeded = 0;
+        for (int subImage = 0; subImage < numBuckets; subImage++) {
+            if (bucketFill[subImage] == 0) continue;
+            neededIIndices[numNeeded] = subImage % numSubImagesI;
+            neededJIndices[numNeeded] = subImage / numSubImagesI;
+            numNeeded++;
+        }
+        Image[] images = this.getCachedSubImages(neededIIndices, neededJIndices, numNeeded);
+
         // Now we can extract the data from each sub-image in turn
-        int[] pixels = new int[coordsList.size()];
-        for (Coords subImageCoords : pixelDetails.keySet()) {
-            PixelDetails details = pixelDetails.get(subImageCoords);
-            int[] subImageIndices = subImageCoords.getCoords();
-            Image subImage = this.getSubImage(subImageIndices[0], subImageIndices[1]);
-            int[] subImagePixels = subImage.getPixels(details.subImageIndices);
+        int k = 0;
+        for (int subImage = 0; subImage < numBuckets; subImage++) {
+            int bucketSize = bucketFill[subImage];
+            if (bucketSize == 0) continue;
+            int subImageIIndex = subImage % numSubImagesI;
+            int subImageJIndex = subImage / numSubImagesI;
+            int iOffset = subImageIIndex * maxSubImageWidth;
+            int jOffset = subImageJIndex * maxSubImageHeight;
+            int start = bucketStarts[subImage];
+
+            // Get the coordinates of the pixels within the sub-image
+            for (int m = 0; m < bucketSize; m++) {
+                int n = pixelIndices[start + m];
+                subImageIs[m] = is[n] - iOffset;
+                subImageJs[m] = js[n] - jOffset;
+            }
+
+            Image image = images[k++];
+            long gatherStart = System.nanoTime();
+            image.getPixels(subImageIs, subImageJs, subImagePixels, bucketSize);
+
             // Now add these pixels to the target image
-            for (int i = 0; i < subImagePixels.length; i++) {
-                int indexInTargetImage = details.targetImageIndices.get(i);
-                pixels[indexInTargetImage] = subImagePixels[i];
+            for (int m = 0; m < bucketSize; m++) {
+                pixels[pixelIndices[start + m]] = subImagePixels[m];
             }
+            Stage.SUB_IMAGE_GATHER.recordSince(gatherStart);
         }
-        
-        return pixels;
-        
-        // We avoid the creation of an expensive object a la PixelMap by making
-        // multiple passes through the list
-        
-
-        // This set records the subimages we've looked at already
-//        Set<int[]> subImagesExamined = new HashSet<int[]>();
-//        boolean done = false;
-//        int[] pixels = new int[coordsList.size()];
-//        while(!done) {
-//            // Assume this is the last pass unless we find otherwise
-//            done = true;
-//            // Cycle through all the coordinates
-//            for (int i = 0; i < coordsList.size(); i++) {
-//                int[] coords = coordsList.get(i);
-//                if (coords == null || coords.length != 2) {
-//                    throw new IllegalArgumentException("Illegal coordinates");
-//                }
-//                // Find out which subimage contains these coords
-//                int subImageIIndex = coords[0] / this.getMaxSubImageWidth();
-//                int subImageJIndex = coords[1] / this.getMaxSubImageHeight();
-//                int[] subImageIndices = new int[]{subImageIIndex, subImageJIndex};
-//                // Look to see if we've examined this subimage on a previous pass
-//                if (!subImagesExamined.contains(subImageIndices)) {
-//                    // This is a new subimage
-//                    done = false;
-//                    subImagesExamined.add(subImageIndices);
-//                    // Get the subimage in question
-//                    Image subImage = this.getSubImage(subImageIIndex, subImageJIndex);
-//                    // Read 
-//                }
-//            }
-//        }
-    }
-
-    /** Wraps an int array, providing proper hashCode() and equals() methods */
-    private static final class Coords
-    {
-        private int[] coords;
-        public Coords(int[] coords) { this.coords = coords; }
-        public int[] getCoords() { return this.coords; }
-        @Override public String toString() { return Arrays.toString(this.coords); }
-        @Override public int hashCode() { return Arrays.hashCode(this.coords); }
-        @Override public boolean equals(Object obj) {
-            if (obj == this) return true;
-            if (!(obj instanceof Coords)) return false;
-            return Arrays.equals(this.coords, ((Coords)obj).getCoords());
-        }
-    }
-    
-    private static final class PixelDetails
+    }
+
+    /**
+     * Reads the span from each of the sub-images that it crosses in turn.
+     */
+    @Override
+    public void getRowSpan(int j, int iStart, int length, int[] pixels, int offset)
+            throws IOException {
+        this.checkRowSpan(j, iStart, length, pixels, offset);
+        final int maxSubImageWidth = this.getMaxSubImageWidth();
+        final int subImageJIndex = j / this.getMaxSubImageHeight();
+        final int jIndexInSubImage = j % this.getMaxSubImageHeight();
+        int i = iStart;
+        final int iEnd = iStart + length;
+        while (i < iEnd) {
+            int subImageIIndex = i / maxSubImageWidth;
+            int iIndexInSubImage = i % maxSubImageWidth;
+            // Read to the end of the span or the end of the sub-image,
+            // whichever comes first
+            int spanLength = Math.min(iEnd - i, maxSubImageWidth - iIndexInSubImage);
+            Image subImage = this.getCachedSubImage(subImageIIndex, subImageJIndex);
+            subImage.getRowSpan(jIndexInSubImage, iIndexInSubImage, spanLength,
+                    pixels, offset + (i - iStart));
+            i += spanLength;
+        }
+    }
+
+    /**
+     * Gets the sub-image with the given indices from the sub-image cache,
+     * calling {@link #getSubImage(int, int)} and caching the result if it is
+     * not found.  If another thread is already loading the same sub-image,
+     * this method waits for that load to finish and returns its result.
+     */
+    private Image getCachedSubImage(int subImageIIndex, int subImageJIndex) {
+        SubImageCache cache = this.subImageCache;
+        SubImageKey key = this.createSubImageKey(subImageIIndex, subImageJIndex);
+        Image subImage = cache == null ? null : cache.get(key);
+        if (subImage != null) return subImage;
+
+        SubImageLoad load = new SubImageLoad();
+        SubImageLoad loadInProgress = this.loadsInProgress.putIfAbsent(key, load);
+        if (loadInProgress != null) {
+            log.fine("Waiting for load of subimage " + key);
+            return loadInProgress.await();
+        }
+
+        // We are responsible for loading the sub-image
+        try {
+            // Another thread might have completed a load between our cache
+            // lookup and our registration of the load
+            subImage = cache == null ? null : cache.get(key);
+            if (subImage == null) {
+                long loadStart = System.nanoTime();
+                subImage = this.getSubImage(subImageIIndex, subImageJIndex);
+                Stage.SUB_IMAGE_LOAD.recordSince(loadStart);
+                // Blank images are returned when a sub-image can't be read: we
+                // don't cache these in case the problem is temporary
+                if (cache != null && !(subImage instanceof CachingImageMosaic.EmptyImage)) {
+                    cache.put(key, subImage);
+                }
+            }
+            load.complete(subImage);
+            return subImage;
+        } catch (RuntimeException re) {
+            load.fail(re);
+            throw re;
+        } catch (Error e) {
+            load.fail(e);
+            throw e;
+        } finally {
+            // The sub-image is in the cache (if we have one) by now, so
+            // later requests won't start another load
+            this.loadsInProgress.remove(key);
+        }
+    }
+
+    /**
+     * Gets several sub-images, from the cache if possible.  The sub-images
+     * that aren't in the cache or being loaded by another thread are loaded
+     * with a single call to {@link #getSubImages(int[], int[], int)}.
+     */
+    private Image[] getCachedSubImages(int[] subImageIIndices, int[] subImageJIndices, int n) {
+        SubImageCache cache = this.subImageCache;
+        Image[] subImages = new Image[n];
+        SubImageKey[] keys = new SubImageKey[n];
+        // The loads we are responsible for (ours[k] is true) and those that
+        // are being done by other threads
+        SubImageLoad[] loads = new SubImageLoad[n];
+        boolean[] ours = new boolean[n];
+        int numToLoad = 0;
+        for (int k = 0; k < n; k++) {
+            keys[k] = this.createSubImageKey(subImageIIndices[k], subImageJIndices[k]);
+            subImages[k] = cache == null ? null : cache.get(keys[k]);
+            if (subImages[k] != null) continue;
+            SubImageLoad load = new SubImageLoad();
+            loads[k] = this.loadsInProgress.putIfAbsent(keys[k], load);
+            if (loads[k] == null) {
+                loads[k] = load;
+                ours[k] = true;
+                numToLoad++;
+            }
+        }
+
+        if (numToLoad > 0) {
+            try {
+                // Another thread might have completed a load between our cache
+                // lookup and our registration of the load
+                int[] iIndices = new int[numToLoad];
+                int[] jIndices = new int[numToLoad];
+                int[] positions = new int[numToLoad];
+                int m = 0;
+                for (int k = 0; k < n; k++) {
+                    if (!ours[k]) continue;
+                    subImages[k] = cache == null ? null : cache.get(keys[k]);
+                    if (subImages[k] != null) continue;
+                    iIndices[m] = subImageIIndices[k];
+                    jIndices[m] = subImageJIndices[k];
+                    positions[m] = k;
+                    m++;
+                }
+                if (m > 0) {
+                    long loadStart = System.nanoTime();
+                    Image[] loaded = this.getSubImages(iIndices, jIndices, m);
+                    Stage.SUB_IMAGE_LOAD.recordSince(loadStart);
+                    for (int p = 0; p < m; p++) {
+                        int k = positions[p];
+                        subImages[k] = loaded[p];
+                        // As in getCachedSubImage(), we don't cache blank images
+                        if (cache != null && !(loaded[p] instanceof CachingImageMosaic.EmptyImage)) {
+                            cache.put(keys[k], loaded[p]);
+                        }
+                    }
+                }
+                for (int k = 0; k < n; k++) {
+                    if (ours[k]) loads[k].complete(subImages[k]);
+                }
+            } catch (RuntimeException re) {
+                failLoads(loads, ours, n, re);
+                throw re;
+            } catch (Error e) {
+                failLoads(loads, ours, n, e);
+                throw e;
+            } finally {
+                for (int k = 0; k < n; k++) {
+                    if (ours[k]) this.loadsInProgress.remove(keys[k]);
+                }
+            }
+        }
+
+        // Only now do we wait for other threads' loads: they might be waiting
+        // for ours
+        for (int k = 0; k < n; k++) {
+            if (subImages[k] == null) {
+                log.fine("Waiting for load of subimage " + keys[k]);
+                subImages[k] = loads[k].await();
+            }
+        }
+        return subImages;
+    }
+
+    private static void failLoads(SubImageLoad[] loads, boolean[] ours, int n, Throwable error) {
+        for (int k = 0; k < n; k++) {
+            if (ours[k]) loads[k].fail(error);
+        }
+    }
+
+    /**
+     * Creates a key for the given sub-image.  As with tile keys in the
+     * persistent store, the image is identified by its id and size.
+     */
+    private SubImageKey createSubImageKey(int subImageIIndex, int subImageJIndex) {
+        String imageId = this.subImageKeyId;
+        if (imageId == null) {
+            imageId = this.getId() + "_" + this.getWidth() + "_" + this.getHeight();
+            this.subImageKeyId = imageId;
+        }
+        return new SubImageKey(imageId, subImageIIndex, subImageJIndex,
+                this.getMaxSubImageWidth(), this.getMaxSubImageHeight());
+    }
+
+    /** A load of a sub-image, on which other threads can wait */
+    private static final class SubImageLoad
     {
-        private List<Integer> targetImageIndices = new ArrayList<Integer>();
-        private List<int[]> subImageIndices = new ArrayList<int[]>();
+        private final CountDownLatch done = new CountDownLatch(1);
+        private volatile Image subImage = null;
+        private volatile Throwable error = null;
+
+        public void complete(Image subImage) {
+            this.subImage = subImage;
+            this.done.countDown();
+        }
+
+        public void fail(Throwable error) {
+            this.error = error;
+            this.done.countDown();
+        }
+
+        /**
+         * Waits for the load to finish, returning the sub-image.
+         * @throws IllegalStateException if the load failed
+         */
+        public Image await() {
+            boolean interrupted = false;
+            while (true) {
+                try {
+                    this.done.await();
+                    break;
+                } catch (InterruptedException ie) {
+                    // We must wait for the load regardless, but we preserve
+                    // the interrupt for the caller
+                    interrupted = true;
+                }
+            }
+            if (interrupted) Thread.currentThread().interrupt();
+            if (this.error != null) {
+                throw new IllegalStateException("Error loading sub-image", this.error);
+            }
+            return this.subImage;
+        }
+    }
+
+    /** Disposes of the overviews of this image */
+    @Override
+    public void dispose() {
+        for (ImageMosaic overview : this.overviews.values()) {
+            overview.dispose();
+        }
     }
 
     /**
@@ -188,6 +489,24 @@ public abstract class ImageMosaic extends AbstractImage {
      */
     protected abstract Image getSubImage(int subImageIIndex, int subImageJIndex);
 
+    /**
+     * Gets several sub-images at once.  This implementation calls
+     * {@link #getSubImage(int, int)} for each one; subclasses whose
+     * sub-images are held remotely should override it to fetch them all in
+     * one round-trip.
+     * @param subImageIIndices The i indices of the sub-images
+     * @param subImageJIndices The j indices of the sub-images
+     * @param n The number of sub-images to get
+     * @return The sub-images, in the same order as the indices
+     */
+    protected Image[] getSubImages(int[] subImageIIndices, int[] subImageJIndices, int n) {
+        Image[] subImages = new Image[n];
+        for (int k = 0; k < n; k++) {
+            subImages[k] = this.getSubImage(subImageIIndices[k], subImageJIndices[k]);
+        }
+        return subImages;
+    }
+
     /**
      * Gets the width in pixels of the sub-image with the given i index.  This
      * will be equal to {@link #getMaxSubImageWidth()} except for the last
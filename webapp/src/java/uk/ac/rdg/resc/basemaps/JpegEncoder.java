@@ -0,0 +1,480 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+
+/**
+ * Encodes an {@link Image} as a baseline JPEG (JFIF, YCbCr with 2x2 chroma
+ * subsampling and the standard Huffman tables).  We can't use ImageIO on
+ * Google App Engine, and converting a PNG through the Images service means
+ * encoding and decoding the image one more time than we need to.
+ * The alpha channel is ignored.
+ * @author Jon
+ */
+public final class JpegEncoder {
+
+    /** The default quality, as used by most image tools */
+    public static final int DEFAULT_QUALITY = 75;
+
+    /** Maps positions in the zig-zag sequence to positions in a block */
+    private static final int[] ZIGZAG = {
+         0,  1,  8, 16,  9,  2,  3, 10,
+        17, 24, 32, 25, 18, 11,  4,  5,
+        12, 19, 26, 33, 40, 48, 41, 34,
+        27, 20, 13,  6,  7, 14, 21, 28,
+        35, 42, 49, 56, 57, 50, 43, 36,
+        29, 22, 15, 23, 30, 37, 44, 51,
+        58, 59, 52, 45, 38, 31, 39, 46,
+        53, 60, 61, 54, 47, 55, 62, 63
+    };
+
+    /** Luminance quantization table from the JPEG spec (Annex K), in block order */
+    private static final int[] LUMINANCE_QUANTIZATION = {
+        16,  11,  10,  16,  24,  40,  51,  61,
+        12,  12,  14,  19,  26,  58,  60,  55,
+        14,  13,  16,  24,  40,  57,  69,  56,
+        14,  17,  22,  29,  51,  87,  80,  62,
+        18,  22,  37,  56,  68, 109, 103,  77,
+        24,  35,  55,  64,  81, 104, 113,  92,
+        49,  64,  78,  87, 103, 121, 120, 101,
+        72,  92,  95,  98, 112, 100, 103,  99
+    };
+
+    /** Chrominance quantization table from the JPEG spec (Annex K), in block order */
+    private static final int[] CHROMINANCE_QUANTIZATION = {
+        17,  18,  24,  47,  99,  99,  99,  99,
+        18,  21,  26,  66,  99,  99,  99,  99,
+        24,  26,  56,  99,  99,  99,  99,  99,
+        47,  66,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99,
+        99,  99,  99,  99,  99,  99,  99,  99
+    };
+
+    // Standard Huffman tables from the JPEG spec (Annex K): the number of
+    // codes of each length from 1 to 16 bits, followed by the symbols
+    private static final int[] DC_LUMINANCE_BITS = {0, 1, 5, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0, 0, 0};
+    private static final int[] DC_LUMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] DC_CHROMINANCE_BITS = {0, 3, 1, 1, 1, 1, 1, 1, 1, 1, 1, 0, 0, 0, 0, 0};
+    private static final int[] DC_CHROMINANCE_VALUES = {0, 1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11};
+    private static final int[] AC_LUMINANCE_BITS = {0, 2, 1, 3, 3, 2, 4, 3, 5, 5, 4, 4, 0, 0, 1, 0x7d};
+    private static final int[] AC_LUMINANCE_VALUES = {
+        0x01, 0x02, 0x03, 0x00, 0x04, 0x11, 0x05, 0x12, 0x21, 0x31, 0x41, 0x06, 0x13, 0x51, 0x61, 0x07,
+        0x22, 0x71, 0x14, 0x32, 0x81, 0x91, 0xa1, 0x08, 0x23, 0x42, 0xb1, 0xc1, 0x15, 0x52, 0xd1, 0xf0,
+        0x24, 0x33, 0x62, 0x72, 0x82, 0x09, 0x0a, 0x16, 0x17, 0x18, 0x19, 0x1a, 0x25, 0x26, 0x27, 0x28,
+        0x29, 0x2a, 0x34, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48, 0x49,
+        0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68, 0x69,
+        0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x83, 0x84, 0x85, 0x86, 0x87, 0x88, 0x89,
+        0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5, 0xa6, 0xa7,
+        0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3, 0xc4, 0xc5,
+        0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda, 0xe1, 0xe2,
+        0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf1, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa
+    };
+    private static final int[] AC_CHROMINANCE_BITS = {0, 2, 1, 2, 4, 4, 3, 4, 7, 5, 4, 4, 0, 1, 2, 0x77};
+    private static final int[] AC_CHROMINANCE_VALUES = {
+        0x00, 0x01, 0x02, 0x03, 0x11, 0x04, 0x05, 0x21, 0x31, 0x06, 0x12, 0x41, 0x51, 0x07, 0x61, 0x71,
+        0x13, 0x22, 0x32, 0x81, 0x08, 0x14, 0x42, 0x91, 0xa1, 0xb1, 0xc1, 0x09, 0x23, 0x33, 0x52, 0xf0,
+        0x15, 0x62, 0x72, 0xd1, 0x0a, 0x16, 0x24, 0x34, 0xe1, 0x25, 0xf1, 0x17, 0x18, 0x19, 0x1a, 0x26,
+        0x27, 0x28, 0x29, 0x2a, 0x35, 0x36, 0x37, 0x38, 0x39, 0x3a, 0x43, 0x44, 0x45, 0x46, 0x47, 0x48,
+        0x49, 0x4a, 0x53, 0x54, 0x55, 0x56, 0x57, 0x58, 0x59, 0x5a, 0x63, 0x64, 0x65, 0x66, 0x67, 0x68,
+        0x69, 0x6a, 0x73, 0x74, 0x75, 0x76, 0x77, 0x78, 0x79, 0x7a, 0x82, 0x83, 0x84, 0x85, 0x86, 0x87,
+        0x88, 0x89, 0x8a, 0x92, 0x93, 0x94, 0x95, 0x96, 0x97, 0x98, 0x99, 0x9a, 0xa2, 0xa3, 0xa4, 0xa5,
+        0xa6, 0xa7, 0xa8, 0xa9, 0xaa, 0xb2, 0xb3, 0xb4, 0xb5, 0xb6, 0xb7, 0xb8, 0xb9, 0xba, 0xc2, 0xc3,
+        0xc4, 0xc5, 0xc6, 0xc7, 0xc8, 0xc9, 0xca, 0xd2, 0xd3, 0xd4, 0xd5, 0xd6, 0xd7, 0xd8, 0xd9, 0xda,
+        0xe2, 0xe3, 0xe4, 0xe5, 0xe6, 0xe7, 0xe8, 0xe9, 0xea, 0xf2, 0xf3, 0xf4, 0xf5, 0xf6, 0xf7, 0xf8,
+        0xf9, 0xfa
+    };
+
+    private static final HuffmanTable DC_LUMINANCE =
+            new HuffmanTable(DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+    private static final HuffmanTable DC_CHROMINANCE =
+            new HuffmanTable(DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+    private static final HuffmanTable AC_LUMINANCE =
+            new HuffmanTable(AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+    private static final HuffmanTable AC_CHROMINANCE =
+            new HuffmanTable(AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+    /** Scale factors of the AAN forward DCT */
+    private static final double[] AAN_SCALE = {
+        1.0, 1.387039845, 1.306562965, 1.175875602,
+        1.0, 0.785694958, 0.541196100, 0.275899379
+    };
+
+    private final Image image;
+    private final int quality;
+
+    // Quantization tables in zig-zag order, as written to the file
+    private final int[] lumQuant = new int[64];
+    private final int[] chromQuant = new int[64];
+    // Reciprocals of the quantization tables, including the DCT scale
+    // factors, in block order
+    private final float[] lumDivisors = new float[64];
+    private final float[] chromDivisors = new float[64];
+
+    // Output state
+    private OutputStream out;
+    private final byte[] outBuffer = new byte[4096];
+    private int outPos;
+    private int bitBuffer;
+    private int bitCount;
+
+    /**
+     * Creates an encoder for the given image.
+     * @param image The image to encode
+     * @param quality The quality, from 1 (smallest file) to 100 (best quality)
+     * @throws NullPointerException if image == null
+     * @throws IllegalArgumentException if the quality is out of range
+     */
+    public JpegEncoder(Image image, int quality) {
+        if (image == null) throw new NullPointerException();
+        if (quality < 1 || quality > 100) {
+            throw new IllegalArgumentException("Quality must be between 1 and 100");
+        }
+        this.image = image;
+        this.quality = quality;
+        // Scale the standard tables in the same way as the IJG library
+        int scale = quality < 50 ? 5000 / quality : 200 - quality * 2;
+        scaleQuantization(LUMINANCE_QUANTIZATION, scale, this.lumQuant, this.lumDivisors);
+        scaleQuantization(CHROMINANCE_QUANTIZATION, scale, this.chromQuant, this.chromDivisors);
+    }
+
+    public int getQuality() {
+        return this.quality;
+    }
+
+    private static void scaleQuantization(int[] table, int scale, int[] quant, float[] divisors) {
+        for (int k = 0; k < 64; k++) {
+            int pos = ZIGZAG[k];
+            int q = (table[pos] * scale + 50) / 100;
+            q = Math.max(1, Math.min(255, q));
+            quant[k] = q;
+            divisors[pos] = (float) (1.0 / (q * AAN_SCALE[pos >> 3] * AAN_SCALE[pos & 7] * 8.0));
+        }
+    }
+
+    /**
+     * Creates an array of bytes that is the JPEG equivalent of the image.
+     */
+    public byte[] jpegEncode() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(
+                this.image.getWidth() * this.image.getHeight() / 4 + 1024);
+        this.jpegEncode(bytes);
+        return bytes.toByteArray();
+    }
+
+    /**
+     * Writes the JPEG equivalent of the image to the given stream, which is
+     * not closed.  The image is read and encoded sixteen rows at a time.
+     * @throws IOException if there was an error reading the image or writing
+     * to the stream
+     */
+    public void jpegEncode(OutputStream out) throws IOException {
+        this.out = out;
+        this.outPos = 0;
+        this.bitBuffer = 0;
+        this.bitCount = 0;
+
+        int width = this.image.getWidth();
+        int height = this.image.getHeight();
+
+        this.writeHeaders(width, height);
+
+        // Each MCU is 16x16 pixels: four Y blocks, one Cb block and one Cr block
+        int mcuCols = (width + 15) / 16;
+        int paddedWidth = mcuCols * 16;
+        RenderContext context = RenderContext.get();
+        int[] rows = context.getInts(RenderContext.ROW_PIXELS, 16 * width);
+        float[] y = context.getFloats(RenderContext.JPEG_Y, 16 * paddedWidth);
+        float[] cb = context.getFloats(RenderContext.JPEG_CB, 8 * paddedWidth / 2);
+        float[] cr = context.getFloats(RenderContext.JPEG_CR, 8 * paddedWidth / 2);
+        float[] block = new float[64];
+        int[] quantized = new int[64];
+        int[] prevDc = new int[3];
+
+        for (int mcuRow = 0; mcuRow * 16 < height; mcuRow++) {
+            int jStart = mcuRow * 16;
+            int nRows = Math.min(16, height - jStart);
+            for (int r = 0; r < nRows; r++) {
+                this.image.getRowSpan(jStart + r, 0, width, rows, r * width);
+            }
+            this.convertColours(rows, nRows, width, paddedWidth, y, cb, cr);
+
+            for (int mcuCol = 0; mcuCol < mcuCols; mcuCol++) {
+                int x = mcuCol * 16;
+                for (int b = 0; b < 4; b++) {
+                    copyBlock(y, paddedWidth, x + (b & 1) * 8, (b >> 1) * 8, block);
+                    prevDc[0] = this.encodeBlock(block, this.lumDivisors, quantized,
+                            prevDc[0], DC_LUMINANCE, AC_LUMINANCE);
+                }
+                copyBlock(cb, paddedWidth / 2, x / 2, 0, block);
+                prevDc[1] = this.encodeBlock(block, this.chromDivisors, quantized,
+                        prevDc[1], DC_CHROMINANCE, AC_CHROMINANCE);
+                copyBlock(cr, paddedWidth / 2, x / 2, 0, block);
+                prevDc[2] = this.encodeBlock(block, this.chromDivisors, quantized,
+                        prevDc[2], DC_CHROMINANCE, AC_CHROMINANCE);
+            }
+        }
+
+        // Pad the last byte with ones, then write the end-of-image marker
+        if (this.bitCount > 0) {
+            this.writeBits((1 << (8 - this.bitCount)) - 1, 8 - this.bitCount);
+        }
+        this.writeMarker(0xd9);
+        this.flush();
+        this.out = null;
+    }
+
+    /**
+     * Converts rows of argb pixels to level-shifted Y, Cb and Cr samples.
+     * Rows and columns beyond the edge of the image repeat the last row or
+     * column.  The chrominance planes are averaged over 2x2 pixels.
+     */
+    private void convertColours(int[] rows, int nRows, int width, int paddedWidth,
+            float[] y, float[] cb, float[] cr) {
+        int halfWidth = paddedWidth / 2;
+        Arrays.fill(cb, 0, 8 * halfWidth, 0.0f);
+        Arrays.fill(cr, 0, 8 * halfWidth, 0.0f);
+        for (int r = 0; r < 16; r++) {
+            int rowStart = Math.min(r, nRows - 1) * width;
+            int yStart = r * paddedWidth;
+            int cStart = (r >> 1) * halfWidth;
+            for (int i = 0; i < paddedWidth; i++) {
+                int argb = rows[rowStart + Math.min(i, width - 1)];
+                int red = (argb >> 16) & 0xff;
+                int green = (argb >> 8) & 0xff;
+                int blue = argb & 0xff;
+                y[yStart + i] = 0.299f * red + 0.587f * green + 0.114f * blue - 128.0f;
+                cb[cStart + (i >> 1)] += (-0.168736f * red - 0.331264f * green + 0.5f * blue) * 0.25f;
+                cr[cStart + (i >> 1)] += (0.5f * red - 0.418688f * green - 0.081312f * blue) * 0.25f;
+            }
+        }
+    }
+
+    private static void copyBlock(float[] plane, int planeWidth, int x, int y, float[] block) {
+        for (int r = 0; r < 8; r++) {
+            System.arraycopy(plane, (y + r) * planeWidth + x, block, r * 8, 8);
+        }
+    }
+
+    /**
+     * Transforms, quantizes and writes a block.
+     * @return the quantized DC coefficient of the block
+     */
+    private int encodeBlock(float[] block, float[] divisors, int[] quantized,
+            int prevDc, HuffmanTable dcTable, HuffmanTable acTable) throws IOException {
+        forwardDct(block);
+        for (int k = 0; k < 64; k++) {
+            int pos = ZIGZAG[k];
+            // Round to nearest, as (int) truncates towards zero
+            quantized[k] = (int) (block[pos] * divisors[pos] + 16384.5f) - 16384;
+        }
+
+        int diff = quantized[0] - prevDc;
+        int size = bitLength(diff);
+        this.writeBits(dcTable.codes[size], dcTable.sizes[size]);
+        if (size > 0) {
+            this.writeBits(diff < 0 ? diff - 1 : diff, size);
+        }
+
+        int run = 0;
+        for (int k = 1; k < 64; k++) {
+            int coeff = quantized[k];
+            if (coeff == 0) {
+                run++;
+            } else {
+                while (run > 15) {
+                    // 16 zeros
+                    this.writeBits(acTable.codes[0xf0], acTable.sizes[0xf0]);
+                    run -= 16;
+                }
+                size = bitLength(coeff);
+                int symbol = (run << 4) | size;
+                this.writeBits(acTable.codes[symbol], acTable.sizes[symbol]);
+                this.writeBits(coeff < 0 ? coeff - 1 : coeff, size);
+                run = 0;
+            }
+        }
+        if (run > 0) {
+            // End of block
+            this.writeBits(acTable.codes[0], acTable.sizes[0]);
+        }
+        return quantized[0];
+    }
+
+    /** The number of bits needed to hold the magnitude of the given value */
+    private static int bitLength(int value) {
+        return 32 - Integer.numberOfLeadingZeros(Math.abs(value));
+    }
+
+    /**
+     * Forward DCT of an 8x8 block in place, using the floating-point
+     * algorithm of Arai, Agui and Nakajima.  The outputs are scaled by
+     * 8 * AAN_SCALE[u] * AAN_SCALE[v], which is undone by the divisors.
+     */
+    private static void forwardDct(float[] d) {
+        // Rows, then columns
+        for (int pass = 0; pass < 2; pass++) {
+            int step = pass == 0 ? 1 : 8;
+            int stride = pass == 0 ? 8 : 1;
+            for (int n = 0; n < 8; n++) {
+                int p = n * stride;
+                float tmp0 = d[p] + d[p + 7 * step];
+                float tmp7 = d[p] - d[p + 7 * step];
+                float tmp1 = d[p + step] + d[p + 6 * step];
+                float tmp6 = d[p + step] - d[p + 6 * step];
+                float tmp2 = d[p + 2 * step] + d[p + 5 * step];
+                float tmp5 = d[p + 2 * step] - d[p + 5 * step];
+                float tmp3 = d[p + 3 * step] + d[p + 4 * step];
+                float tmp4 = d[p + 3 * step] - d[p + 4 * step];
+
+                // Even part
+                float tmp10 = tmp0 + tmp3;
+                float tmp13 = tmp0 - tmp3;
+                float tmp11 = tmp1 + tmp2;
+                float tmp12 = tmp1 - tmp2;
+                d[p] = tmp10 + tmp11;
+                d[p + 4 * step] = tmp10 - tmp11;
+                float z1 = (tmp12 + tmp13) * 0.707106781f;
+                d[p + 2 * step] = tmp13 + z1;
+                d[p + 6 * step] = tmp13 - z1;
+
+                // Odd part
+                tmp10 = tmp4 + tmp5;
+                tmp11 = tmp5 + tmp6;
+                tmp12 = tmp6 + tmp7;
+                float z5 = (tmp10 - tmp12) * 0.382683433f;
+                float z2 = 0.541196100f * tmp10 + z5;
+                float z4 = 1.306562965f * tmp12 + z5;
+                float z3 = tmp11 * 0.707106781f;
+                float z11 = tmp7 + z3;
+                float z13 = tmp7 - z3;
+                d[p + 5 * step] = z13 + z2;
+                d[p + 3 * step] = z13 - z2;
+                d[p + step] = z11 + z4;
+                d[p + 7 * step] = z11 - z4;
+            }
+        }
+    }
+
+    /** Writes the markers and tables that precede the image data */
+    private void writeHeaders(int width, int height) throws IOException {
+        // Start of image
+        this.writeMarker(0xd8);
+
+        // JFIF header, version 1.1, no units, 1:1 aspect ratio, no thumbnail
+        this.writeMarker(0xe0);
+        this.writeShort(16);
+        this.writeByte('J'); this.writeByte('F'); this.writeByte('I');
+        this.writeByte('F'); this.writeByte(0);
+        this.writeByte(1); this.writeByte(1);
+        this.writeByte(0);
+        this.writeShort(1); this.writeShort(1);
+        this.writeByte(0); this.writeByte(0);
+
+        // Quantization tables
+        this.writeMarker(0xdb);
+        this.writeShort(2 + 2 * 65);
+        this.writeByte(0);
+        for (int q : this.lumQuant) this.writeByte(q);
+        this.writeByte(1);
+        for (int q : this.chromQuant) this.writeByte(q);
+
+        // Start of frame (baseline): Y is sampled 2x2, Cb and Cr 1x1
+        this.writeMarker(0xc0);
+        this.writeShort(8 + 3 * 3);
+        this.writeByte(8);
+        this.writeShort(height);
+        this.writeShort(width);
+        this.writeByte(3);
+        this.writeByte(1); this.writeByte(0x22); this.writeByte(0);
+        this.writeByte(2); this.writeByte(0x11); this.writeByte(1);
+        this.writeByte(3); this.writeByte(0x11); this.writeByte(1);
+
+        // Huffman tables
+        this.writeMarker(0xc4);
+        this.writeShort(2 + 4 * 17 + DC_LUMINANCE_VALUES.length + AC_LUMINANCE_VALUES.length
+                + DC_CHROMINANCE_VALUES.length + AC_CHROMINANCE_VALUES.length);
+        this.writeHuffmanTable(0x00, DC_LUMINANCE_BITS, DC_LUMINANCE_VALUES);
+        this.writeHuffmanTable(0x10, AC_LUMINANCE_BITS, AC_LUMINANCE_VALUES);
+        this.writeHuffmanTable(0x01, DC_CHROMINANCE_BITS, DC_CHROMINANCE_VALUES);
+        this.writeHuffmanTable(0x11, AC_CHROMINANCE_BITS, AC_CHROMINANCE_VALUES);
+
+        // Start of scan
+        this.writeMarker(0xda);
+        this.writeShort(6 + 2 * 3);
+        this.writeByte(3);
+        this.writeByte(1); this.writeByte(0x00);
+        this.writeByte(2); this.writeByte(0x11);
+        this.writeByte(3); this.writeByte(0x11);
+        this.writeByte(0); this.writeByte(63); this.writeByte(0);
+    }
+
+    private void writeHuffmanTable(int id, int[] bits, int[] values) throws IOException {
+        this.writeByte(id);
+        for (int b : bits) this.writeByte(b);
+        for (int v : values) this.writeByte(v);
+    }
+
+    private void writeMarker(int marker) throws IOException {
+        this.writeByte(0xff);
+        this.writeByte(marker);
+    }
+
+    private void writeShort(int value) throws IOException {
+        this.writeByte(value >> 8);
+        this.writeByte(value);
+    }
+
+    /** Writes the given number of low-order bits, stuffing a zero after any 0xff byte */
+    private void writeBits(int bits, int size) throws IOException {
+        this.bitBuffer = (this.bitBuffer << size) | (bits & ((1 << size) - 1));
+        this.bitCount += size;
+        while (this.bitCount >= 8) {
+            int b = (this.bitBuffer >> (this.bitCount - 8)) & 0xff;
+            this.writeByte(b);
+            if (b == 0xff) this.writeByte(0);
+            this.bitCount -= 8;
+        }
+    }
+
+    private void writeByte(int b) throws IOException {
+        if (this.outPos == this.outBuffer.length) this.flush();
+        this.outBuffer[this.outPos++] = (byte) b;
+    }
+
+    private void flush() throws IOException {
+        this.out.write(this.outBuffer, 0, this.outPos);
+        this.outPos = 0;
+    }
+
+    /** The code and length for each symbol of a Huffman table */
+    private static final class HuffmanTable {
+        private final int[] codes = new int[256];
+        private final int[] sizes = new int[256];
+
+        /** Generates the codes as described in Annex C of the JPEG spec */
+        public HuffmanTable(int[] bits, int[] values) {
+            int code = 0;
+            int k = 0;
+            for (int length = 1; length <= 16; length++) {
+                for (int n = 0; n < bits[length - 1]; n++) {
+                    this.codes[values[k]] = code;
+                    this.sizes[values[k]] = length;
+                    code++;
+                    k++;
+                }
+                code <<= 1;
+            }
+        }
+    }
+
+}
@@ -0,0 +1,227 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps;
+
+import com.google.appengine.api.ThreadManager;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Logger;
+
+/**
+ * <p>Renders large images by splitting them into bands of rows, each of which
+ * is projected and gathered separately on a shared pool of threads.  The
+ * same pool is used for parallel PNG encoding (see {@link #getExecutor()}).</p>
+ * <p>This is off by default.  It is turned on by setting the system property
+ * {@value #PARALLELISM_PROPERTY} to the number of threads that render each
+ * image, including the request thread (usually the number of cores).  Only
+ * images of at least {@value #THRESHOLD_PROPERTY} pixels (default
+ * {@value #DEFAULT_THRESHOLD}) are split.  So that we don't oversubscribe the
+ * cores when there are many concurrent requests, an image is rendered on the
+ * request thread alone if the pool is already busy.</p>
+ * <p>The pool is shared between requests, so its threads are created with
+ * {@link ThreadManager#backgroundThreadFactory()}.  App Engine only allows
+ * background threads on instances with manual or basic scaling: if the
+ * threads can't be created, a warning is logged and images are rendered on
+ * the request thread.</p>
+ * @author Jon
+ */
+public final class ParallelRenderer {
+
+    private static final Logger log = Logger.getLogger(ParallelRenderer.class.getName());
+
+    /** System property that sets the number of rendering threads */
+    public static final String PARALLELISM_PROPERTY = "basemaps.render.parallelism";
+
+    /** System property that sets the minimum number of pixels in an image
+     * that will be rendered in parallel */
+    public static final String THRESHOLD_PROPERTY = "basemaps.render.parallelThreshold";
+
+    public static final int DEFAULT_THRESHOLD = 128 * 1024;
+
+    private static final int PARALLELISM = Integer.getInteger(PARALLELISM_PROPERTY, 0);
+
+    private static final int THRESHOLD = Integer.getInteger(THRESHOLD_PROPERTY, DEFAULT_THRESHOLD);
+
+    /** Bands smaller than this aren't worth the overhead of a task.  This
+     * is the same as the default grid step in {@link GridReprojection}. */
+    private static final int MIN_BAND_ROWS = 16;
+
+    /** Holds the pool, so that it is only created if parallel rendering is on */
+    private static final class PoolHolder {
+        /** The pool, or null if its threads could not be created */
+        static final ThreadPoolExecutor POOL = createPool();
+
+        private static ThreadPoolExecutor createPool() {
+            log.info("Creating rendering pool of " + PARALLELISM + " threads");
+            ThreadPoolExecutor pool = null;
+            try {
+                ThreadFactory threadFactory = ThreadManager.backgroundThreadFactory();
+                if (threadFactory == null) {
+                    throw new IllegalStateException("no thread factory");
+                }
+                pool = new ThreadPoolExecutor(PARALLELISM, PARALLELISM, 0L,
+                        TimeUnit.MILLISECONDS, new LinkedBlockingQueue<Runnable>(),
+                        threadFactory);
+                // Start the threads now, so that we find out straight away if
+                // we aren't allowed to create them
+                pool.prestartAllCoreThreads();
+                return pool;
+            } catch (RuntimeException re) {
+                log.warning("Could not create rendering threads, so images will be"
+                        + " rendered serially: " + re);
+                if (pool != null) pool.shutdownNow();
+                return null;
+            }
+        }
+    }
+
+    private ParallelRenderer() { throw new AssertionError(); }
+
+    /**
+     * Gets the shared pool, for other work that can be split into parallel
+     * tasks.
+     * @return the pool, or null if parallel rendering is turned off or
+     * unavailable, or the pool is already busy with other requests, in which
+     * case the work should be done on the calling thread.
+     */
+    public static ExecutorService getExecutor() {
+        if (PARALLELISM < 2) return null;
+        ThreadPoolExecutor pool = PoolHolder.POOL;
+        if (pool == null || !pool.getQueue().isEmpty() || pool.getActiveCount() >= PARALLELISM) {
+            return null;
+        }
+        return pool;
+    }
+
+    /**
+     * Renders the target image from the source image in parallel, if parallel
+     * rendering is turned on, the target is large enough and the pool is not
+     * busy.  The calling thread renders bands too.
+     * @return true if the image was rendered, false if the caller should
+     * render the image itself.
+     */
+    static boolean render(GeoreferencedImage source, GeoreferencedImage target,
+            int[] pixels) throws IOException {
+        int width = target.getImage().getWidth();
+        int height = target.getImage().getHeight();
+        if (PARALLELISM < 2 || width * height < THRESHOLD || height < 2 * MIN_BAND_ROWS) {
+            return false;
+        }
+        ExecutorService pool = getExecutor();
+        if (pool == null) return false;
+        // Aim for a few bands per thread so that the load is balanced.  The
+        // bands are a multiple of MIN_BAND_ROWS high so that they line up
+        // with the grid used by GridReprojection.
+        int bandRows = Math.max(MIN_BAND_ROWS, height / (4 * PARALLELISM));
+        bandRows = (bandRows + MIN_BAND_ROWS - 1) / MIN_BAND_ROWS * MIN_BAND_ROWS;
+        RenderBands bands = new RenderBands(source, target, pixels, bandRows);
+
+        List<Future<Void>> futures = new ArrayList<Future<Void>>();
+        for (int t = 1; t < Math.min(PARALLELISM, bands.numBands); t++) {
+            futures.add(pool.submit(bands));
+        }
+        Throwable error = null;
+        try {
+            bands.call();
+        } catch (Throwable th) {
+            error = th;
+        }
+        // We must wait for all the tasks, even if one has failed, so that
+        // none of them is still writing to the pixels when we return
+        for (Future<Void> future : futures) {
+            Throwable th = waitFor(future);
+            if (error == null) error = th;
+        }
+        if (error instanceof IOException) throw (IOException) error;
+        if (error instanceof RuntimeException) throw (RuntimeException) error;
+        if (error instanceof Error) throw (Error) error;
+        return true;
+    }
+
+    /**
+     * Waits for the given task to finish.
+     * @return the exception that the task threw, or null if it succeeded
+     */
+    private static Throwable waitFor(Future<Void> future) {
+        boolean interrupted = false;
+        try {
+            while (true) {
+                try {
+                    future.get();
+                    return null;
+                } catch (InterruptedException ie) {
+                    interrupted = true;
+                } catch (ExecutionException ee) {
+                    return ee.getCause();
+                }
+            }
+        } finally {
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+        }
+    }
+
+    /**
+     * Renders the bands of an image, taking the next band that no thread has
+     * started until there are none left.  The same instance is run on each
+     * thread.  If rendering a band fails, the threads stop taking bands.
+     */
+    private static final class RenderBands implements Callable<Void> {
+        private final GeoreferencedImage source;
+        private final GeoreferencedImage target;
+        private final int[] pixels;
+        private final int bandRows;
+        private final int numBands;
+        private final AtomicInteger nextBand = new AtomicInteger();
+        private volatile boolean failed = false;
+
+        public RenderBands(GeoreferencedImage source, GeoreferencedImage target,
+                int[] pixels, int bandRows) {
+            this.source = source;
+            this.target = target;
+            this.pixels = pixels;
+            this.bandRows = bandRows;
+            int height = target.getImage().getHeight();
+            this.numBands = (height + bandRows - 1) / bandRows;
+        }
+
+        @Override
+        public Void call() throws IOException {
+            boolean finished = false;
+            try {
+                int b;
+                while (!this.failed && (b = this.nextBand.getAndIncrement()) < this.numBands) {
+                    this.renderBand(b);
+                }
+                finished = true;
+            } finally {
+                if (!finished) this.failed = true;
+            }
+            return null;
+        }
+
+        private void renderBand(int b) throws IOException {
+            int jStart = b * this.bandRows;
+            int jEnd = Math.min(this.target.getImage().getHeight(), jStart + this.bandRows);
+            // The band is rendered straight into its place in the pixels
+            GeoreferencedImage band = this.target.getRowBand(jStart, jEnd);
+            int width = this.target.getImage().getWidth();
+            this.source.renderSerially(band, this.pixels, jStart * width);
+        }
+    }
+
+}
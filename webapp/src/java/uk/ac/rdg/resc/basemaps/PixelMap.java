@@ -28,173 +28,295 @@
 
 package uk.ac.rdg.resc.basemaps;
 
-import java.util.HashMap;
-import java.util.HashSet;
-import java.util.Map;
-import java.util.Set;
+import java.io.IOException;
+import java.util.Arrays;
 
 /**
- *<p>Maps real-world points to i and j indices of corresponding
- * points within the source data.  This is a very important class in ncWMS.  A
- * PixelMap is constructed using the following general algorithm:</p>
+ * <p>Maps i and j indices of points in a source image to the indices of the
+ * corresponding pixels in the picture being made, grouped by row of the
+ * source image.  This tells a reader which data to read, so that it can
+ * read each row of the source as a single contiguous span (from
+ * {@link #getRowMinIIndex(int)} to {@link #getRowMaxIIndex(int)}) and
+ * scatter each value to every pixel that needs it, rather than making one
+ * random access per pixel.  See {@link #readPixels(Image, int[])}.</p>
  *
- * <pre>
- * For each point in the given {@link PointList}:
- *    1. Find the x-y coordinates of this point in the CRS of the PointList
- *    2. Transform these x-y coordinates into latitude and longitude
- *    3. Use the given {@link HorizontalCoordSys} to transform lat-lon into the
- *       index values (i and j) of the nearest cell in the source grid
- *    5. Add the mapping (point -> i,j) to the pixel map
- * </pre>
+ * <p>The map is held in arrays of primitives.  Mappings are appended as
+ * they are {@link #put(int, int, int) put}, then the first query sorts
+ * them into compressed sparse row form: the rows, in ascending order of j,
+ * each own a contiguous range of entries, sorted by i, which is given by
+ * {@link #getRowStart(int)} and {@link #getRowEnd(int)}.  A source point
+ * that maps to several pixels has one entry per pixel.</p>
  *
- * <p>(A more efficient algorithm is used for the special case in which both the
- * requested CRS and the CRS of the data are lat-lon.)</p>
- *
- * <p>The resulting PixelMap is then used by {@link DataReader}s to work out what
- * data to read from the source data files.  A variety of strategies are possible
- * for reading these data points, each of which may be optimal in a certain
- * situation.  See {@link DataReadingStrategy} for further information.</p>
+ * <p>Instances are not thread-safe.</p>
  *
  * @author Jon Blower
- * @todo Perhaps we can think of a more appropriate name for this class?
  */
 public final class PixelMap
 {
 
     // These define the bounding box (in terms of axis indices) of the data
-    // to extract from the source files
-    private short minIIndex = Short.MAX_VALUE;
-    private short minJIndex = Short.MAX_VALUE;
-    private short maxIIndex = -1;
-    private short maxJIndex = -1;
+    // to extract from the source
+    private int minIIndex = Integer.MAX_VALUE;
+    private int minJIndex = Integer.MAX_VALUE;
+    private int maxIIndex = -1;
+    private int maxJIndex = -1;
+
+    // The mappings in the order in which they were added
+    private int size = 0;
+    private int[] iIndices;
+    private int[] jIndices;
+    private int[] pixelIndices;
 
-    // Maps j indices to row information
-    private final Map<Short, Row> pixelMap = new HashMap<Short, Row>();
+    // The mappings in compressed sparse row form, built on demand
+    private boolean sorted = true;
+    private int numRows = 0;
+    private int[] rowJIndices = new int[0];
+    private int[] rowStarts = new int[1];
+    private int[] sortedIIndices = new int[0];
+    private int[] sortedPixelIndices = new int[0];
 
     // Number of unique i-j pairs
     private int numUniqueIJPairs = 0;
 
+    /** Creates an empty PixelMap */
+    public PixelMap()
+    {
+        this(16);
+    }
+
     /**
-     * Adds a new pixel index to this map.  Does nothing if either x or y is
+     * Creates an empty PixelMap with room for the given number of mappings
+     * before its arrays have to grow.
+     */
+    public PixelMap(int initialCapacity)
+    {
+        initialCapacity = Math.max(initialCapacity, 1);
+        this.iIndices = new int[initialCapacity];
+        this.jIndices = new int[initialCapacity];
+        this.pixelIndices = new int[initialCapacity];
+    }
+
+    /**
+     * Adds a new pixel index to this map.  Does nothing if either i or j is
      * negative.
      * @param i The i index of the point in the source data
      * @param j The j index of the point in the source data
      * @param pixel The index of the corresponding point in the picture
+     * @throws IllegalArgumentException if the pixel index is negative
      */
     public void put(int i, int j, int pixel)
     {
-        if (i > Short.MAX_VALUE || j > Short.MAX_VALUE) {
-            throw new IllegalArgumentException("source data pixel index out of range");
-        }
+        if (pixel < 0) throw new IllegalArgumentException("Negative pixel index");
         // If either of the indices are negative there is no data for this
         // pixel index
         if (i < 0 || j < 0) return;
 
         // Modify the bounding box if necessary
-        if (i < this.minIIndex) this.minIIndex = (short)i;
-        if (i > this.maxIIndex) this.maxIIndex = (short)i;
-        if (j < this.minJIndex) this.minJIndex = (short)j;
-        if (j > this.maxJIndex) this.maxJIndex = (short)j;
-
-        // Get the information for this row (i.e. this y index),
-        // creating a new row if necessary
-        Row row = this.pixelMap.get((short)j);
-        if (row == null)
+        if (i < this.minIIndex) this.minIIndex = i;
+        if (i > this.maxIIndex) this.maxIIndex = i;
+        if (j < this.minJIndex) this.minJIndex = j;
+        if (j > this.maxJIndex) this.maxJIndex = j;
+
+        if (this.size == this.iIndices.length)
+        {
+            int newCapacity = this.size + (this.size >> 1) + 1;
+            this.iIndices = Arrays.copyOf(this.iIndices, newCapacity);
+            this.jIndices = Arrays.copyOf(this.jIndices, newCapacity);
+            this.pixelIndices = Arrays.copyOf(this.pixelIndices, newCapacity);
+        }
+        this.iIndices[this.size] = i;
+        this.jIndices[this.size] = j;
+        this.pixelIndices[this.size] = pixel;
+        this.size++;
+        this.sorted = false;
+    }
+
+    /**
+     * Sorts the mappings into rows, if any have been added since the last
+     * sort.  The mappings are sorted on j, then the entries of each row are
+     * sorted on i.  Each sort is of longs, with the sort key in the high word.
+     */
+    private void sort()
+    {
+        if (this.sorted) return;
+        int n = this.size;
+        long[] byJ = new long[n];
+        for (int e = 0; e < n; e++)
+        {
+            byJ[e] = ((long) this.jIndices[e] << 32) | e;
+        }
+        Arrays.sort(byJ);
+        long[] entries = new long[n];
+        int rows = 0;
+        int lastJ = -1;
+        for (int k = 0; k < n; k++)
         {
-            row = new Row();
-            this.pixelMap.put((short)j, row);
+            int e = (int) byJ[k];
+            entries[k] = ((long) this.iIndices[e] << 32) | this.pixelIndices[e];
+            int j = (int) (byJ[k] >>> 32);
+            if (j != lastJ) rows++;
+            lastJ = j;
         }
 
-        // Add the pixel to this row
-        row.put((short)i, pixel);
+        this.numRows = rows;
+        this.rowJIndices = new int[rows];
+        this.rowStarts = new int[rows + 1];
+        this.sortedIIndices = new int[n];
+        this.sortedPixelIndices = new int[n];
+        this.numUniqueIJPairs = 0;
+        int start = 0;
+        for (int row = 0; row < rows; row++)
+        {
+            int j = (int) (byJ[start] >>> 32);
+            int end = start + 1;
+            while (end < n && (int) (byJ[end] >>> 32) == j) end++;
+            Arrays.sort(entries, start, end);
+            this.rowJIndices[row] = j;
+            this.rowStarts[row] = start;
+            int lastI = -1;
+            for (int e = start; e < end; e++)
+            {
+                int i = (int) (entries[e] >>> 32);
+                this.sortedIIndices[e] = i;
+                this.sortedPixelIndices[e] = (int) entries[e];
+                if (i != lastI) this.numUniqueIJPairs++;
+                lastI = i;
+            }
+            start = end;
+        }
+        this.rowStarts[rows] = n;
+        this.sorted = true;
     }
 
     /**
      * Returns true if this PixelMap does not contain any data: this will happen
-     * if there is no intersection between the requested data and the data on disk.
-     * @return true if this PixelMap does not contain any data: this will happen
-     * if there is no intersection between the requested data and the data on disk
+     * if there is no intersection between the requested data and the source.
      */
     public boolean isEmpty()
     {
-        return this.pixelMap.size() == 0;
+        return this.size == 0;
     }
 
-    /**
-     * Gets the j indices of all rows in this pixel map
-     * @return the Set of all j indices in this pixel map
-     */
-    public Set<Short> getJIndices()
+    /** Gets the number of rows (i.e. distinct j indices) in this pixel map */
+    public int getNumRows()
     {
-        return this.pixelMap.keySet();
+        this.sort();
+        return this.numRows;
     }
 
-    /**
-     * Gets the i indices of all the data points in the given row that
-     * are needed to make the final image.
-     * @return the Set of all I indices in the given row
-     * @throws IllegalArgumentException if there is no row with the given y index
-     */
-    public Set<Short> getIIndices(int j)
+    /** Gets the j index of the given row (rows are in ascending order of j) */
+    public int getRowJIndex(int row)
     {
-        if (j > Short.MAX_VALUE) throw new IllegalArgumentException("j out of range");
-        return this.getRow((short)j).getIIndices().keySet();
+        this.sort();
+        this.checkRow(row);
+        return this.rowJIndices[row];
     }
 
-    /**
-     * Gets the set of all pixel indices, representing individual elements in the
-     * final data array, that correspond with the given grid point in the source data.  A single
-     * value from the source data might map to several elements in the final data array,
-     * especially if we are "zoomed in".
-     * @return a Set of all data array indices that correspond with the given i and
-     * j index
-     * @throws IllegalArgumentException if there is no row with the given j index
-     * or if the given i index is not found in the row
-     */
-    public Set<Integer> getPixelIndices(int i, int j)
+    /** Gets the index of the first entry in the given row */
+    public int getRowStart(int row)
     {
-        Map<Short, Set<Integer>> row = this.getRow(j).getIIndices();
-        if (i > Short.MAX_VALUE) throw new IllegalArgumentException("i out of range");
-        if (!row.containsKey((short)i))
-        {
-            throw new IllegalArgumentException("The i index " + i +
-                " was not found in the row with j index " + j);
-        }
-        return row.get((short)i);
+        this.sort();
+        this.checkRow(row);
+        return this.rowStarts[row];
+    }
+
+    /** Gets the index after the last entry in the given row */
+    public int getRowEnd(int row)
+    {
+        this.sort();
+        this.checkRow(row);
+        return this.rowStarts[row + 1];
+    }
+
+    /** Gets the minimum i index in the given row */
+    public int getRowMinIIndex(int row)
+    {
+        return this.getIIndex(this.getRowStart(row));
+    }
+
+    /** Gets the maximum i index in the given row */
+    public int getRowMaxIIndex(int row)
+    {
+        return this.getIIndex(this.getRowEnd(row) - 1);
+    }
+
+    /** Gets the i index of the source point of the given entry */
+    public int getIIndex(int entry)
+    {
+        this.sort();
+        return this.sortedIIndices[entry];
+    }
+
+    /** Gets the index of the pixel in the picture of the given entry */
+    public int getPixelIndex(int entry)
+    {
+        this.sort();
+        return this.sortedPixelIndices[entry];
+    }
+
+    private void checkRow(int row)
+    {
+        if (row < 0 || row >= this.numRows) throw new IndexOutOfBoundsException("row " + row);
     }
 
     /**
      * Gets the minimum i index in the row with the given j index
-     * @return the minimum i index in the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * @throws IllegalArgumentException if there is no row with the given j index
      */
     public int getMinIIndexInRow(int j)
     {
-        return this.getRow(j).getMinIIndex();
+        return this.getRowMinIIndex(this.findRow(j));
     }
 
     /**
      * Gets the maximum i index in the row with the given j index
-     * @return the maximum i index in the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * @throws IllegalArgumentException if there is no row with the given j index
      */
     public int getMaxIIndexInRow(int j)
     {
-        return this.getRow(j).getMaxIIndex();
+        return this.getRowMaxIIndex(this.findRow(j));
     }
 
     /**
-     * @return the row with the given j index
-     * @throws IllegalArgumentException if there is no row with the given y index
+     * @return the number of the row with the given j index
+     * @throws IllegalArgumentException if there is no row with the given j index
      */
-    private Row getRow(int j)
+    private int findRow(int j)
     {
-        if (j > Short.MAX_VALUE) throw new IllegalArgumentException("j out of range");
-        if (!this.pixelMap.containsKey((short)j))
+        this.sort();
+        int row = Arrays.binarySearch(this.rowJIndices, 0, this.numRows, j);
+        if (row < 0)
         {
             throw new IllegalArgumentException("There is no row with j index " + j);
         }
-        return this.pixelMap.get((short)j);
+        return row;
+    }
+
+    /**
+     * Reads the mapped points from the given image and puts each value in
+     * every pixel that needs it.  Each row is read with a single call to
+     * {@link Image#getRowSpan(int, int, int, int[], int)}.  Pixels that
+     * aren't in this map are not changed.
+     * @param source The image whose indices are mapped
+     * @param pixels The pixels of the picture
+     */
+    public void readPixels(Image source, int[] pixels) throws IOException
+    {
+        this.sort();
+        RenderContext context = RenderContext.get();
+        for (int row = 0; row < this.numRows; row++)
+        {
+            int start = this.rowStarts[row];
+            int end = this.rowStarts[row + 1];
+            int minI = this.sortedIIndices[start];
+            int length = this.sortedIIndices[end - 1] - minI + 1;
+            int[] span = context.getInts(RenderContext.PIXEL_MAP_ROW, length);
+            source.getRowSpan(this.rowJIndices[row], minI, length, span, 0);
+            for (int e = start; e < end; e++)
+            {
+                pixels[this.sortedPixelIndices[e]] = span[this.sortedIIndices[e] - minI];
+            }
+        }
     }
 
     /**
@@ -233,90 +355,46 @@ public final class PixelMap
         return maxJIndex;
     }
 
-    /**
-     * Contains information about a particular row in the data
-     */
-    private class Row
-    {
-        // Maps i Indices to a set of pixel indices
-        //             i        pixels
-        private Map<Short, Set<Integer>> iIndices = new HashMap<Short, Set<Integer>>();
-        // Min and max x Indices in this row
-        private short minIIndex = Short.MAX_VALUE;
-        private short maxIIndex = -1;
-
-        /**
-         * Adds a mapping of an i index to a pixel index
-         */
-        public void put(short i, int pixel)
-        {
-            if (i < this.minIIndex) this.minIIndex = i;
-            if (i > this.maxIIndex) this.maxIIndex = i;
-
-            Set<Integer> pixelIndices = this.iIndices.get(i);
-            if (pixelIndices == null)
-            {
-                pixelIndices = new HashSet<Integer>();
-                this.iIndices.put(i, pixelIndices);
-                // We have a new unique x-y pair
-                PixelMap.this.numUniqueIJPairs++;
-            }
-            // Add the pixel index to the set
-            pixelIndices.add(pixel);
-        }
-
-        public Map<Short, Set<Integer>> getIIndices()
-        {
-            return this.iIndices;
-        }
-
-        public int getMinIIndex()
-        {
-            return this.minIIndex;
-        }
-
-        public int getMaxIIndex()
-        {
-            return this.maxIIndex;
-        }
-    }
-
     /**
      * Gets the number of unique i-j pairs in this pixel map. When combined
      * with the size of the resulting image we can quantify the under- or
-     * oversampling.  This is the number of data points that will be extracted
-     * by the {@link PixelByPixelDataReader}.
+     * oversampling.  This is the number of data points that would be read
+     * one at a time.
      * @return the number of unique i-j pairs in this pixel map.
      */
     public int getNumUniqueIJPairs()
     {
+        this.sort();
         return numUniqueIJPairs;
     }
 
     /**
      * Gets the sum of the lengths of each row of data points,
-     * {@literal i.e.} sum(imax - imin + 1).  This is the number of data points that will
-     * be extracted by the {@link DefaultDataReader}.
+     * {@literal i.e.} sum(imax - imin + 1).  This is the number of data
+     * points that are read by {@link #readPixels(Image, int[])}.
      * @return the sum of the lengths of each row of data points
      */
     public int getSumRowLengths()
     {
+        this.sort();
         int sumRowLengths = 0;
-        for (Row row : this.pixelMap.values())
+        for (int row = 0; row < this.numRows; row++)
         {
-            sumRowLengths += (row.getMaxIIndex() - row.getMinIIndex() + 1);
+            sumRowLengths += this.sortedIIndices[this.rowStarts[row + 1] - 1]
+                    - this.sortedIIndices[this.rowStarts[row]] + 1;
         }
         return sumRowLengths;
     }
 
     /**
      * Gets the size of the i-j bounding box that encompasses all data.  This is
-     * the number of data points that will be extracted by the
-     * {@link BoundingBoxDataReader}.
+     * the number of data points that would be read if the whole box were
+     * read at once.
      * @return the size of the i-j bounding box that encompasses all data.
      */
     public int getBoundingBoxSize()
     {
+        if (this.isEmpty()) return 0;
         return (this.maxIIndex - this.minIIndex + 1) *
                (this.maxJIndex - this.minJIndex + 1);
     }
@@ -25,9 +25,18 @@ public enum Projection2 {
         @Override public double[] projToLonLat(double x, double y) {
             return new double[]{x, y};
         }
+        @Override public void lonLatToProj(double[] lonLats, double[] xys, int n) {
+            if (lonLats != xys) System.arraycopy(lonLats, 0, xys, 0, 2 * n);
+        }
+        @Override public void projToLonLat(double[] xys, double[] lonLats, int n) {
+            if (xys != lonLats) System.arraycopy(xys, 0, lonLats, 0, 2 * n);
+        }
         @Override public Set<String> getCodes() {
             return Sets.newHashSet("CRS:84", "EPSG:4326");
         }
+        @Override public boolean isSeparable() {
+            return true;
+        }
     },
 
     /** North polar stereographic projection */
@@ -52,6 +61,12 @@ public enum Projection2 {
         @Override public double[] projToLonLat(double x, double y) {
             return proj.inverseTransform(x, y);
         }
+        @Override public void lonLatToProj(double[] lonLats, double[] xys, int n) {
+            proj.transform(lonLats, xys, n);
+        }
+        @Override public void projToLonLat(double[] xys, double[] lonLats, int n) {
+            proj.inverseTransform(xys, lonLats, n);
+        }
         @Override public Set<String> getCodes() {
             return Sets.newHashSet("EPSG:32661");
         }
@@ -78,9 +93,64 @@ public enum Projection2 {
         @Override public double[] projToLonLat(double x, double y) {
             return proj.inverseTransform(x, y);
         }
+        @Override public void lonLatToProj(double[] lonLats, double[] xys, int n) {
+            proj.transform(lonLats, xys, n);
+        }
+        @Override public void projToLonLat(double[] xys, double[] lonLats, int n) {
+            proj.inverseTransform(xys, lonLats, n);
+        }
         @Override public Set<String> getCodes() {
             return Sets.newHashSet("EPSG:32761");
         }
+    },
+
+    /**
+     * Spherical ("web") Mercator projection, as used by OpenLayers, Google Maps
+     * etc.  Longitudes and latitudes are projected as if they were on a sphere
+     * whose radius is the WGS84 equatorial radius.  x depends only on
+     * longitude and y only on latitude, so this projection is separable.
+     */
+    WEB_MERCATOR {
+        private static final double RADIUS = 6378137.0;
+
+        @Override public double[] lonLatToProj(double lon, double lat) {
+            return new double[]{lonToX(lon), latToY(lat)};
+        }
+        @Override public double[] projToLonLat(double x, double y) {
+            return new double[]{xToLon(x), yToLat(y)};
+        }
+        @Override public void lonLatToProj(double[] lonLats, double[] xys, int n) {
+            for (int p = 0; p < 2 * n; p += 2) {
+                xys[p] = lonToX(lonLats[p]);
+                xys[p + 1] = latToY(lonLats[p + 1]);
+            }
+        }
+        @Override public void projToLonLat(double[] xys, double[] lonLats, int n) {
+            for (int p = 0; p < 2 * n; p += 2) {
+                lonLats[p] = xToLon(xys[p]);
+                lonLats[p + 1] = yToLat(xys[p + 1]);
+            }
+        }
+        @Override public Set<String> getCodes() {
+            return Sets.newHashSet("EPSG:3857", "EPSG:900913");
+        }
+        @Override public boolean isSeparable() {
+            return true;
+        }
+
+        private double lonToX(double lon) {
+            return RADIUS * Math.toRadians(lon);
+        }
+        /** Gives NaN for latitudes outside the range -90 to 90 */
+        private double latToY(double lat) {
+            return RADIUS * Math.log(Math.tan(Math.PI / 4.0 + Math.toRadians(lat) / 2.0));
+        }
+        private double xToLon(double x) {
+            return Math.toDegrees(x / RADIUS);
+        }
+        private double yToLat(double y) {
+            return Math.toDegrees(2.0 * Math.atan(Math.exp(y / RADIUS)) - Math.PI / 2.0);
+        }
     };
 
     /** Converts a longitude-latitude point to [x,y] coordinates in this projection */
@@ -89,7 +159,33 @@ public enum Projection2 {
     /** Converts an x,y point in this projection to [lon,lat] */
     public abstract double[] projToLonLat(double x, double y);
 
+    /**
+     * Converts n longitude-latitude points, stored as pairs in lonLats, to
+     * x,y pairs in this projection.  This is much quicker than converting the
+     * points one at a time, and doesn't allocate anything.  The arrays may be
+     * the same.  Points that can't be converted, or are NaN, give NaN.
+     */
+    public abstract void lonLatToProj(double[] lonLats, double[] xys, int n);
+
+    /**
+     * Converts n x,y points in this projection, stored as pairs in xys, to
+     * longitude-latitude pairs.  The arrays may be the same.  Points that
+     * can't be converted, or are NaN, give NaN.
+     */
+    public abstract void projToLonLat(double[] xys, double[] lonLats, int n);
+
     /** Gets the codes that can be used to identify this projection */
     public abstract Set<String> getCodes();
 
+    /**
+     * Returns true if the x coordinate in this projection depends only on
+     * longitude and the y coordinate depends only on latitude.  Images in
+     * separable projections can be reprojected one row and one column at
+     * a time, rather than one pixel at a time.  This default implementation
+     * returns false.
+     */
+    public boolean isSeparable() {
+        return false;
+    }
+
 }
@@ -0,0 +1,249 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps;
+
+import java.io.ByteArrayOutputStream;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Buffers and zlib objects that are reused by all the requests that are
+ * handled on a thread, so that rendering and encoding an image does not
+ * allocate arrays in proportion to its size, and so that the native memory
+ * behind {@link Deflater}s and {@link Inflater}s is not left waiting for
+ * finalization.</p>
+ * <p>Each scratch array is identified by a slot number.  The slots are
+ * listed below, with the code that uses them: code that uses a slot must
+ * not call other code that uses the same slot while it still needs the
+ * contents.  The contents of an array are undefined when it is handed out,
+ * and the array may be longer than requested.  Arrays that are larger than
+ * {@value #MAX_RETAINED_PROPERTY} elements (default
+ * {@value #DEFAULT_MAX_RETAINED}) are never kept, so that one large request
+ * doesn't tie up memory on the thread for ever.</p>
+ * <p>Instances are not thread-safe: use {@link #get()} to get the
+ * instance for the current thread.</p>
+ * @author Jon
+ */
+public final class RenderContext {
+
+    /** System property that sets the largest array (in elements) that is retained */
+    public static final String MAX_RETAINED_PROPERTY = "basemaps.renderContext.maxRetained";
+
+    public static final int DEFAULT_MAX_RETAINED = 1024 * 1024;
+
+    private static final int MAX_RETAINED = Integer.getInteger(MAX_RETAINED_PROPERTY,
+            DEFAULT_MAX_RETAINED);
+
+    // Slots for int arrays
+
+    /** GeoreferencedImage: source i indices of the target pixels */
+    public static final int SOURCE_IS = 0;
+    /** GeoreferencedImage: source j indices of the target pixels */
+    public static final int SOURCE_JS = 1;
+    /** GeoreferencedImage: pixels read from a source row; encoders: input rows */
+    public static final int ROW_PIXELS = 2;
+    /** ImageMosaic.getPixels(): sub-image of each pixel */
+    public static final int MOSAIC_SUB_IMAGES = 3;
+    /** ImageMosaic.getPixels(): start of each bucket */
+    public static final int MOSAIC_BUCKET_STARTS = 4;
+    /** ImageMosaic.getPixels(): number of pixels in each bucket */
+    public static final int MOSAIC_BUCKET_FILL = 5;
+    /** ImageMosaic.getPixels(): pixel indices, sorted by bucket */
+    public static final int MOSAIC_PIXEL_INDICES = 6;
+    /** ImageMosaic.getPixels(): i indices within a sub-image */
+    public static final int MOSAIC_SUB_IMAGE_IS = 7;
+    /** ImageMosaic.getPixels(): j indices within a sub-image */
+    public static final int MOSAIC_SUB_IMAGE_JS = 8;
+    /** ImageMosaic.getPixels(): pixels read from a sub-image */
+    public static final int MOSAIC_SUB_IMAGE_PIXELS = 9;
+    /** PixelMap.readPixels(): the span read from a source row */
+    public static final int PIXEL_MAP_ROW = 10;
+    /** GeoreferencedImage: pixels of a band that is rendered in parallel */
+    public static final int BAND_PIXELS = 11;
+
+    private static final int NUM_INT_SLOTS = 12;
+
+    // Slots for byte arrays
+
+    /** PngEncoder: the current row, unfiltered */
+    public static final int PNG_ROW = 0;
+    /** PngEncoder: the prior row, unfiltered */
+    public static final int PNG_PRIOR_ROW = 1;
+    /** PngEncoder: the filtered row */
+    public static final int PNG_FILTERED = 2;
+    /** PngEncoder: the row with the filter being tried */
+    public static final int PNG_CANDIDATE = 3;
+    /** PngEncoder: compressed data waiting to be written as an IDAT chunk */
+    public static final int PNG_COMPRESSED = 4;
+    /** PngEncoder: output of a parallel deflate task */
+    public static final int PNG_DEFLATED = 5;
+    /** TileCodec: samples of a tile being decoded */
+    public static final int TILE_SAMPLES = 6;
+    /** FileBackedImageMosaic: encoded tile read from a file */
+    public static final int TILE_DATA = 7;
+    /** ImageFile: a row span read from a file that isn't memory-mapped */
+    public static final int IMAGE_FILE_ROW = 8;
+    /** TileCodec: window of a memory-mapped tile being inflated */
+    public static final int TILE_INPUT = 9;
+
+    private static final int NUM_BYTE_SLOTS = 10;
+
+    // Slots for float arrays
+
+    /** JpegEncoder: luminance samples */
+    public static final int JPEG_Y = 0;
+    /** JpegEncoder: blue-difference chroma samples */
+    public static final int JPEG_CB = 1;
+    /** JpegEncoder: red-difference chroma samples */
+    public static final int JPEG_CR = 2;
+
+    private static final int NUM_FLOAT_SLOTS = 3;
+
+    // Slots for double arrays
+
+    /** GeoreferencedImage, GridReprojection: coordinates being projected */
+    public static final int COORDINATES = 0;
+
+    private static final int NUM_DOUBLE_SLOTS = 1;
+
+    private static final ThreadLocal<RenderContext> CONTEXTS = new ThreadLocal<RenderContext>() {
+        @Override protected RenderContext initialValue() {
+            return new RenderContext();
+        }
+    };
+
+    /** The pixels of the image being rendered */
+    private int[] imagePixels;
+    private final int[][] ints = new int[NUM_INT_SLOTS][];
+    private final byte[][] bytes = new byte[NUM_BYTE_SLOTS][];
+    private final float[][] floats = new float[NUM_FLOAT_SLOTS][];
+    private final double[][] doubles = new double[NUM_DOUBLE_SLOTS][];
+    private Deflater deflater;
+    private Deflater rawDeflater;
+    private Inflater inflater;
+    private Inflater rawInflater;
+    private ByteArrayOutputStream outputBuffer;
+
+    private RenderContext() {}
+
+    /** Gets the context for the current thread */
+    public static RenderContext get() {
+        return CONTEXTS.get();
+    }
+
+    /**
+     * Gets an array for the pixels of an image that is being rendered.  Unlike
+     * the scratch arrays this has exactly the requested length, so that it
+     * can back an {@link ArrayBackedImage}: it is reused as long as requests
+     * are for images of the same size.  The image must not be used after the
+     * next call to this method on the same thread.
+     */
+    public int[] getImagePixels(int length) {
+        int[] pixels = this.imagePixels;
+        if (pixels == null || pixels.length != length) {
+            pixels = new int[length];
+            if (length <= MAX_RETAINED) this.imagePixels = pixels;
+        }
+        return pixels;
+    }
+
+    /**
+     * Gets the int array in the given slot, with at least the given length.
+     */
+    public int[] getInts(int slot, int minLength) {
+        int[] array = this.ints[slot];
+        if (array == null || array.length < minLength) {
+            array = new int[minLength];
+            if (minLength <= MAX_RETAINED) this.ints[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Gets the byte array in the given slot, with at least the given length.
+     */
+    public byte[] getBytes(int slot, int minLength) {
+        byte[] array = this.bytes[slot];
+        if (array == null || array.length < minLength) {
+            array = new byte[minLength];
+            if (minLength <= MAX_RETAINED) this.bytes[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Gets the float array in the given slot, with at least the given length.
+     */
+    public float[] getFloats(int slot, int minLength) {
+        float[] array = this.floats[slot];
+        if (array == null || array.length < minLength) {
+            array = new float[minLength];
+            if (minLength <= MAX_RETAINED) this.floats[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Gets the double array in the given slot, with at least the given length.
+     */
+    public double[] getDoubles(int slot, int minLength) {
+        double[] array = this.doubles[slot];
+        if (array == null || array.length < minLength) {
+            array = new double[minLength];
+            if (minLength <= MAX_RETAINED) this.doubles[slot] = array;
+        }
+        return array;
+    }
+
+    /**
+     * Gets a Deflater that has been reset and set to the given level.  It
+     * must not be end()-ed: it belongs to this context.
+     * @param nowrap true for raw deflate data, false for zlib format
+     */
+    public Deflater getDeflater(int level, boolean nowrap) {
+        Deflater d = nowrap ? this.rawDeflater : this.deflater;
+        if (d == null) {
+            d = new Deflater(level, nowrap);
+            if (nowrap) this.rawDeflater = d;
+            else this.deflater = d;
+        } else {
+            d.reset();
+            d.setLevel(level);
+        }
+        return d;
+    }
+
+    /**
+     * Gets an Inflater that has been reset.  It must not be end()-ed: it
+     * belongs to this context.
+     * @param nowrap true for raw deflate data, false for zlib format
+     */
+    public Inflater getInflater(boolean nowrap) {
+        Inflater inf = nowrap ? this.rawInflater : this.inflater;
+        if (inf == null) {
+            inf = new Inflater(nowrap);
+            if (nowrap) this.rawInflater = inf;
+            else this.inflater = inf;
+        } else {
+            inf.reset();
+        }
+        return inf;
+    }
+
+    /**
+     * Gets an empty stream for collecting an encoded image.  Its buffer
+     * grows to fit the largest image written on this thread.
+     */
+    public ByteArrayOutputStream getOutputBuffer() {
+        if (this.outputBuffer == null || this.outputBuffer.size() > MAX_RETAINED) {
+            this.outputBuffer = new ByteArrayOutputStream(16384);
+        } else {
+            this.outputBuffer.reset();
+        }
+        return this.outputBuffer;
+    }
+
+}
@@ -0,0 +1,384 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * <p>Encodes and decodes the pixels of a tile, as held in tile files and in
+ * the persistent store.  An encoded tile has a short header followed by the
+ * samples, compressed with zlib:</p>
+ * <pre>
+ * magic "BMT" and version (4 bytes)
+ * encoding (1 byte): {@value #ARGB}, {@value #RGB} or {@value #PALETTE}
+ * width, height (2 bytes each, unsigned)
+ * number of palette entries (2 bytes, 0 unless the encoding is PALETTE)
+ * palette entries (4 bytes each, argb)
+ * zlib data
+ * </pre>
+ * <p>Tiles in which every pixel is opaque are stored as three bytes per
+ * pixel, and tiles with no more than 256 colours as one palette index per
+ * pixel.  Samples are stored row by row.  The bytes of each row of ARGB and
+ * RGB tiles are stored as the difference from the same byte of the previous
+ * pixel (as in PNG's "Sub" filter), which makes photographic images compress
+ * much better.</p>
+ * <p>Tiles used to be stored as raw big-endian ARGB ints, and these are
+ * still read: a tile is taken to be raw if it doesn't start with the magic
+ * number and has exactly four bytes per pixel.</p>
+ * @author Jon
+ */
+public final class TileCodec {
+
+    private static final byte[] MAGIC = { 'B', 'M', 'T', 1 };
+
+    /** Four bytes per pixel: alpha, red, green, blue */
+    public static final int ARGB = 0;
+    /** Three bytes per pixel (red, green, blue): all pixels are opaque */
+    public static final int RGB = 1;
+    /** One byte per pixel, indexing a palette of up to 256 colours */
+    public static final int PALETTE = 2;
+
+    private static final int HEADER_LENGTH = MAGIC.length + 1 + 2 + 2 + 2;
+
+    private static final int MAX_PALETTE_SIZE = 256;
+
+    /** The amount of a mapped tile that is passed to the inflater at a time */
+    private static final int INPUT_WINDOW = 16 * 1024;
+
+    private TileCodec() { throw new AssertionError(); }
+
+    /**
+     * Encodes the given pixels, compressing them as fast as possible.  (The
+     * level makes little difference to the speed of decoding.)
+     * @param pixels argb pixels, row by row from the top left
+     */
+    public static byte[] encode(int[] pixels, int width, int height) {
+        return encode(pixels, width, height, Deflater.BEST_SPEED);
+    }
+
+    /**
+     * Encodes the given pixels, compressing them with the given zlib level.
+     * @param pixels argb pixels, row by row from the top left
+     */
+    public static byte[] encode(int[] pixels, int width, int height, int level) {
+        if (width < 0 || width > 0xffff || height < 0 || height > 0xffff) {
+            throw new IllegalArgumentException("Tile size out of range");
+        }
+        if (pixels.length < width * height) {
+            throw new IllegalArgumentException("Not enough pixels for tile size");
+        }
+        int numPixels = width * height;
+        int[] palette = findPalette(pixels, numPixels);
+        int encoding;
+        byte[] samples;
+        if (palette != null) {
+            encoding = PALETTE;
+            samples = toIndices(pixels, numPixels, palette);
+        } else {
+            encoding = isOpaque(pixels, numPixels) ? RGB : ARGB;
+            samples = toFilteredSamples(pixels, width, height, encoding == RGB ? 3 : 4);
+        }
+
+        ByteArrayOutputStream out = new ByteArrayOutputStream(samples.length / 2);
+        out.write(MAGIC, 0, MAGIC.length);
+        out.write(encoding);
+        writeShort(out, width);
+        writeShort(out, height);
+        writeShort(out, palette == null ? 0 : palette.length);
+        if (palette != null) {
+            for (int colour : palette) {
+                writeShort(out, colour >>> 16);
+                writeShort(out, colour);
+            }
+        }
+
+        Deflater deflater = RenderContext.get().getDeflater(level, false);
+        deflater.setInput(samples);
+        deflater.finish();
+        byte[] buf = new byte[16384];
+        while (!deflater.finished()) {
+            int n = deflater.deflate(buf);
+            out.write(buf, 0, n);
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * Decodes a tile of the given size.
+     * @param data The encoded tile (or a raw tile in the old format)
+     * @return argb pixels, row by row from the top left
+     * @throws IOException if the data are not a valid tile of this size
+     */
+    public static int[] decode(byte[] data, int width, int height) throws IOException {
+        return decode(data, 0, data.length, width, height);
+    }
+
+    /**
+     * Decodes a tile of the given size from part of an array.
+     * @param data The array holding the encoded tile (or a raw tile in the
+     * old format)
+     * @param offset The position of the tile in the array
+     * @param length The length of the tile in bytes
+     * @return argb pixels, row by row from the top left
+     * @throws IOException if the data are not a valid tile of this size
+     */
+    public static int[] decode(byte[] data, int offset, int length, int width, int height)
+            throws IOException {
+        return decode(ByteBuffer.wrap(data, offset, length).slice(), width, height);
+    }
+
+    /**
+     * Decodes a tile of the given size from a buffer, such as a mapping of a
+     * tile file.  The tile runs from the start of the buffer to its limit;
+     * the position of the buffer is ignored and not changed, so a buffer can
+     * be shared between threads.  If the buffer is not backed by an array,
+     * the compressed data are passed to the inflater a small window at a
+     * time, so the tile is never copied as a whole.
+     * @param buf The encoded tile (or a raw tile in the old format)
+     * @return argb pixels, row by row from the top left
+     * @throws IOException if the data are not a valid tile of this size
+     */
+    public static int[] decode(ByteBuffer buf, int width, int height) throws IOException {
+        int length = buf.limit();
+        int numPixels = width * height;
+        if (!hasMagic(buf)) {
+            if (length != numPixels * 4) {
+                throw new IOException("Not a tile of size " + width + "x" + height);
+            }
+            int[] pixels = new int[numPixels];
+            ByteBuffer view = buf.duplicate();
+            view.clear();
+            view.order(ByteOrder.BIG_ENDIAN).asIntBuffer().get(pixels);
+            return pixels;
+        }
+
+        int pos = MAGIC.length;
+        int encoding = buf.get(pos++);
+        int tileWidth = readShort(buf, pos);
+        int tileHeight = readShort(buf, pos + 2);
+        int paletteSize = readShort(buf, pos + 4);
+        pos += 6;
+        if (tileWidth != width || tileHeight != height) {
+            throw new IOException("Tile is " + tileWidth + "x" + tileHeight +
+                    ", expected " + width + "x" + height);
+        }
+        int bytesPerPixel;
+        if (encoding == ARGB) bytesPerPixel = 4;
+        else if (encoding == RGB) bytesPerPixel = 3;
+        else if (encoding == PALETTE) bytesPerPixel = 1;
+        else throw new IOException("Unknown tile encoding " + encoding);
+        if ((encoding == PALETTE) != (paletteSize > 0) || paletteSize > MAX_PALETTE_SIZE ||
+                pos + paletteSize * 4 > length) {
+            throw new IOException("Invalid palette in tile");
+        }
+        int[] palette = new int[paletteSize];
+        for (int p = 0; p < paletteSize; p++) {
+            palette[p] = (readShort(buf, pos) << 16) | readShort(buf, pos + 2);
+            pos += 4;
+        }
+
+        RenderContext context = RenderContext.get();
+        int numBytes = numPixels * bytesPerPixel;
+        byte[] samples = context.getBytes(RenderContext.TILE_SAMPLES, numBytes);
+        inflate(context, buf, pos, length - pos, samples, numBytes);
+
+        int[] pixels = new int[numPixels];
+        if (encoding == PALETTE) {
+            for (int n = 0; n < numPixels; n++) {
+                int index = samples[n] & 0xff;
+                if (index >= paletteSize) throw new IOException("Invalid palette index in tile");
+                pixels[n] = palette[index];
+            }
+        } else {
+            unfilter(samples, width, height, bytesPerPixel);
+            int s = 0;
+            for (int n = 0; n < numPixels; n++) {
+                int alpha = 0xff;
+                if (bytesPerPixel == 4) alpha = samples[s++] & 0xff;
+                pixels[n] = alpha << 24 | (samples[s] & 0xff) << 16
+                        | (samples[s + 1] & 0xff) << 8 | (samples[s + 2] & 0xff);
+                s += 3;
+            }
+        }
+        return pixels;
+    }
+
+    /**
+     * Returns true if the given data begin with the magic number of an
+     * encoded tile.
+     */
+    public static boolean hasMagic(byte[] data, int offset, int length) {
+        if (length < HEADER_LENGTH) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (data[offset + i] != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Returns true if the given buffer begins with the magic number of an
+     * encoded tile.  The position of the buffer is ignored and not changed.
+     */
+    public static boolean hasMagic(ByteBuffer buf) {
+        if (buf.limit() < HEADER_LENGTH) return false;
+        for (int i = 0; i < MAGIC.length; i++) {
+            if (buf.get(i) != MAGIC[i]) return false;
+        }
+        return true;
+    }
+
+    /**
+     * Inflates length bytes of the buffer, starting at the given position,
+     * into exactly numBytes samples.
+     */
+    private static void inflate(RenderContext context, ByteBuffer buf, int pos, int length,
+            byte[] samples, int numBytes) throws IOException {
+        Inflater inflater = context.getInflater(false);
+        // The data that haven't yet been passed to the inflater
+        ByteBuffer input = null;
+        byte[] window = null;
+        if (buf.hasArray()) {
+            inflater.setInput(buf.array(), buf.arrayOffset() + pos, length);
+        } else {
+            input = buf.duplicate();
+            input.limit(pos + length);
+            input.position(pos);
+            window = context.getBytes(RenderContext.TILE_INPUT, Math.min(length, INPUT_WINDOW));
+        }
+        int out = 0;
+        try {
+            while (true) {
+                if (input != null && input.hasRemaining() && inflater.needsInput()) {
+                    int n = Math.min(input.remaining(), window.length);
+                    input.get(window, 0, n);
+                    inflater.setInput(window, 0, n);
+                }
+                boolean moreInput = input != null && input.hasRemaining();
+                if (out == numBytes) {
+                    // Check that the stream ends where we expect it to
+                    if (inflater.finished()) break;
+                    byte[] extra = new byte[1];
+                    if (inflater.inflate(extra) > 0) {
+                        out = -1;
+                        break;
+                    }
+                    if (inflater.finished()) break;
+                    if (!(inflater.needsInput() && moreInput)) {
+                        out = -1;
+                        break;
+                    }
+                    continue;
+                }
+                int n = inflater.inflate(samples, out, numBytes - out);
+                if (n == 0 && (inflater.finished() || inflater.needsDictionary() ||
+                        (inflater.needsInput() && !moreInput))) {
+                    break;
+                }
+                out += n;
+            }
+        } catch (DataFormatException dfe) {
+            throw new IOException("Corrupt tile data: " + dfe.getMessage());
+        }
+        if (out != numBytes) {
+            throw new IOException("Tile data is not the expected length");
+        }
+    }
+
+    /**
+     * Finds the colours in the given pixels, returning null if there are
+     * more than {@value #MAX_PALETTE_SIZE} (or none).
+     */
+    private static int[] findPalette(int[] pixels, int numPixels) {
+        if (numPixels == 0) return null;
+        Map<Integer, Integer> colours = new HashMap<Integer, Integer>();
+        int[] palette = new int[MAX_PALETTE_SIZE];
+        int lastColour = 0;
+        for (int n = 0; n < numPixels; n++) {
+            // Neighbouring pixels are often the same
+            if (n > 0 && pixels[n] == lastColour) continue;
+            lastColour = pixels[n];
+            if (!colours.containsKey(lastColour)) {
+                if (colours.size() == MAX_PALETTE_SIZE) return null;
+                palette[colours.size()] = lastColour;
+                colours.put(lastColour, colours.size());
+            }
+        }
+        int[] result = new int[colours.size()];
+        System.arraycopy(palette, 0, result, 0, result.length);
+        return result;
+    }
+
+    private static byte[] toIndices(int[] pixels, int numPixels, int[] palette) {
+        Map<Integer, Integer> indices = new HashMap<Integer, Integer>(palette.length * 2);
+        for (int p = 0; p < palette.length; p++) {
+            indices.put(palette[p], p);
+        }
+        byte[] samples = new byte[numPixels];
+        for (int n = 0; n < numPixels; n++) {
+            samples[n] = (byte) indices.get(pixels[n]).intValue();
+        }
+        return samples;
+    }
+
+    private static boolean isOpaque(int[] pixels, int numPixels) {
+        for (int n = 0; n < numPixels; n++) {
+            if ((pixels[n] >>> 24) != 0xff) return false;
+        }
+        return true;
+    }
+
+    /** Packs the pixels into bytes and applies the Sub filter to each row */
+    private static byte[] toFilteredSamples(int[] pixels, int width, int height, int bytesPerPixel) {
+        byte[] samples = new byte[width * height * bytesPerPixel];
+        int s = 0;
+        for (int n = 0; n < width * height; n++) {
+            int pixel = pixels[n];
+            if (bytesPerPixel == 4) samples[s++] = (byte) (pixel >>> 24);
+            samples[s++] = (byte) (pixel >> 16);
+            samples[s++] = (byte) (pixel >> 8);
+            samples[s++] = (byte) pixel;
+        }
+        int rowBytes = width * bytesPerPixel;
+        for (int j = 0; j < height; j++) {
+            int rowStart = j * rowBytes;
+            // Work backwards so that we subtract the unfiltered values
+            for (int s2 = rowStart + rowBytes - 1; s2 >= rowStart + bytesPerPixel; s2--) {
+                samples[s2] -= samples[s2 - bytesPerPixel];
+            }
+        }
+        return samples;
+    }
+
+    /** Reverses the Sub filter in place */
+    private static void unfilter(byte[] samples, int width, int height, int bytesPerPixel) {
+        int rowBytes = width * bytesPerPixel;
+        for (int j = 0; j < height; j++) {
+            int rowStart = j * rowBytes;
+            int rowEnd = rowStart + rowBytes;
+            for (int s = rowStart + bytesPerPixel; s < rowEnd; s++) {
+                samples[s] += samples[s - bytesPerPixel];
+            }
+        }
+    }
+
+    private static void writeShort(ByteArrayOutputStream out, int value) {
+        out.write(value >>> 8);
+        out.write(value);
+    }
+
+    private static int readShort(ByteBuffer buf, int pos) {
+        return (buf.get(pos) & 0xff) << 8 | (buf.get(pos + 1) & 0xff);
+    }
+
+}
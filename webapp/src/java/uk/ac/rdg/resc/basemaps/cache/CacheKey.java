@@ -5,57 +5,171 @@
 
 package uk.ac.rdg.resc.basemaps.cache;
 
+import java.io.IOException;
+import java.io.InvalidObjectException;
+import java.io.ObjectInputStream;
 import java.io.Serializable;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
 import java.util.Arrays;
 
 /**
- * Key for the cache of images
+ * <p>Key for the cache of images.  The key is held as a compact byte array
+ * with a fixed layout, which is all that is serialized:</p>
+ * <pre>
+ * version (1 byte)
+ * width, height (2 bytes each, unsigned)
+ * step exponent (2 bytes)
+ * minX, minY, maxX, maxY (8 bytes each)
+ * layer, mime type, CRS code, layer version (1-byte length then UTF-8 bytes, each)
+ * </pre>
+ * <p>The layer version changes whenever the images generated from the layer
+ * might change (e.g. if its data or encoding settings change), so that
+ * images cached under an older version are no longer found.</p>
+ * <p>Clients often send bounding boxes that differ in the last few digits
+ * (e.g. -180.00000001 instead of -180), which would otherwise be cached
+ * separately.  So we snap each corner of the bounding box to a grid whose
+ * step is the largest power of two that is no more than
+ * 1/{@value #STEP_DIVISIONS} of a pixel, and store the corners as whole
+ * numbers of steps.  Images whose bounding boxes snap to the same grid
+ * points differ by much less than a pixel, so can share a cache entry.  If
+ * the pixel size can't be calculated the coordinates are stored exactly.</p>
  * @author Jon
  */
 public final class CacheKey implements Serializable {
 
-    private final int width;
-    private final int height;
-    private final double[] bbox;
-    private final String layer;
-    private final String mimeType;
-    private final String crsCode;
+    private static final long serialVersionUID = 2L;
 
-    public CacheKey(String layer, String mimeType, String crsCode, double[] bbox, int width, int height) {
-        this.layer = layer;
-        this.mimeType = mimeType;
+    private static final byte VERSION = 2;
+
+    /** The grid step is no more than this fraction of a pixel */
+    private static final int STEP_DIVISIONS = 16;
+
+    /** Step exponent which signifies that the coordinates are not snapped */
+    private static final short EXACT = Short.MIN_VALUE;
+
+    private static final int HEADER_LENGTH = 1 + 2 + 2 + 2 + 4 * 8;
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final byte[] bytes;
+
+    /** 64-bit hash of the bytes, calculated on construction and deserialization */
+    private transient long hash64;
+
+    public CacheKey(String layer, String layerVersion, String mimeType, String crsCode,
+            double[] bbox, int width, int height) {
+        if (bbox.length != 4) {
+            throw new IllegalArgumentException("Malformed bounding box");
+        }
+        if (width < 0 || width > 0xffff || height < 0 || height > 0xffff) {
+            throw new IllegalArgumentException("Image size out of range");
+        }
         if (crsCode.equals("EPSG:4326")) {
-            this.crsCode = "CRS:84";
+            crsCode = "CRS:84";
+        } else if (crsCode.equals("EPSG:900913")) {
+            crsCode = "EPSG:3857";
+        }
+        byte[] layerBytes = toBytes(layer);
+        byte[] mimeTypeBytes = toBytes(mimeType);
+        byte[] crsBytes = toBytes(crsCode);
+        byte[] layerVersionBytes = toBytes(layerVersion);
+        ByteBuffer buf = ByteBuffer.allocate(HEADER_LENGTH + 4 + layerBytes.length +
+                mimeTypeBytes.length + crsBytes.length + layerVersionBytes.length);
+        buf.put(VERSION);
+        buf.putShort((short) width);
+        buf.putShort((short) height);
+
+        double pixelSize = Math.min((bbox[2] - bbox[0]) / width, (bbox[3] - bbox[1]) / height);
+        if (pixelSize > 0.0 && !Double.isInfinite(pixelSize)) {
+            int exponent = Math.getExponent(pixelSize / STEP_DIVISIONS);
+            double step = Math.scalb(1.0, exponent);
+            buf.putShort((short) exponent);
+            for (double coord : bbox) {
+                buf.putLong(Math.round(coord / step));
+            }
         } else {
-            this.crsCode = crsCode;
+            buf.putShort(EXACT);
+            for (double coord : bbox) {
+                buf.putLong(Double.doubleToLongBits(coord));
+            }
+        }
+
+        putString(buf, layerBytes);
+        putString(buf, mimeTypeBytes);
+        putString(buf, crsBytes);
+        putString(buf, layerVersionBytes);
+        this.bytes = buf.array();
+        this.hash64 = hash(this.bytes);
+    }
+
+    private static byte[] toBytes(String s) {
+        byte[] b = s.getBytes(UTF8);
+        if (b.length > 0xff) {
+            throw new IllegalArgumentException("String too long for cache key: " + s);
         }
-        this.bbox = bbox;
-        this.width = width;
-        this.height = height;
+        return b;
+    }
+
+    private static void putString(ByteBuffer buf, byte[] b) {
+        buf.put((byte) b.length);
+        buf.put(b);
+    }
+
+    /** 64-bit FNV-1a hash */
+    private static long hash(byte[] bytes) {
+        long h = 0xcbf29ce484222325L;
+        for (byte b : bytes) {
+            h ^= b & 0xff;
+            h *= 0x100000001b3L;
+        }
+        return h;
+    }
+
+    /**
+     * Returns a 64-bit hash of this key, which is the same on all servers
+     * and is suitable for identifying the image (e.g. in an HTTP ETag).
+     */
+    public long getHash64() {
+        return this.hash64;
+    }
+
+    /** Returns the number of bytes in the compact form of this key */
+    public int getLength() {
+        return this.bytes.length;
+    }
+
+    /** Copies the compact form of this key to the start of the given array */
+    void copyTo(byte[] dest) {
+        System.arraycopy(this.bytes, 0, dest, 0, this.bytes.length);
+    }
+
+    /** Returns true if the given array starts with the compact form of this key */
+    boolean isPrefixOf(byte[] data) {
+        if (data.length < this.bytes.length) return false;
+        for (int i = 0; i < this.bytes.length; i++) {
+            if (data[i] != this.bytes[i]) return false;
+        }
+        return true;
+    }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException {
+        in.defaultReadObject();
+        if (this.bytes == null || this.bytes.length < HEADER_LENGTH + 4 || this.bytes[0] != VERSION) {
+            throw new InvalidObjectException("Malformed cache key");
+        }
+        this.hash64 = hash(this.bytes);
     }
 
     @Override public int hashCode() {
-        int result = 17;
-        result = 31 * result + this.width;
-        result = 31 * result + this.height;
-        result = 31 * result + Arrays.hashCode(this.bbox);
-        result = 31 * result + this.layer.hashCode();
-        result = 31 * result + this.mimeType.hashCode();
-        result = 31 * result + this.crsCode.hashCode();
-        return result;
+        return (int) (this.hash64 ^ (this.hash64 >>> 32));
     }
 
     @Override public boolean equals(Object obj) {
         if (obj == this) return true;
         if (!(obj instanceof CacheKey)) return false;
         CacheKey other = (CacheKey)obj;
-
-        return this.width == other.width &&
-               this.height == other.height &&
-               Arrays.equals(this.bbox, other.bbox) &&
-               this.layer.equals(other.layer) &&
-               this.mimeType.equals(other.mimeType) &&
-               this.crsCode.equals(other.crsCode);
+        return this.hash64 == other.hash64 && Arrays.equals(this.bytes, other.bytes);
     }
 
 }
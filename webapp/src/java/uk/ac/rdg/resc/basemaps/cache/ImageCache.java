@@ -5,7 +5,9 @@
 
 package uk.ac.rdg.resc.basemaps.cache;
 
+import java.util.Arrays;
 import java.util.Collections;
+import java.util.concurrent.atomic.AtomicLong;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 import javax.cache.Cache;
@@ -15,18 +17,69 @@ import javax.cache.CacheManager;
 import javax.cache.CacheStatistics;
 
 /**
- * A cache of byte arrays representing images.
+ * <p>A cache of byte arrays representing images, in two tiers.  The first
+ * tier is a small in-JVM {@link LruCache}, which holds the most popular
+ * images (e.g. the world overview tiles that every client requests) so
+ * that we don't need to go to memcache for them.  Its size is set by the
+ * system property {@value #LOCAL_MAX_BYTES_PROPERTY} (in bytes, default
+ * {@value #DEFAULT_LOCAL_MAX_BYTES}).  The second tier is memcache, which is
+ * shared between all instances.  Images are written to both tiers, and
+ * images found in memcache are copied to the local tier.  The arrays that
+ * are returned may be shared, so must not be modified.</p>
+ * <p>Images are stored in memcache under the 64-bit hash of their
+ * {@link CacheKey}, which memcache stores much more compactly than the key
+ * object itself.  In case two keys have the same hash, each value starts
+ * with the compact form of its key, which is checked when the image is
+ * read.</p>
+ * <p>The local tier belongs to one instance, so {@link #clear()} also
+ * stores a new cache generation in memcache.  Each instance reads the
+ * generation at most every {@value #GENERATION_CHECK_MILLIS_PROPERTY}
+ * milliseconds (default {@value #DEFAULT_GENERATION_CHECK_MILLIS}), and
+ * empties its local tier if the generation has changed, so the cache is
+ * cleared on every instance within that time.</p>
  * @author Jon
  */
 public class ImageCache {
 
     private static final Logger log = Logger.getLogger(ImageCache.class.getName());
 
+    /** System property that sets the size of the local tier in bytes */
+    public static final String LOCAL_MAX_BYTES_PROPERTY = "basemaps.imageCache.localMaxBytes";
+
+    /** Default size of the local tier in bytes */
+    public static final long DEFAULT_LOCAL_MAX_BYTES = 8L * 1024 * 1024;
+
+    /** System property that sets how often the cache generation is checked,
+     * in milliseconds */
+    public static final String GENERATION_CHECK_MILLIS_PROPERTY =
+            "basemaps.imageCache.generationCheckMillis";
+
+    /** Default interval between checks of the cache generation */
+    public static final long DEFAULT_GENERATION_CHECK_MILLIS = 10000;
+
+    /** Key of the cache generation in memcache (images are keyed by Longs) */
+    private static final String GENERATION_KEY = "basemaps.imageCache.generation";
+
     /** Singleton instance */
     public static final ImageCache INSTANCE;
 
+    private final LocalCache localCache;
+
     private final Cache cache;
 
+    private final long generationCheckMillis;
+
+    /** The cache generation that the local tier belongs to, or null if we
+     * haven't read it yet */
+    private volatile Object generation = null;
+
+    /** The time at which we next read the cache generation */
+    private volatile long nextGenerationCheck = 0;
+
+    /** Lookups in memcache made by this instance */
+    private final AtomicLong memcacheHits = new AtomicLong();
+    private final AtomicLong memcacheMisses = new AtomicLong();
+
     static {
         try {
             INSTANCE = new ImageCache();
@@ -38,17 +91,56 @@ public class ImageCache {
     private ImageCache() throws CacheException {
         CacheFactory cacheFactory = CacheManager.getInstance().getCacheFactory();
         this.cache = cacheFactory.createCache(Collections.emptyMap());
+        long localMaxBytes = Long.getLong(LOCAL_MAX_BYTES_PROPERTY, DEFAULT_LOCAL_MAX_BYTES);
+        this.localCache = new LocalCache(localMaxBytes);
+        this.generationCheckMillis = Long.getLong(GENERATION_CHECK_MILLIS_PROPERTY,
+                DEFAULT_GENERATION_CHECK_MILLIS);
+        log.info("Created local image cache of " + localMaxBytes + " bytes");
+    }
+
+    /** The local tier.  Each value is an encoded image. */
+    private static final class LocalCache extends LruCache<CacheKey, byte[]> {
+        public LocalCache(long maxBytes) {
+            super(maxBytes);
+        }
+
+        /** We count the key too, as the images can be small */
+        @Override
+        protected long sizeOf(byte[] image) {
+            return image.length + 128;
+        }
     }
 
     /** Returns an image from the cache, or null if there is no image matching
      *  the given key. */
     public byte[] getImage(CacheKey cacheKey) {
-        return (byte[])this.cache.get(cacheKey);
+        this.checkGeneration();
+        byte[] image = this.localCache.get(cacheKey);
+        if (image != null) return image;
+
+        byte[] value = (byte[])this.cache.get(cacheKey.getHash64());
+        if (value == null || !cacheKey.isPrefixOf(value)) {
+            if (value != null) log.fine("Hash collision in image cache");
+            this.memcacheMisses.incrementAndGet();
+            return null;
+        }
+        this.memcacheHits.incrementAndGet();
+        image = Arrays.copyOfRange(value, cacheKey.getLength(), value.length);
+        this.localCache.put(cacheKey, image);
+        return image;
     }
 
+    /**
+     * Puts the image in both tiers of the cache.  The array must not be
+     * modified afterwards.
+     */
     public void putImage(CacheKey cacheKey, byte[] image) {
+        this.localCache.put(cacheKey, image);
+        byte[] value = new byte[cacheKey.getLength() + image.length];
+        cacheKey.copyTo(value);
+        System.arraycopy(image, 0, value, cacheKey.getLength(), image.length);
         try {
-            this.cache.put(cacheKey, image);
+            this.cache.put(cacheKey.getHash64(), value);
         } catch (Exception e) {
             // During stress testing, we often see errors in the put request:
             // http://groups.google.co.uk/group/google-appengine-java/browse_thread/thread/7491cb06d6708150?hl=en
@@ -57,13 +149,69 @@ public class ImageCache {
         }
     }
 
+    /** Gets the statistics of memcache, which cover all instances */
     public CacheStatistics getCacheStatistics() {
         return this.cache.getCacheStatistics();
     }
 
-    /** Removes all entries from the cache */
+    /** Gets the local tier, for its statistics */
+    public LruCache<CacheKey, byte[]> getLocalCache() {
+        return this.localCache;
+    }
+
+    /** Gets the number of lookups by this instance that were found in memcache */
+    public long getMemcacheHits() { return this.memcacheHits.get(); }
+
+    /** Gets the number of lookups by this instance that were not found in memcache */
+    public long getMemcacheMisses() { return this.memcacheMisses.get(); }
+
+    /**
+     * Removes all entries from both tiers of the cache.  The local tiers of
+     * other instances are emptied when they next check the cache generation.
+     */
+    @SuppressWarnings("unchecked")
     public void clear() {
+        this.localCache.clear();
         this.cache.clear();
+        // If this fails, the other instances still see that the generation
+        // has gone when they next check
+        Long newGeneration = System.currentTimeMillis();
+        try {
+            this.cache.put(GENERATION_KEY, newGeneration);
+            this.generation = newGeneration;
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Error putting the cache generation in memcache", e);
+        }
+    }
+
+    /**
+     * Empties the local tier if the cache has been cleared by another
+     * instance since we last looked.  Memcache is read at most every
+     * {@link #generationCheckMillis}.
+     */
+    @SuppressWarnings("unchecked")
+    private void checkGeneration() {
+        long now = System.currentTimeMillis();
+        if (now < this.nextGenerationCheck) return;
+        this.nextGenerationCheck = now + this.generationCheckMillis;
+        try {
+            Object current = this.cache.get(GENERATION_KEY);
+            if (current == null) {
+                // Memcache has been flushed, or has evicted the generation,
+                // so we can't tell whether our local tier is still valid
+                current = now;
+                this.cache.put(GENERATION_KEY, current);
+            }
+            if (!current.equals(this.generation)) {
+                if (this.generation != null) {
+                    log.info("Image cache has been cleared: emptying the local tier");
+                    this.localCache.clear();
+                }
+                this.generation = current;
+            }
+        } catch (Exception e) {
+            log.log(Level.WARNING, "Error reading the cache generation from memcache", e);
+        }
     }
 
 }
@@ -0,0 +1,118 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps.cache;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * <p>A bounded in-memory cache that evicts the least-recently-used entries
+ * once the total size of its values exceeds a budget in bytes.  Subclasses
+ * say how big each value is by implementing {@link #sizeOf(java.lang.Object)}.</p>
+ * <p>This class is thread-safe.  All accesses to the map are made under a
+ * single lock, which is only held for the duration of a hash lookup, so
+ * contention is low compared with the cost of loading a value.</p>
+ * @author Jon
+ */
+public abstract class LruCache<K, V> {
+
+    private final long maxBytes;
+
+    /** The sum of the sizes of all values in the map (guarded by this.map) */
+    private long currentBytes = 0;
+
+    /** Map in access order, so the first entry is the least recently used */
+    private final LinkedHashMap<K, V> map = new LinkedHashMap<K, V>(16, 0.75f, true);
+
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    /**
+     * @param maxBytes The maximum total size of the values in the cache
+     * @throws IllegalArgumentException if maxBytes is negative
+     */
+    protected LruCache(long maxBytes) {
+        if (maxBytes < 0) throw new IllegalArgumentException("maxBytes must not be negative");
+        this.maxBytes = maxBytes;
+    }
+
+    /** Returns the size in bytes of the given value */
+    protected abstract long sizeOf(V value);
+
+    /** Returns the value associated with the given key, or null if there is
+     * no such value in the cache. */
+    public V get(K key) {
+        V value;
+        synchronized(this.map) {
+            value = this.map.get(key);
+        }
+        if (value == null) this.misses.incrementAndGet();
+        else this.hits.incrementAndGet();
+        return value;
+    }
+
+    /**
+     * Adds the given value to the cache, evicting the least-recently-used
+     * values if necessary to keep within the budget.  Values that are larger
+     * than the whole budget are not cached.
+     */
+    public void put(K key, V value) {
+        if (key == null || value == null) throw new NullPointerException();
+        long size = this.sizeOf(value);
+        if (size > this.maxBytes) return;
+        synchronized(this.map) {
+            V old = this.map.put(key, value);
+            if (old != null) this.currentBytes -= this.sizeOf(old);
+            this.currentBytes += size;
+            Iterator<Map.Entry<K, V>> it = this.map.entrySet().iterator();
+            while (this.currentBytes > this.maxBytes && it.hasNext()) {
+                Map.Entry<K, V> eldest = it.next();
+                if (eldest.getKey().equals(key)) continue;
+                this.currentBytes -= this.sizeOf(eldest.getValue());
+                it.remove();
+                this.evictions.incrementAndGet();
+            }
+        }
+    }
+
+    /** Removes all entries from the cache.  Does not reset the statistics. */
+    public void clear() {
+        synchronized(this.map) {
+            this.map.clear();
+            this.currentBytes = 0;
+        }
+    }
+
+    /** Gets the number of calls to get() that found a value */
+    public long getHits() { return this.hits.get(); }
+
+    /** Gets the number of calls to get() that did not find a value */
+    public long getMisses() { return this.misses.get(); }
+
+    /** Gets the number of values that have been evicted to stay within budget */
+    public long getEvictions() { return this.evictions.get(); }
+
+    /** Gets the number of values currently in the cache */
+    public int getObjectCount() {
+        synchronized(this.map) {
+            return this.map.size();
+        }
+    }
+
+    /** Gets the total size of the values currently in the cache */
+    public long getSizeBytes() {
+        synchronized(this.map) {
+            return this.currentBytes;
+        }
+    }
+
+    /** Gets the maximum total size of the values in the cache */
+    public long getMaxBytes() { return this.maxBytes; }
+
+}
@@ -0,0 +1,56 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps.cache;
+
+import java.util.logging.Logger;
+import uk.ac.rdg.resc.basemaps.CachingImageMosaic.SubImageKey;
+import uk.ac.rdg.resc.basemaps.FileBackedImageMosaic.ByteBufferBackedImage;
+import uk.ac.rdg.resc.basemaps.Image;
+
+/**
+ * An in-JVM cache of the sub-images of {@link uk.ac.rdg.resc.basemaps.ImageMosaic}s,
+ * so that adjacent map tiles that fall in the same sub-image do not have to
+ * load it again.  The size of the cache is set by the system property
+ * {@value #MAX_BYTES_PROPERTY} (in bytes, default {@value #DEFAULT_MAX_BYTES}).
+ * Images are charged for the heap that they use, so views of memory-mapped
+ * tile files cost very little.
+ * @author Jon
+ */
+public final class SubImageCache extends LruCache<SubImageKey, Image> {
+
+    private static final Logger log = Logger.getLogger(SubImageCache.class.getName());
+
+    /** System property that sets the size of the cache in bytes */
+    public static final String MAX_BYTES_PROPERTY = "basemaps.subImageCache.maxBytes";
+
+    /** Default size of the cache in bytes */
+    public static final long DEFAULT_MAX_BYTES = 32L * 1024 * 1024;
+
+    /** Singleton instance, shared between all mosaics */
+    public static final SubImageCache INSTANCE =
+            new SubImageCache(Long.getLong(MAX_BYTES_PROPERTY, DEFAULT_MAX_BYTES));
+
+    public SubImageCache(long maxBytes) {
+        super(maxBytes);
+        log.info("Created sub-image cache of " + maxBytes + " bytes");
+    }
+
+    /** The size we charge for an image object, apart from its pixels */
+    private static final long IMAGE_OVERHEAD_BYTES = 128;
+
+    /**
+     * Each pixel is an argb integer, except in images that are backed by a
+     * memory mapping, whose pixels are not on the heap.
+     */
+    @Override
+    protected long sizeOf(Image image) {
+        if (image instanceof ByteBufferBackedImage) {
+            return IMAGE_OVERHEAD_BYTES + ((ByteBufferBackedImage) image).getHeapBytes();
+        }
+        return 4L * image.getWidth() * image.getHeight();
+    }
+
+}
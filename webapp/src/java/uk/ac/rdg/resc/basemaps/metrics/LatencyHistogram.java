@@ -0,0 +1,124 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * <p>A histogram of latencies in nanoseconds that can be updated from many
+ * threads without locking.  Values are counted in logarithmic buckets, each
+ * power of two being split into {@value #SUB_BUCKETS} linear sub-buckets (in
+ * the style of HdrHistogram), so percentiles are accurate to within about
+ * 12%, whatever the magnitude of the values.</p>
+ * <p>Recording is a couple of atomic increments.  Reading percentiles while
+ * values are being recorded gives a result that is slightly out of date but
+ * never inconsistent enough to matter for monitoring.</p>
+ * @author Jon
+ */
+public final class LatencyHistogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    /** Enough buckets for any positive long */
+    private static final int NUM_BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray counts = new AtomicLongArray(NUM_BUCKETS);
+    private final AtomicLong count = new AtomicLong(0);
+    private final AtomicLong sum = new AtomicLong(0);
+    private final AtomicLong max = new AtomicLong(0);
+
+    /** Records a value in nanoseconds.  Negative values are counted as zero. */
+    public void record(long nanos) {
+        if (nanos < 0) nanos = 0;
+        this.counts.incrementAndGet(bucketIndex(nanos));
+        this.count.incrementAndGet();
+        this.sum.addAndGet(nanos);
+        long currentMax = this.max.get();
+        while (nanos > currentMax && !this.max.compareAndSet(currentMax, nanos)) {
+            currentMax = this.max.get();
+        }
+    }
+
+    /** Records the time elapsed since the given value of System.nanoTime() */
+    public void recordSince(long startNanos) {
+        this.record(System.nanoTime() - startNanos);
+    }
+
+    public long getCount() {
+        return this.count.get();
+    }
+
+    /** Gets the mean of the recorded values in nanoseconds, or 0 if there are none */
+    public double getMean() {
+        long n = this.count.get();
+        return n == 0 ? 0.0 : (double) this.sum.get() / n;
+    }
+
+    /** Gets the largest recorded value in nanoseconds */
+    public long getMax() {
+        return this.max.get();
+    }
+
+    /**
+     * Gets the value in nanoseconds below which the given fraction of the
+     * recorded values lie, or 0 if nothing has been recorded.
+     * @param fraction Between 0 and 1, e.g. 0.99 for the 99th percentile
+     */
+    public long getPercentile(double fraction) {
+        long[] snapshot = new long[NUM_BUCKETS];
+        long total = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            snapshot[i] = this.counts.get(i);
+            total += snapshot[i];
+        }
+        if (total == 0) return 0;
+        long rank = (long) Math.ceil(fraction * total);
+        rank = Math.max(1, Math.min(total, rank));
+        long cumulative = 0;
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            cumulative += snapshot[i];
+            if (cumulative >= rank) {
+                // Don't report more than the true maximum
+                return Math.min(bucketMidpoint(i), this.max.get());
+            }
+        }
+        return this.max.get();
+    }
+
+    /** Discards all recorded values */
+    public void reset() {
+        for (int i = 0; i < NUM_BUCKETS; i++) {
+            this.counts.set(i, 0);
+        }
+        this.count.set(0);
+        this.sum.set(0);
+        this.max.set(0);
+    }
+
+    /**
+     * Values below SUB_BUCKETS have a bucket each.  Above that, the bucket is
+     * given by the position of the highest set bit plus the next
+     * SUB_BUCKET_BITS bits.
+     */
+    private static int bucketIndex(long value) {
+        if (value < SUB_BUCKETS) return (int) value;
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int subBucket = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + subBucket;
+    }
+
+    /** Gets the value in the middle of the range covered by the given bucket */
+    private static long bucketMidpoint(int index) {
+        if (index < SUB_BUCKETS) return index;
+        int exponent = index / SUB_BUCKETS + SUB_BUCKET_BITS - 1;
+        int subBucket = index % SUB_BUCKETS;
+        long width = 1L << (exponent - SUB_BUCKET_BITS);
+        long lower = (SUB_BUCKETS + subBucket) * width;
+        return lower + width / 2;
+    }
+
+}
@@ -0,0 +1,66 @@
+/*
+ * To change this template, choose Tools | Templates
+ * and open the template in the editor.
+ */
+
+package uk.ac.rdg.resc.basemaps.metrics;
+
+/**
+ * The stages of a GetMap request, each with a histogram of the time spent in
+ * it since this server instance started.  The histograms are shared between
+ * all threads.
+ * @author Jon
+ */
+public enum Stage {
+
+    /** The whole GetMap request, unless it was answered with "304 Not Modified" */
+    GET_MAP("Whole GetMap request"),
+    /** A whole GetMap request that was answered with "304 Not Modified" */
+    NOT_MODIFIED("Not-modified response"),
+    /** Parsing and checking the request parameters */
+    PARSE("Parse request"),
+    /** Looking for the generated image in the cache */
+    CACHE_LOOKUP("Image cache lookup"),
+    /** Reading the source pixels for the image (including the two stages below) */
+    RENDER("Render image"),
+    /** Finding the source pixel for each pixel in the image */
+    COORDINATES("Coordinate generation"),
+    /** Reading scattered pixels from one sub-image of a mosaic (once per sub-image) */
+    SUB_IMAGE_GATHER("Pixel gather per sub-image"),
+    /** Loading a sub-image that was not in the sub-image cache */
+    SUB_IMAGE_LOAD("Sub-image load"),
+    /** Encoding a PNG, including writing it to the client as it is encoded */
+    PNG_ENCODE("PNG encode and write"),
+    /** Encoding a JPEG, including writing it to the client as it is encoded */
+    JPEG_ENCODE("JPEG encode and write"),
+    /** Writing an image from the cache to the client */
+    WRITE("Write cached image");
+
+    private final String description;
+    private final LatencyHistogram histogram = new LatencyHistogram();
+
+    private Stage(String description) {
+        this.description = description;
+    }
+
+    public String getDescription() {
+        return this.description;
+    }
+
+    public LatencyHistogram getHistogram() {
+        return this.histogram;
+    }
+
+    /** Records the time elapsed since the given value of System.nanoTime() */
+    public void recordSince(long startNanos) {
+        this.histogram.recordSince(startNanos);
+    }
+
+    /** Discards the timings of all stages */
+    public static void resetAll() {
+        for (Stage stage : values()) {
+            stage.histogram.reset();
+        }
+    }
+
+}
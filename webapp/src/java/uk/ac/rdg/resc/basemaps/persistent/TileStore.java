@@ -11,22 +11,42 @@ import com.google.appengine.api.datastore.DatastoreServiceFactory;
 import com.google.appengine.api.datastore.Entity;
 import com.google.appengine.api.datastore.EntityNotFoundException;
 import com.google.appengine.api.datastore.KeyFactory;
+import com.google.appengine.api.datastore.Query;
+import java.io.EOFException;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FilenameFilter;
 import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.nio.ByteBuffer;
-import java.nio.IntBuffer;
 import java.nio.channels.FileChannel;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
 import java.util.logging.Logger;
+import uk.ac.rdg.resc.basemaps.TileCodec;
 
 /**
  * A persistent store of image tiles: the tiles are &lt;1MB-sized chunks of a
  * larger image, in which each pixel is an argb integer.  The chunks must be
  * &lt;1MB in size as this is a restriction of both GAE's persistent store and
- * its memcache.
+ * its memcache.  Tiles are stored as they are encoded in the tile files (see
+ * {@link TileCodec}).
  * @author Jon
  */
 public final class TileStore
@@ -51,32 +71,186 @@ public final class TileStore
     /** Key for the pixels property of an entity (will contain a Blob) */
     private static final String PIXELS_PROPERTY_KEY = "pixels";
 
+    /** The most tiles that are stored in one call to the datastore */
+    private static final int MAX_BATCH_ENTITIES = 500;
+
+    /** The most bytes of tile data that are stored in one call to the
+     * datastore (the size of an API call is limited) */
+    private static final int MAX_BATCH_BYTES = 8 * 1024 * 1024;
+
+    /** How long we wait for the reading threads to stop at the end of a load */
+    private static final long SHUTDOWN_WAIT_MILLIS = 10000;
+
     /** Prevents direct instantiation */
     private TileStore() {}
 
     public static TileStore getInstance() { return INSTANCE; }
 
     /**
-     * Loads the tiles from the given location (usually within WEB-INF)
-     * @param directoryPath
+     * Loads the tiles from the given location (usually within WEB-INF),
+     * reading the files on this thread, with no time limit.
+     * @see #loadTiles(String, ThreadFactory, int, long)
+     */
+    public LoadReport loadTiles(String directoryPath) throws IOException {
+        return this.loadTiles(directoryPath, null, 1, 0);
+    }
+
+    /**
+     * <p>Loads the tiles from the given location (usually within WEB-INF).
+     * Tiles that are already in the store are skipped, so a load that was
+     * interrupted, or that ran out of time, can be finished by calling this
+     * again.  (To replace a tile, delete it from the store first.)</p>
+     * <p>Files are read by a pool of threads, a few tiles ahead of the
+     * thread that stores them, and are stored in batches of up to
+     * {@value #MAX_BATCH_ENTITIES} tiles or {@value #MAX_BATCH_BYTES}
+     * bytes.  A tile that can't be read is logged and counted in the report,
+     * and the other tiles are still loaded.</p>
+     * @param directoryPath The directory that contains the tile files
+     * @param threadFactory Creates the threads that read the files (on App
+     * Engine this must be a factory from ThreadManager).  Ignored if the
+     * parallelism is less than 2.
+     * @param parallelism The number of threads that read files; if less than
+     * 2 the files are read on this thread
+     * @param timeBudgetMillis No more tiles are read after this many
+     * milliseconds, although the tiles that have been read are still stored.
+     * Zero means there is no time limit.
+     * @return a report of what was loaded, and how fast
      */
-    public void loadTiles(String directoryPath) throws IOException {
+    public LoadReport loadTiles(String directoryPath, ThreadFactory threadFactory,
+            int parallelism, long timeBudgetMillis) throws IOException {
+        long startTime = System.currentTimeMillis();
         File[] imageFiles = findTileFiles(directoryPath);
         Arrays.sort(imageFiles);
-        for (int i = imageFiles.length - 1; i >= 0; i--) {
-            File file = imageFiles[i];
-            log.fine("Loading image from " + file);
-            // Create a new entity.  We use the file stem to create the unique id
-            String tileId = getFileStem(file.getName());
-            Entity entity = new Entity(KIND, tileId);
-            byte[] fileBytes = readFileContents(file);
-            log.fine("Storing " + fileBytes.length + " bytes");
-            entity.setProperty(PIXELS_PROPERTY_KEY, new Blob(fileBytes));
-            //pm.makePersistent(tile);
-            //pm.flush();
-            com.google.appengine.api.datastore.Key key = DATASTORE.put(entity);
-            log.fine("Got key from put: " + key.getKind() + ", " + key.getName() + ", " + key.getId());
-            log.fine("Stored image from " + file + " in persistent store");
+        Set<String> storedTileIds = findStoredTileIds();
+        List<File> filesToLoad = new ArrayList<File>();
+        for (File imageFile : imageFiles) {
+            if (!storedTileIds.contains(getFileStem(imageFile.getName()))) {
+                filesToLoad.add(imageFile);
+            }
+        }
+        LoadReport report = new LoadReport(imageFiles.length,
+                imageFiles.length - filesToLoad.size());
+        log.info("Loading " + filesToLoad.size() + " of " + imageFiles.length +
+                " tiles from " + directoryPath);
+
+        ExecutorService executor = parallelism > 1
+                ? Executors.newFixedThreadPool(parallelism, threadFactory) : null;
+        // We keep the readers a few tiles ahead of us, but no more, so that
+        // we don't hold too much data in memory
+        int maxReadsInProgress = Math.max(1, 2 * parallelism);
+        LinkedList<Future<Entity>> reads = new LinkedList<Future<Entity>>();
+        List<Entity> batch = new ArrayList<Entity>();
+        long batchBytes = 0;
+        int next = 0;
+        try {
+            while (true) {
+                boolean outOfTime = timeBudgetMillis > 0 &&
+                        System.currentTimeMillis() - startTime >= timeBudgetMillis;
+                while (next < filesToLoad.size() && reads.size() < maxReadsInProgress && !outOfTime) {
+                    reads.add(readTile(executor, filesToLoad.get(next)));
+                    next++;
+                }
+                if (reads.isEmpty()) break;
+                File file = filesToLoad.get(next - reads.size());
+                Entity entity;
+                try {
+                    entity = getResult(reads.removeFirst());
+                } catch (InterruptedIOException iioe) {
+                    throw iioe;
+                } catch (Exception e) {
+                    // Carry on with the other tiles: this one can be loaded
+                    // again later, as it isn't in the store
+                    log.warning("Could not read tile from " + file + ": " + e);
+                    report.tilesFailed++;
+                    continue;
+                }
+                int length = ((Blob)entity.getProperty(PIXELS_PROPERTY_KEY)).getBytes().length;
+                if (batch.size() == MAX_BATCH_ENTITIES ||
+                        (!batch.isEmpty() && batchBytes + length > MAX_BATCH_BYTES)) {
+                    putBatch(batch, batchBytes, report);
+                    batch.clear();
+                    batchBytes = 0;
+                }
+                batch.add(entity);
+                batchBytes += length;
+            }
+            if (!batch.isEmpty()) putBatch(batch, batchBytes, report);
+        } finally {
+            for (Future<Entity> read : reads) {
+                read.cancel(false);
+            }
+            if (executor != null) shutdown(executor);
+        }
+
+        report.finish(filesToLoad.size() - next, System.currentTimeMillis() - startTime);
+        log.info(report.toString());
+        return report;
+    }
+
+    /** Finds the ids of the tiles in the store, with a keys-only query */
+    private static Set<String> findStoredTileIds() {
+        Set<String> tileIds = new HashSet<String>();
+        for (Entity entity : DATASTORE.prepare(new Query(KIND).setKeysOnly()).asIterable()) {
+            tileIds.add(entity.getKey().getName());
+        }
+        return tileIds;
+    }
+
+    /**
+     * Starts reading the given tile file with the given executor, or reads
+     * it straight away if the executor is null.
+     */
+    private static Future<Entity> readTile(ExecutorService executor, final File file) {
+        Callable<Entity> read = new Callable<Entity>() {
+            @Override public Entity call() throws IOException {
+                log.fine("Loading image from " + file);
+                // Create a new entity.  We use the file stem to create the unique id
+                Entity entity = new Entity(KIND, getFileStem(file.getName()));
+                entity.setProperty(PIXELS_PROPERTY_KEY, new Blob(readFileContents(file)));
+                return entity;
+            }
+        };
+        if (executor != null) return executor.submit(read);
+        FutureTask<Entity> task = new FutureTask<Entity>(read);
+        task.run();
+        return task;
+    }
+
+    /**
+     * Stops the given executor, and waits for the threads that are still
+     * reading to finish, so that none outlives the request.
+     */
+    private static void shutdown(ExecutorService executor) {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(SHUTDOWN_WAIT_MILLIS, TimeUnit.MILLISECONDS)) {
+                log.warning("Tile reading threads did not stop after "
+                        + SHUTDOWN_WAIT_MILLIS + " ms");
+            }
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void putBatch(List<Entity> batch, long batchBytes, LoadReport report) {
+        log.fine("Storing " + batch.size() + " tiles (" + batchBytes + " bytes)");
+        DATASTORE.put(batch);
+        report.tilesStored += batch.size();
+        report.bytesStored += batchBytes;
+    }
+
+    private static Entity getResult(Future<Entity> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException ie) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while loading tiles");
+        } catch (ExecutionException ee) {
+            Throwable cause = ee.getCause();
+            if (cause instanceof IOException) throw (IOException) cause;
+            if (cause instanceof RuntimeException) throw (RuntimeException) cause;
+            if (cause instanceof Error) throw (Error) cause;
+            throw new IOException(cause);
         }
     }
 
@@ -104,52 +278,176 @@ public final class TileStore
         int fileSizeBytes = (int)file.length();
         ByteBuffer bb = ByteBuffer.allocate(fileSizeBytes);
         FileChannel fc = new FileInputStream(file).getChannel();
-        fc.read(bb);
-        fc.close();
+        try {
+            while (bb.hasRemaining()) {
+                if (fc.read(bb) < 0) throw new EOFException(file + " is truncated");
+            }
+        } finally {
+            fc.close();
+        }
         return bb.array();
     }
 
+    /**
+     * What was done by a call to
+     * {@link TileStore#loadTiles(String, ThreadFactory, int, long)}.
+     */
+    public static final class LoadReport {
+        private final int tilesFound;
+        private final int tilesSkipped;
+        private int tilesStored = 0;
+        private int tilesFailed = 0;
+        private long bytesStored = 0;
+        private int tilesRemaining = 0;
+        private long elapsedMillis = 0;
+
+        private LoadReport(int tilesFound, int tilesSkipped) {
+            this.tilesFound = tilesFound;
+            this.tilesSkipped = tilesSkipped;
+        }
+
+        private void finish(int tilesRemaining, long elapsedMillis) {
+            this.tilesRemaining = tilesRemaining;
+            this.elapsedMillis = elapsedMillis;
+        }
+
+        /** Gets the number of tile files in the directory */
+        public int getTilesFound() { return this.tilesFound; }
+
+        /** Gets the number of tiles that were already in the store */
+        public int getTilesSkipped() { return this.tilesSkipped; }
+
+        /** Gets the number of tiles that were stored by this load */
+        public int getTilesStored() { return this.tilesStored; }
+
+        /** Gets the total size of the tiles that were stored by this load */
+        public long getBytesStored() { return this.bytesStored; }
+
+        /** Gets the number of tiles that weren't stored because their files
+         * couldn't be read */
+        public int getTilesFailed() { return this.tilesFailed; }
+
+        /** Gets the number of tiles that weren't loaded because time ran out */
+        public int getTilesRemaining() { return this.tilesRemaining; }
+
+        /** Returns true if all the tiles are now in the store */
+        public boolean isComplete() { return this.tilesRemaining == 0 && this.tilesFailed == 0; }
+
+        public long getElapsedMillis() { return this.elapsedMillis; }
+
+        @Override
+        public String toString() {
+            double seconds = Math.max(this.elapsedMillis, 1) / 1000.0;
+            return String.format("Stored %d of %d tiles (%d already stored, %d failed, "
+                    + "%d remaining): %.1f MB in %.1f s, %.1f tiles/s, %.2f MB/s",
+                    this.tilesStored, this.tilesFound, this.tilesSkipped, this.tilesFailed,
+                    this.tilesRemaining,
+                    this.bytesStored / 1048576.0, seconds, this.tilesStored / seconds,
+                    this.bytesStored / 1048576.0 / seconds);
+        }
+    }
+
     /** Retrieves the array of pixels from the store, using the given key */
     public int[] getPixels(Key key) {
-        // Create a unique string ID for this tile
-        String tileId = key.toString();
+        byte[] data = this.getTileData(key);
+        return data == null ? null : decode(key, data);
+    }
+
+    /**
+     * Retrieves the arrays of pixels for several tiles from the store in a
+     * single round-trip.
+     * @return Map of keys to pixels.  Tiles that are not in the store (or
+     * can't be decoded) are not included in the map.
+     */
+    public Map<Key, int[]> getPixels(Collection<Key> keys) {
+        Map<Key, byte[]> data = this.getTileData(keys);
+        Map<Key, int[]> pixels = new HashMap<Key, int[]>(data.size() * 2);
+        for (Map.Entry<Key, byte[]> entry : data.entrySet()) {
+            int[] tilePixels = decode(entry.getKey(), entry.getValue());
+            if (tilePixels != null) pixels.put(entry.getKey(), tilePixels);
+        }
+        return pixels;
+    }
+
+    /**
+     * Retrieves the encoded data of a tile (see {@link TileCodec}), which
+     * is much smaller than its pixels.
+     * @return the data, or null if the tile is not in the store
+     */
+    public byte[] getTileData(Key key) {
         try {
             // Search the datastore
-            Entity entity = DATASTORE.get(KeyFactory.createKey(KIND, tileId));
-            Blob pixelsBlob = (Blob)entity.getProperty(PIXELS_PROPERTY_KEY);
-            byte[] pixelBytes = pixelsBlob.getBytes();
-            // Convert to an array of ints
-            ByteBuffer bb = ByteBuffer.wrap(pixelBytes);
-            IntBuffer ib = bb.asIntBuffer();
-            int[] pixels = new int[pixelBytes.length / 4];
-            ib.get(pixels);
-            return pixels;
+            return toBytes(DATASTORE.get(key.toDatastoreKey()));
         } catch (EntityNotFoundException ex) {
             return null;
         }
     }
 
+    /**
+     * Retrieves the encoded data of several tiles (see {@link TileCodec})
+     * in a single round-trip.
+     * @return Map of keys to tile data.  Tiles that are not in the store are
+     * not included in the map.
+     */
+    public Map<Key, byte[]> getTileData(Collection<Key> keys) {
+        Map<com.google.appengine.api.datastore.Key, Key> tileKeys =
+                new HashMap<com.google.appengine.api.datastore.Key, Key>(keys.size() * 2);
+        List<com.google.appengine.api.datastore.Key> datastoreKeys =
+                new ArrayList<com.google.appengine.api.datastore.Key>(keys.size());
+        for (Key key : keys) {
+            com.google.appengine.api.datastore.Key datastoreKey = key.toDatastoreKey();
+            tileKeys.put(datastoreKey, key);
+            datastoreKeys.add(datastoreKey);
+        }
+        Map<com.google.appengine.api.datastore.Key, Entity> entities = DATASTORE.get(datastoreKeys);
+        Map<Key, byte[]> data = new HashMap<Key, byte[]>(entities.size() * 2);
+        for (Map.Entry<com.google.appengine.api.datastore.Key, Entity> entry : entities.entrySet()) {
+            data.put(tileKeys.get(entry.getKey()), toBytes(entry.getValue()));
+        }
+        return data;
+    }
+
+    /** Gets the pixels property of the given entity */
+    private static byte[] toBytes(Entity entity) {
+        Blob pixelsBlob = (Blob)entity.getProperty(PIXELS_PROPERTY_KEY);
+        return pixelsBlob.getBytes();
+    }
+
+    /**
+     * Decodes the data of the given tile, returning null (and logging the
+     * problem) if the data are corrupt.
+     */
+    public static int[] decode(Key key, byte[] data) {
+        try {
+            return TileCodec.decode(data, key.tileWidth, key.tileHeight);
+        } catch (IOException ioe) {
+            log.warning("Could not decode tile " + key + ": " + ioe.getMessage());
+            return null;
+        }
+    }
+
     /**
      * A key that uniquely identifies a tile.
      */
     public static final class Key {
         /** The name of the parent image */
-        private String parentImageName;
+        private final String parentImageName;
         /** The width of the parent image */
-        private int parentImageWidth;
+        private final int parentImageWidth;
         /** The height of the parent image */
-        private int parentImageHeight;
+        private final int parentImageHeight;
         /** The x coordinate of the top-left corner of the tile */
-        private int topLeftTileX;
+        private final int topLeftTileX;
         /** The x coordinate of the top-left corner of the tile */
-        private int topLeftTileY;
+        private final int topLeftTileY;
         /** The width of the tile */
-        private int tileWidth;
+        private final int tileWidth;
         /** The height of the tile */
-        private int tileHeight;
+        private final int tileHeight;
 
         public Key(String parentImageName, int parentImageWidth, int parentImageHeight,
                 int topLeftTileX, int topLeftTileY, int tileWidth, int tileHeight) {
+            if (parentImageName == null) throw new NullPointerException();
             this.parentImageName = parentImageName;
             this.parentImageWidth = parentImageWidth;
             this.parentImageHeight = parentImageHeight;
@@ -199,6 +497,38 @@ public final class TileStore
             );
         }
 
+        /** Creates the key of the entity that holds this tile in the datastore */
+        private com.google.appengine.api.datastore.Key toDatastoreKey() {
+            return KeyFactory.createKey(KIND, this.toString());
+        }
+
+        @Override
+        public boolean equals(Object obj) {
+            if (obj == this) return true;
+            if (!(obj instanceof Key)) return false;
+            final Key other = (Key)obj;
+            return this.topLeftTileX == other.topLeftTileX &&
+                   this.topLeftTileY == other.topLeftTileY &&
+                   this.parentImageName.equals(other.parentImageName) &&
+                   this.parentImageWidth == other.parentImageWidth &&
+                   this.parentImageHeight == other.parentImageHeight &&
+                   this.tileWidth == other.tileWidth &&
+                   this.tileHeight == other.tileHeight;
+        }
+
+        @Override
+        public int hashCode() {
+            int hash = 17;
+            hash = 31 * hash + this.parentImageName.hashCode();
+            hash = 31 * hash + this.parentImageWidth;
+            hash = 31 * hash + this.parentImageHeight;
+            hash = 31 * hash + this.topLeftTileX;
+            hash = 31 * hash + this.topLeftTileY;
+            hash = 31 * hash + this.tileWidth;
+            hash = 31 * hash + this.tileHeight;
+            return hash;
+        }
+
     }
 
 }
@@ -1,5 +1,6 @@
 package uk.ac.rdg.resc.basemaps.servlet;
 
+import com.google.appengine.api.ThreadManager;
 import com.google.appengine.api.users.UserService;
 import com.google.appengine.api.users.UserServiceFactory;
 import java.io.IOException;
@@ -11,7 +12,13 @@ import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import uk.ac.rdg.resc.basemaps.cache.CacheKey;
 import uk.ac.rdg.resc.basemaps.cache.ImageCache;
+import uk.ac.rdg.resc.basemaps.cache.LruCache;
+import uk.ac.rdg.resc.basemaps.cache.SubImageCache;
+import uk.ac.rdg.resc.basemaps.metrics.LatencyHistogram;
+import uk.ac.rdg.resc.basemaps.metrics.Stage;
+import uk.ac.rdg.resc.basemaps.persistent.TileStore;
 
 /**
  * Entry point for the administration web pages.  Only authenticated administrators
@@ -21,7 +28,15 @@ import uk.ac.rdg.resc.basemaps.cache.ImageCache;
 public class AdminServlet extends HttpServlet {
 
     private final ImageCache imageCache = ImageCache.INSTANCE;
-    //private TileStore tileStore;
+    private final SubImageCache subImageCache = SubImageCache.INSTANCE;
+    private final TileStore tileStore = TileStore.getInstance();
+
+    /** The number of threads that read tile files when loading tiles */
+    private static final int LOAD_THREADS = 4;
+
+    /** Time after which we stop reading tiles, leaving time to store them
+     * and respond before the request deadline */
+    private static final long LOAD_TIME_BUDGET_MILLIS = 40000;
 
     @Override
     protected void doGet(HttpServletRequest request, HttpServletResponse response)
@@ -32,6 +47,19 @@ public class AdminServlet extends HttpServlet {
             response.sendRedirect("admin");
             return;
         }
+        if ("resetMetrics".equals(request.getParameter("op"))) {
+            Stage.resetAll();
+            response.sendRedirect("admin");
+            return;
+        }
+        if ("metrics".equals(request.getParameter("op"))) {
+            writeMetrics(response);
+            return;
+        }
+        if ("loadTiles".equals(request.getParameter("op"))) {
+            this.loadTiles(request, response);
+            return;
+        }
 
         UserService userService = UserServiceFactory.getUserService();
         String thisURL = request.getRequestURI();
@@ -50,19 +78,87 @@ public class AdminServlet extends HttpServlet {
         writer.printf("<h1>Welcome %s!</h1>%n", request.getUserPrincipal().getName());
         writer.printf("<p>You can <a href=\"%s\">Logout</a></p>%n", userService.createLogoutURL(thisURL));
 
-        writer.println("<h1>Cache statistics</h1>");
-        writer.printf("<p><b>Cache hits:</b> %s</p>%n", cacheStats.getCacheHits());
-        writer.printf("<p><b>Cache misses:</b> %s</p>%n", cacheStats.getCacheMisses());
+        LruCache<CacheKey, byte[]> localCache = this.imageCache.getLocalCache();
+        writer.println("<h1>Image cache statistics: local tier</h1>");
+        writer.printf("<p><b>Cache hits:</b> %s</p>%n", localCache.getHits());
+        writer.printf("<p><b>Cache misses:</b> %s</p>%n", localCache.getMisses());
+        writer.printf("<p><b>Evictions:</b> %s</p>%n", localCache.getEvictions());
+        writer.printf("<p><b>Cache size:</b> %s images, %s of %s bytes</p>%n",
+                localCache.getObjectCount(), localCache.getSizeBytes(),
+                localCache.getMaxBytes());
+
+        writer.println("<h1>Image cache statistics: memcache tier</h1>");
+        writer.printf("<p><b>Hits from this instance:</b> %s</p>%n", this.imageCache.getMemcacheHits());
+        writer.printf("<p><b>Misses from this instance:</b> %s</p>%n", this.imageCache.getMemcacheMisses());
+        writer.printf("<p><b>Cache hits (all instances):</b> %s</p>%n", cacheStats.getCacheHits());
+        writer.printf("<p><b>Cache misses (all instances):</b> %s</p>%n", cacheStats.getCacheMisses());
         writer.printf("<p><b>Cache size:</b> %s</p>%n", cacheStats.getObjectCount());
 
+        writer.println("<h1>Sub-image cache statistics</h1>");
+        writer.printf("<p><b>Cache hits:</b> %s</p>%n", this.subImageCache.getHits());
+        writer.printf("<p><b>Cache misses:</b> %s</p>%n", this.subImageCache.getMisses());
+        writer.printf("<p><b>Evictions:</b> %s</p>%n", this.subImageCache.getEvictions());
+        writer.printf("<p><b>Cache size:</b> %s sub-images, %s of %s bytes</p>%n",
+                this.subImageCache.getObjectCount(), this.subImageCache.getSizeBytes(),
+                this.subImageCache.getMaxBytes());
+
+        writer.println("<p>Clearing the cache empties memcache and the local image cache of the");
+        writer.println("instance that serves this page.  Other instances empty their local image");
+        writer.printf("caches within %d s.</p>%n",
+                Long.getLong(ImageCache.GENERATION_CHECK_MILLIS_PROPERTY,
+                        ImageCache.DEFAULT_GENERATION_CHECK_MILLIS) / 1000);
         writer.println("<form action=\"admin\" method=\"get\">");
         writer.println("<input type=\"hidden\" name=\"op\" value=\"clearImageCache\"/>");
         writer.println("<button type=\"submit\" onclick=\"return confirm('Are you sure you want to clear the cache?');\">Clear cache</button>");
         writer.println("</form>");
 
+        writer.println("<h1>Persistent store</h1>");
+        writer.println("<p>Loads the tiles in WEB-INF/images/<i>image name</i> that are not already stored.");
+        writer.println("If not all the tiles can be loaded in one request, load the image again to continue.</p>");
+        writer.println("<form action=\"admin\" method=\"get\">");
+        writer.println("<input type=\"hidden\" name=\"op\" value=\"loadTiles\"/>");
+        writer.println("Image name: <input type=\"text\" name=\"imagename\"/>");
+        writer.println("<button type=\"submit\">Load tiles</button>");
+        writer.println("</form>");
+
+        writer.println("<h1>GetMap timings</h1>");
+        writer.println("<p>Times in milliseconds since this instance started (or since the timings were reset).");
+        writer.println("Also available as <a href=\"admin?op=metrics\">plain text</a>.</p>");
+        writer.println("<table border=\"1\">");
+        writer.println("<tr><th>Stage</th><th>Count</th><th>Mean</th><th>p50</th><th>p99</th><th>p99.9</th><th>Max</th></tr>");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = stage.getHistogram();
+            writer.printf("<tr><td>%s</td><td>%d</td><td>%.3f</td><td>%.3f</td><td>%.3f</td><td>%.3f</td><td>%.3f</td></tr>%n",
+                    stage.getDescription(), h.getCount(), h.getMean() / 1e6,
+                    h.getPercentile(0.5) / 1e6, h.getPercentile(0.99) / 1e6,
+                    h.getPercentile(0.999) / 1e6, h.getMax() / 1e6);
+        }
+        writer.println("</table>");
+        writer.println("<form action=\"admin\" method=\"get\">");
+        writer.println("<input type=\"hidden\" name=\"op\" value=\"resetMetrics\"/>");
+        writer.println("<button type=\"submit\">Reset timings</button>");
+        writer.println("</form>");
+
         writer.println("</body></html>");
     }
 
+    /**
+     * Writes the timings of each stage as plain text, one line per stage, for
+     * monitoring scripts.  The columns are the stage name, the count and the
+     * mean, p50, p99, p99.9 and maximum times in microseconds.
+     */
+    private static void writeMetrics(HttpServletResponse response) throws IOException {
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.println("# stage count mean_us p50_us p99_us p999_us max_us");
+        for (Stage stage : Stage.values()) {
+            LatencyHistogram h = stage.getHistogram();
+            writer.printf("%s %d %.1f %.1f %.1f %.1f %.1f%n", stage.name(), h.getCount(),
+                    h.getMean() / 1e3, h.getPercentile(0.5) / 1e3, h.getPercentile(0.99) / 1e3,
+                    h.getPercentile(0.999) / 1e3, h.getMax() / 1e3);
+        }
+    }
+
     /** Displays the front page of the admin app */
     public void displayAdminPage(HttpServletRequest request,
         HttpServletResponse response) throws Exception {
@@ -88,20 +184,34 @@ public class AdminServlet extends HttpServlet {
         response.sendRedirect("./");
     }
 
-    /** Populates the persistent store with image tiles */
-    /*public void loadImageTiles(HttpServletRequest request,
-            HttpServletResponse response) throws Exception {
-
+    /**
+     * Populates the persistent store with the tiles of an image, as many as
+     * can be stored in the time allowed for a request, and reports what was
+     * done as plain text.  Tiles that are already stored are skipped, so if
+     * the load is incomplete the operation can simply be repeated.
+     */
+    private void loadTiles(HttpServletRequest request, HttpServletResponse response)
+            throws ServletException, IOException {
         // Find out which image we want to load
         String imageName = request.getParameter("imagename");
-        if (imageName == null) {
-            throw new Exception("Must specify an image name");
+        if (imageName == null || imageName.length() == 0) {
+            throw new ServletException("Must specify an image name");
+        }
+        if (imageName.contains("/") || imageName.contains("\\") || imageName.startsWith(".")) {
+            throw new ServletException("Invalid image name " + imageName);
         }
 
         // Load the images from the source files
-        this.tileStore.loadTiles("WEB-INF/images/" + imageName);
+        TileStore.LoadReport report = this.tileStore.loadTiles("WEB-INF/images/" + imageName,
+                ThreadManager.currentRequestThreadFactory(), LOAD_THREADS,
+                LOAD_TIME_BUDGET_MILLIS);
 
-        response.sendRedirect("./");
-    }*/
+        response.setContentType("text/plain");
+        PrintWriter writer = response.getWriter();
+        writer.println(report);
+        if (!report.isComplete()) {
+            writer.println("Not all tiles were loaded: repeat this request to load the rest.");
+        }
+    }
 
 }
@@ -1,16 +1,17 @@
 package uk.ac.rdg.resc.basemaps.servlet;
 
-import com.google.appengine.api.images.ImagesService;
-import com.google.appengine.api.images.ImagesServiceFactory;
-import com.google.appengine.api.images.Transform;
 import com.google.appengine.repackaged.com.google.common.collect.Sets;
 import com.keypoint.PngEncoder;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.text.ParseException;
+import java.text.SimpleDateFormat;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Set;
+import java.util.TimeZone;
 import java.util.logging.Logger;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
@@ -21,8 +22,13 @@ import uk.ac.rdg.resc.basemaps.GeoreferencedImage;
 import uk.ac.rdg.resc.basemaps.ArrayBackedImage;
 import uk.ac.rdg.resc.basemaps.FileBackedImageMosaic;
 import uk.ac.rdg.resc.basemaps.Image;
+import uk.ac.rdg.resc.basemaps.JpegEncoder;
+import uk.ac.rdg.resc.basemaps.ParallelRenderer;
 import uk.ac.rdg.resc.basemaps.Projection2;
+import uk.ac.rdg.resc.basemaps.RenderContext;
 import uk.ac.rdg.resc.basemaps.cache.ImageCache;
+import uk.ac.rdg.resc.basemaps.cache.SubImageCache;
+import uk.ac.rdg.resc.basemaps.metrics.Stage;
 import uk.ac.rdg.resc.ncwms.controller.GetMapDataRequest;
 import uk.ac.rdg.resc.ncwms.controller.GetMapRequest;
 import uk.ac.rdg.resc.ncwms.controller.RequestParams;
@@ -52,8 +58,42 @@ public class WmsServlet extends HttpServlet {
     /** The maximum size of image (side length) that can be generated by this server */
     private static final int MAX_IMAGE_SIZE = 512;
 
-    /** In-memory cache of source images.  The keys are the layer names, the values are the images */
-    private final Map<String, GeoreferencedImage> images = new HashMap<String, GeoreferencedImage>();
+    /** System property that sets the quality (1-100) of generated JPEG images */
+    public static final String JPEG_QUALITY_PROPERTY = "basemaps.jpeg.quality";
+
+    private static final int JPEG_QUALITY =
+            Integer.getInteger(JPEG_QUALITY_PROPERTY, JpegEncoder.DEFAULT_QUALITY);
+
+    /**
+     * Prefix of the system properties that set the PNG encoding of each layer:
+     * basemaps.layer.[name].pngFilter (see {@link PngEncoder}) and
+     * basemaps.layer.[name].pngCompressionLevel (0-9).
+     */
+    public static final String LAYER_PROPERTY_PREFIX = "basemaps.layer.";
+
+    /** Level 6 gives nearly the same size as level 9, for much less CPU */
+    private static final int DEFAULT_PNG_COMPRESSION_LEVEL = 6;
+
+    /**
+     * <p>The source images don't change once they are deployed, so neither do
+     * the images we generate from them.  Clients and proxies may cache GetMap
+     * responses for this many seconds (default 30 days), set with the system
+     * property {@value}.</p>
+     * <p>If a layer's imagery is replaced, the properties
+     * basemaps.layer.[name].dataVersion (any string) and
+     * basemaps.layer.[name].lastModified (e.g. 2009-10-28T00:00:00Z) must be
+     * changed too, so that clients revalidating their copies get the new
+     * images.</p>
+     */
+    public static final String MAX_AGE_PROPERTY = "basemaps.http.maxAge";
+
+    private static final int MAX_AGE = Integer.getInteger(MAX_AGE_PROPERTY, 30 * 24 * 60 * 60);
+
+    /** The time at which the source images were last updated, unless set for a layer */
+    private static final String LAST_UPDATE = "2009-10-28T00:00:00Z";
+
+    /** In-memory cache of source images.  The keys are the layer names */
+    private final Map<String, Layer> sourceLayers = new HashMap<String, Layer>();
 
     /** Cache of generated images.  */
     private ImageCache imageCache = ImageCache.INSTANCE;
@@ -66,10 +106,10 @@ public class WmsServlet extends HttpServlet {
 
     /** For logging: possible sources for a GetMap image */
     private enum ImageSource {
+        /** The client already has the image: no image sent */
+        NOT_MODIFIED,
         /** Image was found in the memcache: no processing necessary */
         FOUND_IN_CACHE,
-        /** PNG version of the same image was found in the cache then converted to JPEG */
-        CONVERTED_FROM_CACHED_PNG,
         /** Cache not used at all: generated from scratch */
         NEWLY_GENERATED;
     }
@@ -97,12 +137,41 @@ public class WmsServlet extends HttpServlet {
             this.tileStore
         );*/
 
+        // The tile files are memory-mapped so that they are read from disk
+        // once and then shared between requests
         FileBackedImageMosaic fileBackedBlueMarble = new FileBackedImageMosaic(
-            "bluemarble", 5400, 2700, new File("WEB-INF/images/bluemarble"));
+            "bluemarble", 5400, 2700, new File("WEB-INF/images/bluemarble"), true);
+        // Zoomed-out requests are rendered from lower-resolution overviews
+        fileBackedBlueMarble.loadOverviews();
+        fileBackedBlueMarble.setSubImageCache(SubImageCache.INSTANCE);
 
         // Wrap the image in a georeferencing wrapper and store in the Map
-        //this.images.put("bluemarble",      new GeoreferencedImage(cachedMosaicedBlueMarble));
-        this.images.put("bluemarble_file", new GeoreferencedImage(fileBackedBlueMarble));
+        //this.addLayer("bluemarble", new GeoreferencedImage(cachedMosaicedBlueMarble));
+        this.addLayer("bluemarble_file", new GeoreferencedImage(fileBackedBlueMarble));
+    }
+
+    private void addLayer(String name, GeoreferencedImage image) throws ServletException {
+        String prefix = LAYER_PROPERTY_PREFIX + name;
+        Layer layer = new Layer(image,
+            Integer.getInteger(prefix + ".pngFilter", PngEncoder.FILTER_ADAPTIVE),
+            Integer.getInteger(prefix + ".pngCompressionLevel", DEFAULT_PNG_COMPRESSION_LEVEL),
+            System.getProperty(prefix + ".dataVersion", "1"),
+            parseTime(System.getProperty(prefix + ".lastModified", LAST_UPDATE)));
+        log.info("Layer " + name + ": PNG filter " + layer.pngFilter
+            + ", compression level " + layer.pngCompressionLevel
+            + ", version " + layer.version);
+        this.sourceLayers.put(name, layer);
+    }
+
+    /** Parses a time such as 2009-10-28T00:00:00Z, returning milliseconds since the epoch */
+    private static long parseTime(String time) throws ServletException {
+        SimpleDateFormat format = new SimpleDateFormat("yyyy-MM-dd'T'HH:mm:ss'Z'");
+        format.setTimeZone(TimeZone.getTimeZone("UTC"));
+        try {
+            return format.parse(time).getTime();
+        } catch (ParseException pe) {
+            throw new ServletException("Invalid time " + time, pe);
+        }
     }
 
     /** Entry point for WMS requests */
@@ -120,7 +189,7 @@ public class WmsServlet extends HttpServlet {
             /*if (operation.equals("GetCapabilities")) {
                 return getCapabilities(params, request);
             } else */ if (operation.equals("GetMap")) {
-                getMap(params, response);
+                getMap(params, request, response);
             } else {
                 throw new OperationNotSupportedException(operation);
             }
@@ -158,7 +227,7 @@ public class WmsServlet extends HttpServlet {
         Map<String, Object> models = new HashMap<String, Object>();
         models.put("title", "WMS basemaps server on Google App Engine");
         models.put("abstract", "An experimental Web Map Service for common basemap images");
-        models.put("lastUpdate", "2009-10-28T00:00:00Z");
+        models.put("lastUpdate", LAST_UPDATE);
         models.put("wmsBaseUrl", httpServletRequest.getRequestURL().toString());
         models.put("maxImageSize", MAX_IMAGE_SIZE);
         models.put("supportedCrsCodes", SUPPORTED_PROJECTIONS.keySet());
@@ -185,8 +254,8 @@ public class WmsServlet extends HttpServlet {
     }
 
     /** Implements the GetMap operation */
-    private void getMap(RequestParams params, HttpServletResponse response)
-        throws WmsException, IOException {
+    private void getMap(RequestParams params, HttpServletRequest request,
+        HttpServletResponse response) throws WmsException, IOException {
         
         long getMapStart = System.nanoTime();
 
@@ -213,8 +282,8 @@ public class WmsServlet extends HttpServlet {
             throw new WmsException("You may only request a maximum of " +
                 "1 layer simultaneously from this server");
         }
-        GeoreferencedImage sourceImage = images.get(layers[0]);
-        if (sourceImage == null) {
+        Layer layer = this.sourceLayers.get(layers[0]);
+        if (layer == null) {
             throw new LayerNotDefinedException(layers[0]);
         }
 
@@ -225,6 +294,13 @@ public class WmsServlet extends HttpServlet {
                     " is not supported by this server");
         }
 
+        // Check that we support the requested projection.  This must be done
+        // before we answer a conditional request.
+        Projection2 proj = SUPPORTED_PROJECTIONS.get(dr.getCrsCode());
+        if (proj == null) {
+            throw new InvalidCrsException(dr.getCrsCode());
+        }
+
         // Check that the size of the requested image is within limits
         if (dr.getWidth() > MAX_IMAGE_SIZE || dr.getHeight() > MAX_IMAGE_SIZE) {
             throw new WmsException("Requested image is too large (exceeds "
@@ -233,57 +309,40 @@ public class WmsServlet extends HttpServlet {
 
         // See if the client has requested not to use the cache (debug only)
         boolean avoidCache = "true".equalsIgnoreCase(params.getString("no_cache"));
-
-        // We assume the image has been newly generated unless we find otherwise
-        final ImageSource imageSource;
-        // We're interested to know about any space saving by JPEG compression
-        // This will not be relevant if the image was found in the cache, or
-        // if the user has requested a PNG
-        Integer bytesSavedInJpegCompression = null;
+        CacheKey cacheKey = new CacheKey(layers[0], layer.version, mimeType, dr.getCrsCode(),
+                dr.getBbox(), dr.getWidth(), dr.getHeight());
+        Stage.PARSE.recordSince(getMapStart);
+
+        // If the client already has this image we don't need to do anything else
+        String etag = layer.getETag(cacheKey);
+        if (!avoidCache && isNotModified(request, etag, layer.lastModified)) {
+            setCacheHeaders(response, etag, layer, avoidCache);
+            if ("true".equalsIgnoreCase(params.getString("debug_headers"))) {
+                response.setHeader("X-WmsBasemaps-firstRequest", "" + firstRequest);
+                response.setHeader("X-WmsBasemaps-imageSource", ImageSource.NOT_MODIFIED.toString());
+            }
+            response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+            Stage.NOT_MODIFIED.recordSince(getMapStart);
+            return;
+        }
 
         // Look to see if we have a matching image in the cache
-        CacheKey cacheKey = new CacheKey(layers[0], mimeType, dr.getCrsCode(),
-                dr.getBbox(), dr.getWidth(), dr.getHeight());
+        long stageStart = System.nanoTime();
         byte[] imageBytes = readImageFromCache(cacheKey, avoidCache);
+        Stage.CACHE_LOOKUP.recordSince(stageStart);
+        // Set if we have rendered an image that is to be streamed to the client
+        Image renderedImage = null;
 
+        final ImageSource imageSource;
         if (imageBytes == null)
         {
-            // No matching image in the cache
-            if (mimeType.equals(JPEG_FORMAT))
-            {
-                // We haven't found a JPEG in the cache but we might be able to
-                // find a PNG with the same information
-                CacheKey pngCacheKey = new CacheKey(layers[0], PNG_FORMAT, dr.getCrsCode(),
-                    dr.getBbox(), dr.getWidth(), dr.getHeight());
-                imageBytes = readImageFromCache(pngCacheKey, avoidCache);
-
-                if (imageBytes == null) {
-                    // There was no PNG in the cache so we must create one
-                    //((CachingImageMosaic)sourceImage.getImage()).testCache();
-                    imageBytes = readPng(dr, sourceImage);
-                    // We put it in the cache
-                    this.imageCache.putImage(pngCacheKey, imageBytes);
-                    imageSource = ImageSource.NEWLY_GENERATED;
-                }
-                else
-                {
-                    // We found a PNG in the cache
-                    imageSource = ImageSource.CONVERTED_FROM_CACHED_PNG;
-                }
-
-                // We must convert the PNG to a JPEG
-                int pngSize = imageBytes.length;
-                imageBytes = convertPngToJpeg(imageBytes);
-                bytesSavedInJpegCompression = pngSize - imageBytes.length;
-            }
-            else
-            {
-                // We were looking for a PNG and didn't find one
-                imageBytes = readPng(dr, sourceImage);
-                imageSource = ImageSource.NEWLY_GENERATED;
-            }
-            // We put the requested image in the cache
-            this.imageCache.putImage(cacheKey, imageBytes);
+            // No matching image in the cache.  We render it now (so that any
+            // errors reading the source image can still be reported) but
+            // encode it while writing to the client.
+            stageStart = System.nanoTime();
+            renderedImage = renderImage(dr, proj, layer.image);
+            Stage.RENDER.recordSince(stageStart);
+            imageSource = ImageSource.NEWLY_GENERATED;
         }
         else
         {
@@ -291,23 +350,36 @@ public class WmsServlet extends HttpServlet {
         }
 
         // Write the headers, which we use for debugging and monitoring what's
-        // going on on the server
+        // going on on the server.  For streamed images the time does not
+        // include encoding, which happens after the headers have been sent.
         if ("true".equalsIgnoreCase(params.getString("debug_headers"))) {
             response.setHeader("X-WmsBasemaps-firstRequest", "" + firstRequest);
             response.setHeader("X-WmsBasemaps-imageSource", imageSource.toString());
             response.setHeader("X-WmsBasemaps-getMapTime", "" + (System.nanoTime() - getMapStart));
-            if (bytesSavedInJpegCompression != null) {
-                response.setHeader("X-WmsBasemaps-bytesSavedInJpegCompression",
-                        "" + bytesSavedInJpegCompression.intValue());
-            }
         }
 
-        // Write the image to the client
+        // Write the image to the client.  We only know the length if the image
+        // came from the cache: rendered images are streamed as they are encoded.
+        // We don't set the caching headers until now, so that errors aren't cached.
+        setCacheHeaders(response, etag, layer, avoidCache);
         response.setContentType(mimeType);
+        if (imageBytes != null) response.setContentLength(imageBytes.length);
         OutputStream os = null;
         try {
             os = response.getOutputStream();
-            os.write(imageBytes);
+            stageStart = System.nanoTime();
+            if (renderedImage == null) {
+                os.write(imageBytes);
+                Stage.WRITE.recordSince(stageStart);
+            } else {
+                // Stream the image to the client as it is encoded, keeping a
+                // copy so that we can put the image in the cache
+                ByteArrayOutputStream cacheCopy = RenderContext.get().getOutputBuffer();
+                encodeImage(renderedImage, mimeType, layer, new TeeOutputStream(os, cacheCopy));
+                (mimeType.equals(JPEG_FORMAT) ? Stage.JPEG_ENCODE : Stage.PNG_ENCODE)
+                        .recordSince(stageStart);
+                this.imageCache.putImage(cacheKey, cacheCopy.toByteArray());
+            }
         } catch(IOException ioe) {
             // We swallow these exceptions.  They most commonly occur when the
             // client disconnects, which is very frequently when using OpenLayers.
@@ -321,6 +393,51 @@ public class WmsServlet extends HttpServlet {
                 try { os.close(); } catch(IOException ioe) {}
             }
         }
+        Stage.GET_MAP.recordSince(getMapStart);
+    }
+
+    /**
+     * Returns true if the client's copy of the image is current, according to
+     * the If-None-Match header (or, if there isn't one, the If-Modified-Since
+     * header) of the request.
+     */
+    private static boolean isNotModified(HttpServletRequest request, String etag,
+        long lastModified)
+    {
+        String ifNoneMatch = request.getHeader("If-None-Match");
+        if (ifNoneMatch != null) {
+            // A list of entity tags, possibly weak, or "*"
+            for (String tag : ifNoneMatch.split(",")) {
+                tag = tag.trim();
+                if (tag.startsWith("W/")) tag = tag.substring(2);
+                if (tag.equals("*") || tag.equals(etag)) return true;
+            }
+            return false;
+        }
+        try {
+            long ifModifiedSince = request.getDateHeader("If-Modified-Since");
+            // HTTP dates are only accurate to the second
+            return ifModifiedSince >= 0 && lastModified / 1000 <= ifModifiedSince / 1000;
+        } catch (IllegalArgumentException iae) {
+            // The date is malformed: ignore it
+            return false;
+        }
+    }
+
+    /**
+     * Sets the headers that allow clients and proxies to cache the image,
+     * unless the client has asked us not to use the cache
+     */
+    private static void setCacheHeaders(HttpServletResponse response, String etag,
+        Layer layer, boolean avoidCache)
+    {
+        if (avoidCache) {
+            response.setHeader("Cache-Control", "no-cache");
+        } else {
+            response.setHeader("ETag", etag);
+            response.setDateHeader("Last-Modified", layer.lastModified);
+            response.setHeader("Cache-Control", "public, max-age=" + MAX_AGE);
+        }
     }
 
     private byte[] readImageFromCache(CacheKey key, boolean avoidCache)
@@ -329,65 +446,135 @@ public class WmsServlet extends HttpServlet {
         else return this.imageCache.getImage(key);
     }
 
-    private static byte[] readPng(GetMapDataRequest dr, GeoreferencedImage sourceImage)
-        throws InvalidCrsException, IOException
+    /** Renders the requested image by reading pixels from the source image */
+    private static Image renderImage(GetMapDataRequest dr, Projection2 proj,
+            GeoreferencedImage sourceImage) throws IOException
     {
-        // Get the requested projection of the image
-        Projection2 proj = SUPPORTED_PROJECTIONS.get(dr.getCrsCode());
-        if (proj == null) {
-            throw new InvalidCrsException(dr.getCrsCode());
-        }
-
         // The image is not in the cache.
-        // Create the image we shall build up, pixel by pixel
-        Image im = new ArrayBackedImage(dr.getWidth(), dr.getHeight());
+        // Create the image we shall build up.  Its pixels are reused by the
+        // next request on this thread, by which time we have encoded it.
+        int numPixels = dr.getWidth() * dr.getHeight();
+        Image im = new ArrayBackedImage(dr.getWidth(), dr.getHeight(),
+                RenderContext.get().getImagePixels(numPixels));
         GeoreferencedImage targetImage = new GeoreferencedImage(im, dr.getBbox(), proj);
 
         // The line below reads all the pixels from the source image in one
-        // operation, meaning that sourceImage can optimize the use of i/o
-        int[] targetPixels = sourceImage.getNearestPixels(targetImage.getLonLatsList());
-        int pixelIndex = 0;
-        for (int j = 0; j < im.getHeight(); j++) {
-            for (int i = 0; i < im.getWidth(); i++) {
-                im.setPixel(i, j, targetPixels[pixelIndex]);
-                pixelIndex++;
-            }
-        }
+        // operation, meaning that sourceImage can optimize the use of i/o.
+        // The pixels are written straight into the target image's array.
+        sourceImage.getNearestPixels(targetImage, im.getPixels());
 
-        // Create the image itself as a PNG.  I can't find any suitable and
-        // compatible code that will encode directly as JPEG.
-        PngEncoder pngEnc = new PngEncoder(
-                targetImage.getImage(), // the image to encode
-                false, // don't encode the alpha channel - these are background maps
-                0, // don't use a filter (I don't even know what this means ;-)
-                9 // Use maximum compression (or we might run out of free GAE bandwidth)
-                  // This can reduces the size of the images considerably,
-                  // but not by as much as JPEG compression
-                  // Would be interesting to view some stats on that... (TODO)
-        );
-
-        return pngEnc.pngEncode();
+        return im;
     }
 
     /**
-     * Uses Google App Engine's image service to convert the given PNG image
-     * to JPEG.
+     * Encodes the given image in the given format, using the settings of the
+     * given layer, writing to the given stream
      */
-    private static byte[] convertPngToJpeg(byte[] pngBytes) {
-        com.google.appengine.api.images.Image im = ImagesServiceFactory.makeImage(pngBytes);
-        ImagesService imService = ImagesServiceFactory.getImagesService();
-        // This transformation does nothing.
-        Transform nullTransform = ImagesServiceFactory.makeRotate(0);
-        imService.applyTransform(nullTransform, im, ImagesService.OutputEncoding.JPEG);
-        return im.getImageData();
+    private static void encodeImage(Image im, String mimeType, Layer layer,
+        OutputStream os) throws IOException
+    {
+        if (mimeType.equals(JPEG_FORMAT)) {
+            new JpegEncoder(im, JPEG_QUALITY).jpegEncode(os);
+        } else {
+            PngEncoder encoder = new PngEncoder(
+                im, // the image to encode
+                false, // don't encode the alpha channel - these are background maps
+                layer.pngFilter,
+                layer.pngCompressionLevel
+            );
+            // Null unless parallel rendering is turned on and the pool is idle
+            encoder.setExecutor(ParallelRenderer.getExecutor());
+            encoder.pngEncode(os);
+        }
     }
 
     /** Cleans up any resources */
     @Override
     public void destroy() {
         log.info("disposing WmsController");
-        for (GeoreferencedImage geoImage : this.images.values()) {
-            geoImage.getImage().dispose();
+        for (Layer layer : this.sourceLayers.values()) {
+            layer.image.getImage().dispose();
+        }
+    }
+
+    /**
+     * Writes everything to two streams: the client and a copy that will be
+     * put in the cache.  Errors writing to the client (usually because it has
+     * disconnected) are swallowed and further writes to it are skipped, so
+     * that the copy is still complete.
+     */
+    private static final class TeeOutputStream extends OutputStream {
+
+        private final OutputStream client;
+        private final OutputStream copy;
+        private boolean clientFailed = false;
+
+        public TeeOutputStream(OutputStream client, OutputStream copy) {
+            this.client = client;
+            this.copy = copy;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            this.copy.write(b);
+            if (!this.clientFailed) {
+                try { this.client.write(b); }
+                catch (IOException ioe) { this.clientFailed = true; }
+            }
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            this.copy.write(b, off, len);
+            if (!this.clientFailed) {
+                try { this.client.write(b, off, len); }
+                catch (IOException ioe) { this.clientFailed = true; }
+            }
+        }
+
+        @Override
+        public void flush() throws IOException {
+            this.copy.flush();
+            if (!this.clientFailed) {
+                try { this.client.flush(); }
+                catch (IOException ioe) { this.clientFailed = true; }
+            }
+        }
+    }
+
+    /**
+     * A source image, plus the settings for encoding images generated from it
+     * and the version of its data, which identify the images for HTTP caching
+     */
+    private static final class Layer {
+        private final GeoreferencedImage image;
+        private final int pngFilter;
+        private final int pngCompressionLevel;
+        /**
+         * Changes whenever the bytes of the images we generate might change.
+         * This is part of the cache key, so cached images from older versions
+         * are not used.
+         */
+        private final String version;
+        /** The time at which the source image was last changed */
+        private final long lastModified;
+
+        public Layer(GeoreferencedImage image, int pngFilter, int pngCompressionLevel,
+                String dataVersion, long lastModified) {
+            this.image = image;
+            this.pngFilter = pngFilter;
+            this.pngCompressionLevel = pngCompressionLevel;
+            this.version = dataVersion + "." + pngFilter + "." + pngCompressionLevel
+                    + "." + JPEG_QUALITY;
+            this.lastModified = lastModified;
+        }
+
+        /**
+         * Gets the strong entity tag of the image with the given key.  Requests
+         * with the same key get the same bytes: the key includes the version.
+         */
+        public String getETag(CacheKey key) {
+            return "\"" + Long.toHexString(key.getHash64()) + "\"";
         }
     }
 
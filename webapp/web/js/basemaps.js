@@ -1,6 +1,7 @@
 var map;
 var polarMaxExtent = new OpenLayers.Bounds(-10700000, -10700000, 14700000, 14700000);
 var lonLatMaxExtent = new OpenLayers.Bounds(-180, -90, 180, 90);
+var mercatorMaxExtent = new OpenLayers.Bounds(-20037508.34, -20037508.34, 20037508.34, 20037508.34);
 
 var halfSideLength = (polarMaxExtent.top - polarMaxExtent.bottom) / (4 * 2);
 var centre = ((polarMaxExtent.top - polarMaxExtent.bottom) / 2) + polarMaxExtent.bottom;
@@ -59,6 +60,12 @@ function projectionChanged(crsCode)
         units = 'm';
         maxExtent = polarWindow;
         maxResolution = polarMaxResolution;
+    }
+    else if (crsCode == 'EPSG:3857') {
+        // Spherical Mercator: the whole world fits in one 256-pixel tile
+        units = 'm';
+        maxExtent = mercatorMaxExtent;
+        maxResolution = (mercatorMaxExtent.right - mercatorMaxExtent.left) / 256;
     } else {
         alert('Unrecognized map projection ' + crsCode);
         return;